@@ -36,10 +36,73 @@ public class StartupArgs {
     public static final boolean CASE_SENSITIVE_PATHS = false;
     public static final String SERVER_NAME = "ProjectNovaculaTest";
     public static final String SERVER_BASE_DIR = BASE_DIR + File.separator + "ServerData";
+    public static final int STATIC_CACHE_SIZE = Integer.getInteger("novacula.staticCacheSize", 64 * 1024 * 1024);
+    public static final int STATIC_CACHE_MAX_FILE_SIZE = Integer.getInteger("novacula.staticCacheMaxFileSize", 256 * 1024);
+    public static final int STATIC_CACHE_CHECK_INTERVAL = Integer.getInteger("novacula.staticCacheCheckInterval", 2000);
+    public static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("novacula.compression", "true"));
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("novacula.compressionLevel", 6);
+    public static final int COMPRESSION_MIN_SIZE = Integer.getInteger("novacula.compressionMinSize", 1024);
+    public static final int COMPRESSION_MAX_SIZE = Integer.getInteger("novacula.compressionMaxSize", 4 * 1024 * 1024);
+    public static final int COMPRESSION_CACHE_SIZE = Integer.getInteger("novacula.compressionCacheSize", 32 * 1024 * 1024);
     public static final String MAILTO = "npjoshf@gmail.com";
     public static final String PHP_EXTENSIONS = "php;php5;phtml;nova";
     public static final String CGI_EXTENSIONS = "exe;novax";
     public static final String PHP_EXEC = "PATH TO PHP";
     public static final int LOG_LEVEL = 5;
+    public static final String LISTEN_ADDRESSES = System.getProperty("novacula.listen", String.valueOf(BASE_SERVER_PORT));
+    public static final int ACCEPTOR_THREADS = Integer.getInteger("novacula.acceptorThreads", 1);
+    public static final int ACCEPT_BACKLOG = Integer.getInteger("novacula.acceptBacklog", 50);
+    public static final boolean TCP_NODELAY = Boolean.parseBoolean(System.getProperty("novacula.tcpNoDelay", "true"));
+    public static final int SOCKET_SEND_BUFFER = Integer.getInteger("novacula.socketSendBuffer", 0);
+    public static final int SOCKET_RECEIVE_BUFFER = Integer.getInteger("novacula.socketReceiveBuffer", 0);
+    public static final boolean REUSE_PORT = Boolean.parseBoolean(System.getProperty("novacula.reusePort", "true"));
+    public static final String SERVER_ENGINE = System.getProperty("novacula.engine", "blocking");
+    public static final int EVENT_LOOP_THREADS = Integer.getInteger("novacula.eventLoopThreads", Runtime.getRuntime().availableProcessors());
+    public static final int WORKER_THREADS = Integer.getInteger("novacula.workerThreads", 200);
+    public static final int WORKER_QUEUE_SIZE = Integer.getInteger("novacula.workerQueueSize", 1000);
+    public static final int EVENT_QUEUE_SIZE = Integer.getInteger("novacula.eventQueueSize", 1024);
+    public static final boolean VIRTUAL_THREADS = Boolean.parseBoolean(System.getProperty("novacula.virtualThreads", "true"));
+    public static final int MAX_VIRTUAL_WORKERS = Integer.getInteger("novacula.maxVirtualWorkers", 10000);
+    public static final int HEADER_READ_TIMEOUT = Integer.getInteger("novacula.headerReadTimeout", 10000);
+    public static final int BODY_READ_TIMEOUT = Integer.getInteger("novacula.bodyReadTimeout", 30000);
+    public static final int WRITE_TIMEOUT = Integer.getInteger("novacula.writeTimeout", 30000);
+    public static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("novacula.keepAliveTimeout", 5000);
+    public static final int LINGER_TIMEOUT = Integer.getInteger("novacula.lingerTimeout", 2000);
+    public static final int SHUTDOWN_DRAIN_TIMEOUT = Integer.getInteger("novacula.drainTimeout", 30000);
+    public static final int KEEP_ALIVE_MAX_REQUESTS = Integer.getInteger("novacula.keepAliveMaxRequests", 100);
+    public static final int PIPELINE_DEPTH = Integer.getInteger("novacula.pipelineDepth", 8);
+    public static final int PIPELINE_BUFFER_SIZE = Integer.getInteger("novacula.pipelineBufferSize", 256 * 1024);
+    public static final int BUFFER_POOL_SIZE = Integer.getInteger("novacula.bufferPoolSize", 16 * 1024 * 1024);
+    public static final boolean BUFFER_LEAK_DETECTION = Boolean.getBoolean("novacula.bufferLeakDetection");
+    public static final int RESPONSE_CHUNK_SIZE = Integer.getInteger("novacula.responseChunkSize", 8192);
+    public static final int MAX_REQUEST_HEADER_SIZE = Integer.getInteger("novacula.maxRequestHeaderSize", 16 * 1024);
+    public static final long MAX_REQUEST_BODY_SIZE = Long.getLong("novacula.maxRequestBodySize", 16 * 1024 * 1024);
+    public static final int REQUEST_BODY_MEMORY_THRESHOLD = Integer.getInteger("novacula.requestBodyMemoryThreshold", 64 * 1024);
+    public static final long MULTIPART_MAX_PART_SIZE = Long.getLong("novacula.multipartMaxPartSize", 16 * 1024 * 1024);
+    public static final int MULTIPART_MAX_PARTS = Integer.getInteger("novacula.multipartMaxParts", 1000);
+    public static final boolean HTTP2 = Boolean.parseBoolean(System.getProperty("novacula.http2", "true"));
+    public static final int HTTP2_MAX_CONCURRENT_STREAMS = Integer.getInteger("novacula.http2MaxConcurrentStreams", 100);
+    public static final int HTTP2_WINDOW_SIZE = Integer.getInteger("novacula.http2WindowSize", 256 * 1024);
+    public static final int HTTP2_IDLE_TIMEOUT = Integer.getInteger("novacula.http2IdleTimeout", 60000);
+    public static final int WEBSOCKET_MAX_MESSAGE_SIZE = Integer.getInteger("novacula.webSocketMaxMessageSize", 1024 * 1024);
+    public static final int WEBSOCKET_PING_INTERVAL = Integer.getInteger("novacula.webSocketPingInterval", 30000);
+    public static final int SSE_MAX_QUEUED_EVENTS = Integer.getInteger("novacula.sseMaxQueuedEvents", 256);
+    public static final int SSE_REPLAY_SIZE = Integer.getInteger("novacula.sseReplaySize", 64);
+    public static final int SSE_HEARTBEAT_INTERVAL = Integer.getInteger("novacula.sseHeartbeatInterval", 15000);
+    public static final String TLS_KEYSTORE = System.getProperty("novacula.tlsKeyStore", BASE_DIR + File.separator + "keystore.p12");
+    public static final String TLS_KEYSTORE_PASSWORD = System.getProperty("novacula.tlsKeyStorePassword", "");
+    public static final String TLS_KEYSTORE_TYPE = System.getProperty("novacula.tlsKeyStoreType", "PKCS12");
+    public static final String TLS_PROTOCOLS = System.getProperty("novacula.tlsProtocols", "TLSv1.3,TLSv1.2");
+    public static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("novacula.tlsSessionCacheSize", 20000);
+    public static final int TLS_SESSION_TIMEOUT = Integer.getInteger("novacula.tlsSessionTimeout", 86400);
+    public static final boolean TLS_SESSION_TICKETS = Boolean.parseBoolean(System.getProperty("novacula.tlsSessionTickets", "true"));
+    public static final int RATE_LIMIT_CONNECTIONS = Integer.getInteger("novacula.rateLimitConnections", 0);
+    public static final int RATE_LIMIT_CONNECTION_BURST = Integer.getInteger("novacula.rateLimitConnectionBurst", 20);
+    public static final int RATE_LIMIT_REQUESTS = Integer.getInteger("novacula.rateLimitRequests", 0);
+    public static final int RATE_LIMIT_REQUEST_BURST = Integer.getInteger("novacula.rateLimitRequestBurst", 100);
+    public static final String RATE_LIMIT_ROUTES = System.getProperty("novacula.rateLimitRoutes", "");
+    public static final int RATE_LIMIT_IDLE_TIMEOUT = Integer.getInteger("novacula.rateLimitIdleTimeout", 60000);
+    public static final int LATENCY_SLICE_MILLIS = Integer.getInteger("novacula.latencySliceMillis", 10000);
+    public static final int LATENCY_SLICES = Integer.getInteger("novacula.latencySlices", 6);
 }
 
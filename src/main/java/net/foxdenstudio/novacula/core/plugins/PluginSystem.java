@@ -24,6 +24,7 @@
 
 package net.foxdenstudio.novacula.core.plugins;
 
+import net.foxdenstudio.novacula.core.StartupArgs;
 import net.foxdenstudio.novacula.core.plugins.detector.ADetect;
 import net.foxdenstudio.novacula.core.plugins.events.Event;
 import net.foxdenstudio.novacula.core.plugins.events.LaunchEvent;
@@ -32,9 +33,13 @@ import net.foxdenstudio.novacula.core.utils.NovaLogger;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by d4rkfly3r (Joshua F.) on 12/23/15.
@@ -42,6 +47,7 @@ import java.util.HashMap;
 public class PluginSystem {
 
     private static final HashMap<Class<?>, Object> registeredListeners = new HashMap<>();
+    private static final ThreadPoolExecutor eventExecutor = createEventExecutor();
     private static NovaLogger novaLogger;
 
     public PluginSystem(NovaLogger novaLogger) {
@@ -82,13 +88,32 @@ public class PluginSystem {
         return registeredListeners;
     }
 
+    /**
+     * Calls the event on the event thread, in the order events were fired. When its queue is full the
+     * caller runs the listeners itself, so a burst of events slows the caller down instead of
+     * piling up threads.
+     */
     public static void callEvent(final Event event) {
-        new Thread() {
-            @Override
-            public void run() {
-                callEvent0(event);
-            }
-        }.start();
+        eventExecutor.execute(() -> callEvent0(event));
+    }
+
+    /**
+     * Calls the event on the current thread and only returns once every listener has seen it. No
+     * other thread is involved, so a request's plugin work counts against the worker that serves it.
+     */
+    public static void callEventAndWait(final Event event) {
+        callEvent0(event);
+    }
+
+    private static ThreadPoolExecutor createEventExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, StartupArgs.EVENT_QUEUE_SIZE)), runnable -> {
+            Thread thread = new Thread(runnable, "Nova-Event");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     private static void callEventSpecClass0(Class<?> aClass, Object instance, final Event event) {
@@ -96,13 +121,21 @@ public class PluginSystem {
     }
 
     private static void callEvent0(final Event event) {
+        ArrayList<Map.Entry<Class<?>, Object>> listeners;
         synchronized (registeredListeners) {
-            registeredListeners.entrySet().parallelStream().forEach(clzEntry -> callMethodsForClass0(clzEntry.getKey(), clzEntry.getValue(), event));
+            listeners = new ArrayList<>(registeredListeners.entrySet());
+        }
+        for (Map.Entry<Class<?>, Object> clzEntry : listeners) {
+            callMethodsForClass0(clzEntry.getKey(), clzEntry.getValue(), event);
         }
     }
 
+    /**
+     * Calls the handlers one after the other on the calling thread, so they run on the worker or
+     * virtual thread that serves the request and are bounded by it.
+     */
     private static void callMethodsForClass0(Class<?> clz, Object instance, final Event event) {
-        Arrays.asList(clz.getMethods()).parallelStream().forEach(method -> {
+        for (Method method : clz.getMethods()) {
             if (method.isAnnotationPresent(EventHandler.class)) {
                 Class<?>[] expParams = method.getParameterTypes();
                 if (expParams.length > 0) {
@@ -118,7 +151,7 @@ public class PluginSystem {
                     }
                 }
             }
-        });
+        }
     }
 
     private void register0(Class<?> aClass) {
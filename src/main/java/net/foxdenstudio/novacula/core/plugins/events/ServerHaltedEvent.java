@@ -28,8 +28,31 @@ package net.foxdenstudio.novacula.core.plugins.events;
  * Created by d4rkfly3r (Joshua F.) on 12/24/15.
  */
 public class ServerHaltedEvent implements Event {
+
+    private final int drainedRequests;
+    private final int abortedRequests;
+
+    public ServerHaltedEvent(int drainedRequests, int abortedRequests) {
+        this.drainedRequests = drainedRequests;
+        this.abortedRequests = abortedRequests;
+    }
+
     @Override
     public String getName() {
         return "Server Halted Event";
     }
+
+    /**
+     * @return number of requests that were still running when the server stopped and finished in time
+     */
+    public int getDrainedRequests() {
+        return drainedRequests;
+    }
+
+    /**
+     * @return number of requests cut off because they did not finish before the drain timeout
+     */
+    public int getAbortedRequests() {
+        return abortedRequests;
+    }
 }
@@ -24,10 +24,16 @@
 
 package net.foxdenstudio.novacula.core.plugins.events;
 
+import net.foxdenstudio.novacula.core.StartupArgs;
 import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+import net.foxdenstudio.novacula.core.utils.HttpValidators;
+import net.foxdenstudio.novacula.core.utils.MultipartReader;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Created by d4rkfly3r (Joshua F.) on 12/24/15.
@@ -36,11 +42,18 @@ public class ServerRequestEvent implements Event {
 
     private final OutputStream clientOutputStream;
     private final HTTPHeaderParser httpHeaderParser;
+    private final ServerResponse response;
+    private final InputStream requestBody;
+    private ReadableByteChannel requestBodyChannel;
+    private MultipartReader multipartReader;
     private boolean handled = false;
 
-    public ServerRequestEvent(OutputStream clientOutputStream, HTTPHeaderParser httpHeaderParser) {
+    public ServerRequestEvent(OutputStream clientOutputStream, HTTPHeaderParser httpHeaderParser, ServerResponse response,
+                              InputStream requestBody) {
         this.clientOutputStream = clientOutputStream;
         this.httpHeaderParser = httpHeaderParser;
+        this.response = response;
+        this.requestBody = requestBody;
     }
 
     @Override
@@ -52,17 +65,122 @@ public class ServerRequestEvent implements Event {
         return clientOutputStream;
     }
 
+    /**
+     * @return the response to answer this request with, an alternative to writing the complete
+     * response to {@link #getClientOutputStream()}; use one or the other
+     */
+    public ServerResponse getResponse() {
+        return response;
+    }
+
     public HTTPHeaderParser getHttpHeaderParser() {
         return httpHeaderParser;
     }
 
+    /**
+     * @return the body the client sent with the request, already de-chunked; empty for requests
+     * without one. Whatever the plugin leaves unread is skipped by the server.
+     */
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    /**
+     * @return the request body as a channel, reading from the same position as {@link #getRequestBody()}
+     */
+    public ReadableByteChannel getRequestBodyChannel() {
+        if (requestBodyChannel == null) {
+            requestBodyChannel = Channels.newChannel(requestBody);
+        }
+        return requestBodyChannel;
+    }
+
+    /**
+     * @return a reader that streams the parts of a multipart body, such as a multipart/form-data
+     * upload, or null if the request body is not multipart
+     */
+    public MultipartReader getMultipartReader() {
+        if (multipartReader == null) {
+            String boundary = MultipartReader.getBoundary(httpHeaderParser.getHeader("Content-Type"));
+            if (boundary == null) return null;
+            multipartReader = new MultipartReader(requestBody, boundary, StartupArgs.MULTIPART_MAX_PART_SIZE,
+                    StartupArgs.MULTIPART_MAX_PARTS);
+        }
+        return multipartReader;
+    }
+
+    /**
+     * @return whether the client asked to open a WebSocket with this request
+     */
+    public boolean isWebSocketRequest() {
+        return httpHeaderParser.isWebSocketUpgrade();
+    }
+
+    /**
+     * Accepts a WebSocket upgrade request and marks the request as handled. Messages from the client
+     * arrive as {@link WebSocketMessageEvent}s from then on.
+     *
+     * @param protocol the subprotocol to confirm out of those the client offered, or null
+     * @see ServerResponse#acceptWebSocket(String)
+     */
+    public WebSocket acceptWebSocket(String protocol) throws IOException {
+        WebSocket webSocket = response.acceptWebSocket(protocol);
+        this.handled = true;
+        return webSocket;
+    }
+
+    /**
+     * @return whether the client asked for a stream of server-sent events
+     */
+    public boolean isEventStreamRequest() {
+        return httpHeaderParser.isEventStreamRequest();
+    }
+
+    /**
+     * Subscribes the client to a topic of server-sent events and marks the request as handled.
+     *
+     * @see ServerResponse#acceptEventStream(String)
+     */
+    public void acceptEventStream(String topic) throws IOException {
+        response.acceptEventStream(topic);
+        this.handled = true;
+    }
+
     public boolean isHandled() {
         return handled;
     }
 
+    /**
+     * Lets a plugin answer a conditional request before doing any work for the body. If the client's
+     * copy is still current a 304 Not Modified response is sent and the request marked as handled.
+     * Responses that simply carry ETag or Last-Modified headers are also turned into 304 by the
+     * server, but only after the plugin has produced them.
+     *
+     * @param etag         the entity tag of the current content including quotes, or null
+     * @param lastModified modification time of the current content in milliseconds, or 0 if unknown
+     * @return true if the response has been sent and the plugin should stop
+     */
+    public boolean checkNotModified(String etag, long lastModified) {
+        if (!HttpValidators.isNotModified(httpHeaderParser, etag, lastModified)) {
+            return false;
+        }
+        try {
+            clientOutputStream.write(HttpValidators.notModifiedResponse(etag, lastModified, StartupArgs.SERVER_NAME));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        handle();
+        return true;
+    }
+
+    /**
+     * Marks the request as answered and ends the response. This does not close the connection; the
+     * server keeps it open for further requests if the client asked for that.
+     */
     public void handle() {
         this.handled = true;
         try {
+            response.close();
             clientOutputStream.flush();
             clientOutputStream.close();
         } catch (IOException e) {
@@ -0,0 +1,109 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.plugins.events;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Structured way for a plugin to answer a {@link ServerRequestEvent} instead of writing the raw HTTP
+ * response to {@link ServerRequestEvent#getClientOutputStream()}. Status and headers are collected
+ * until the body is requested or the response is flushed; the body is then streamed to the client.
+ * Without a Content-Length it is sent with {@code Transfer-Encoding: chunked} (or by closing the
+ * connection for HTTP/1.0 clients), so a response of any size needs no more memory than one chunk.
+ */
+public interface ServerResponse extends Closeable {
+
+    /**
+     * Sets the status code, 200 by default.
+     */
+    ServerResponse setStatus(int status);
+
+    /**
+     * Sets a header, replacing any header with the same name.
+     */
+    ServerResponse setHeader(String name, String value);
+
+    /**
+     * Adds a header, keeping headers with the same name that were set before.
+     */
+    ServerResponse addHeader(String name, String value);
+
+    /**
+     * Declares the length of the body, which is then sent as is instead of chunked.
+     */
+    ServerResponse setContentLength(long length);
+
+    /**
+     * Sets the size of the chunks a body of unknown length is sent in. Smaller chunks reach the
+     * client sooner, larger ones have less framing overhead.
+     */
+    ServerResponse setChunkSize(int chunkSize);
+
+    /**
+     * @return true once status and headers have been sent and can no longer be changed
+     */
+    boolean isCommitted();
+
+    /**
+     * Sends status and headers if that has not happened yet.
+     *
+     * @return the stream to write the body to; closing it ends the response
+     */
+    OutputStream getBody() throws IOException;
+
+    /**
+     * Sends status, headers and everything written to the body so far to the client right away,
+     * ending the current chunk early if necessary.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Answers a WebSocket upgrade request with 101 Switching Protocols, including any headers set so
+     * far, and turns the connection into a WebSocket.
+     *
+     * @param protocol the subprotocol to confirm out of those the client offered, or null
+     * @throws IllegalStateException if the request is not a valid upgrade request, the response has
+     *                               already been committed or the connection cannot be upgraded
+     */
+    WebSocket acceptWebSocket(String protocol) throws IOException;
+
+    /**
+     * Answers the request with a stream of server-sent events from the given topic, published with
+     * {@link net.foxdenstudio.novacula.core.server.EventStreams}. Headers set so far are included. A
+     * client reconnecting with a Last-Event-ID header first gets the recent events it missed.
+     *
+     * @throws IllegalStateException if the response has already been committed or the connection
+     *                               cannot be handed over
+     */
+    void acceptEventStream(String topic) throws IOException;
+
+    /**
+     * Ends the response, sending status and headers first if only they were set.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,81 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.plugins.events;
+
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.IOException;
+
+/**
+ * A WebSocket connection a plugin accepted with {@link ServerRequestEvent#acceptWebSocket(String)}.
+ * Incoming messages arrive as {@link WebSocketMessageEvent}s, one at a time per connection; messages
+ * can be sent from any thread at any time while the connection is open.
+ */
+public interface WebSocket {
+
+    /**
+     * @return the upgrade request the connection was opened with
+     */
+    HTTPHeaderParser getRequest();
+
+    /**
+     * @return the subprotocol chosen when the connection was accepted, or null
+     */
+    String getProtocol();
+
+    /**
+     * Sends a text message. Blocks while too much data is already waiting to be written to the client.
+     */
+    void send(String text) throws IOException;
+
+    /**
+     * Sends a binary message. Blocks while too much data is already waiting to be written to the client.
+     */
+    void send(byte[] data) throws IOException;
+
+    /**
+     * Starts the closing handshake. The connection is closed once the client answered it, or after a
+     * timeout if it does not.
+     *
+     * @param code   the status code, such as 1000 for a normal closure
+     * @param reason a short explanation, may be empty
+     */
+    void close(int code, String reason);
+
+    /**
+     * @return false once the connection is closed or closing
+     */
+    boolean isOpen();
+
+    /**
+     * @return the object attached to this connection by a plugin, or null
+     */
+    Object getAttachment();
+
+    /**
+     * Attaches arbitrary state to this connection, for use by later events.
+     */
+    void setAttachment(Object attachment);
+}
@@ -0,0 +1,66 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.plugins.events;
+
+/**
+ * Fired exactly once when a WebSocket connection ends, whichever side closed it. No messages are
+ * delivered for the connection afterwards.
+ */
+public class WebSocketCloseEvent implements Event {
+
+    private final WebSocket webSocket;
+    private final int code;
+    private final String reason;
+
+    public WebSocketCloseEvent(WebSocket webSocket, int code, String reason) {
+        this.webSocket = webSocket;
+        this.code = code;
+        this.reason = reason;
+    }
+
+    @Override
+    public String getName() {
+        return "WebSocket Close Event";
+    }
+
+    public WebSocket getWebSocket() {
+        return webSocket;
+    }
+
+    /**
+     * @return the status code of the close frame, 1005 if it carried none or 1006 if the connection
+     * was lost without one
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return the reason given in the close frame, empty if there was none
+     */
+    public String getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,72 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.plugins.events;
+
+/**
+ * Fired for every complete message a client sends over a WebSocket, after fragments have been put
+ * back together.
+ */
+public class WebSocketMessageEvent implements Event {
+
+    private final WebSocket webSocket;
+    private final String text;
+    private final byte[] data;
+
+    public WebSocketMessageEvent(WebSocket webSocket, String text, byte[] data) {
+        this.webSocket = webSocket;
+        this.text = text;
+        this.data = data;
+    }
+
+    @Override
+    public String getName() {
+        return "WebSocket Message Event";
+    }
+
+    public WebSocket getWebSocket() {
+        return webSocket;
+    }
+
+    /**
+     * @return true for a text message, false for a binary one
+     */
+    public boolean isText() {
+        return text != null;
+    }
+
+    /**
+     * @return the message of a text message, or null for a binary one
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the payload of a binary message, or null for a text one
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
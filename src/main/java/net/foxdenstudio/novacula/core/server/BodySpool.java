@@ -0,0 +1,114 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds a request body that has to be read completely before the request is dispatched, as the NIO
+ * engine does. Small bodies stay in memory; once a body outgrows the threshold it is moved to a
+ * temporary file, which is deleted when the body is closed, so large uploads do not end up on the heap.
+ */
+final class BodySpool {
+
+    private static final LongAdder spills = new LongAdder();
+
+    private final int memoryThreshold;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private FileChannel file;
+    private long size = 0;
+
+    BodySpool(int memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    void write(ByteBuffer src) throws IOException {
+        size += src.remaining();
+        if (file == null && memory.size() + src.remaining() > memoryThreshold) {
+            spill();
+        }
+        if (file != null) {
+            while (src.hasRemaining()) {
+                file.write(src);
+            }
+        } else {
+            ChannelOutput.copy(memory, src);
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the spooled body from its start; closing the stream deletes the temporary file
+     */
+    InputStream toInputStream() throws IOException {
+        if (file == null) {
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        file.position(0);
+        return Channels.newInputStream(file);
+    }
+
+    /**
+     * Throws the body away without reading it.
+     */
+    void discard() {
+        memory = null;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+            file = null;
+        }
+    }
+
+    private void spill() throws IOException {
+        Path path = Files.createTempFile("novacula-body-", ".tmp");
+        file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        file.write(ByteBuffer.wrap(memory.toByteArray()));
+        memory = null;
+        spills.increment();
+    }
+
+    /**
+     * @return how many request bodies were moved to a temporary file so far
+     */
+    static long getSpills() {
+        return spills.sum();
+    }
+}
@@ -0,0 +1,222 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.utils.NovaLogger;
+import net.foxdenstudio.novacula.core.utils.NovaThreads;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct buffers for connection reads and response writes, in power-of-two size classes from 4 KiB
+ * to 64 KiB. New buffers are cut from larger slabs so {@link ByteBuffer#allocateDirect(int)} is rarely
+ * called, and released buffers are reused instead of left to the garbage collector. Platform threads
+ * keep a few buffers of each class to themselves; everything else goes through a shared pool bounded
+ * by {@link StartupArgs#BUFFER_POOL_SIZE}. Virtual threads only use the shared pool, a per-thread
+ * cache would not outlive the request.
+ * <p>
+ * Every acquired buffer must be released exactly once and not used afterwards. With
+ * {@link StartupArgs#BUFFER_LEAK_DETECTION} set the pool remembers where each buffer was acquired and
+ * reports buffers that are still out when the server stops.
+ */
+final class BufferPool {
+
+    static final int MIN_SIZE = 4 * 1024;
+    static final int MAX_SIZE = 64 * 1024;
+
+    private static final int SLAB_SIZE = 256 * 1024;
+    private static final int LOCAL_CACHE_SIZE = 8;
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+    private static final List<Queue<ByteBuffer>> shared = new ArrayList<>(CLASS_COUNT);
+    private static final ThreadLocal<LocalCache> localCaches = ThreadLocal.withInitial(LocalCache::new);
+    private static final Map<ByteBuffer, Throwable> outstanding = StartupArgs.BUFFER_LEAK_DETECTION
+            ? Collections.synchronizedMap(new IdentityHashMap<>())
+            : null;
+
+    private static final AtomicLong sharedBytes = new AtomicLong();
+    private static final AtomicLong inUse = new AtomicLong();
+    private static final LongAdder acquires = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    static {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            shared.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return a cleared direct buffer of at least {@code minCapacity} bytes; requests above
+     * {@link #MAX_SIZE} are allocated without pooling
+     */
+    static ByteBuffer acquire(int minCapacity) {
+        acquires.increment();
+        inUse.incrementAndGet();
+        ByteBuffer buffer = take(minCapacity);
+        if (outstanding != null) {
+            outstanding.put(buffer, new Throwable("Buffer acquired here"));
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool.
+     */
+    static void release(ByteBuffer buffer) {
+        if (outstanding != null && outstanding.remove(buffer) == null) {
+            new IllegalStateException("Buffer released twice or not from the pool").printStackTrace();
+            return;
+        }
+        inUse.decrementAndGet();
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || buffer.capacity() != MIN_SIZE << sizeClass || !buffer.isDirect()) {
+            return;
+        }
+        buffer.clear();
+        if (!NovaThreads.isVirtualThread() && localCaches.get().offer(sizeClass, buffer)) {
+            return;
+        }
+        if (sharedBytes.addAndGet(buffer.capacity()) <= StartupArgs.BUFFER_POOL_SIZE) {
+            shared.get(sizeClass).offer(buffer);
+        } else {
+            sharedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    private static ByteBuffer take(int minCapacity) {
+        int sizeClass = sizeClass(minCapacity);
+        if (sizeClass < 0) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(minCapacity);
+        }
+        if (!NovaThreads.isVirtualThread()) {
+            ByteBuffer buffer = localCaches.get().poll(sizeClass);
+            if (buffer != null) return buffer;
+        }
+        ByteBuffer buffer = shared.get(sizeClass).poll();
+        if (buffer != null) {
+            sharedBytes.addAndGet(-buffer.capacity());
+            return buffer;
+        }
+        misses.increment();
+        return carveSlab(sizeClass);
+    }
+
+    /**
+     * Allocates a slab, keeps one buffer of it for the caller and puts the rest into the shared pool.
+     * The slab shrinks to what still fits under {@link StartupArgs#BUFFER_POOL_SIZE}; a buffer that
+     * no longer fits because other threads filled the pool in the meantime is left unused.
+     */
+    private static ByteBuffer carveSlab(int sizeClass) {
+        int size = MIN_SIZE << sizeClass;
+        long room = Math.max(0, StartupArgs.BUFFER_POOL_SIZE - sharedBytes.get());
+        int slabSize = size + (int) Math.min(SLAB_SIZE - size, room / size * size);
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        for (int offset = size; offset < slabSize; offset += size) {
+            if (sharedBytes.addAndGet(size) > StartupArgs.BUFFER_POOL_SIZE) {
+                sharedBytes.addAndGet(-size);
+                break;
+            }
+            slab.limit(offset + size).position(offset);
+            shared.get(sizeClass).offer(slab.slice());
+        }
+        slab.limit(size).position(0);
+        return slab.slice();
+    }
+
+    /**
+     * @return index of the smallest size class that fits, or -1 if the size is above {@link #MAX_SIZE}
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity > MAX_SIZE) return -1;
+        if (capacity <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * Logs every buffer that has not been released, with the place it was acquired, if leak detection
+     * is enabled.
+     */
+    static void reportLeaks(NovaLogger novaLogger) {
+        if (outstanding == null) return;
+        List<Throwable> leaks;
+        synchronized (outstanding) {
+            leaks = new ArrayList<>(outstanding.values());
+        }
+        if (leaks.isEmpty()) return;
+        novaLogger.logError(leaks.size() + " pooled buffer(s) were not released");
+        for (Throwable leak : leaks) {
+            leak.printStackTrace();
+        }
+    }
+
+    static long getAcquires() {
+        return acquires.sum();
+    }
+
+    static long getMisses() {
+        return misses.sum();
+    }
+
+    static long getInUse() {
+        return inUse.get();
+    }
+
+    static long getIdleBytes() {
+        return sharedBytes.get();
+    }
+
+    private static final class LocalCache {
+        private final ByteBuffer[][] buffers = new ByteBuffer[CLASS_COUNT][LOCAL_CACHE_SIZE];
+        private final int[] counts = new int[CLASS_COUNT];
+
+        ByteBuffer poll(int sizeClass) {
+            if (counts[sizeClass] == 0) return null;
+            int index = --counts[sizeClass];
+            ByteBuffer buffer = buffers[sizeClass][index];
+            buffers[sizeClass][index] = null;
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            if (counts[sizeClass] == LOCAL_CACHE_SIZE) return false;
+            buffers[sizeClass][counts[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by connection outputs that can send byte buffers and parts of files without copying
+ * them through a heap array first. File regions end up as a sendfile call on most platforms.
+ */
+interface ChannelOutput {
+
+    int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes {@code count} bytes of the file starting at {@code position}, after anything written
+     * before. Returns once the region has been written; the caller stays responsible for closing
+     * the file.
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Writes the remaining bytes of the buffer after anything written before. The output may hold on
+     * to the buffer until it has been sent, so its contents must not change afterwards; callers
+     * sharing a buffer pass a {@link ByteBuffer#duplicate() duplicate}.
+     */
+    void write(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Writes the remaining bytes of all buffers in order, with a single gathering write where the
+     * output supports that. The same rules as for {@link #write(ByteBuffer)} apply to each buffer.
+     */
+    default void write(ByteBuffer[] buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            write(buffer);
+        }
+    }
+
+    /**
+     * Writes a buffer to the given stream, without copying if the stream supports it.
+     */
+    static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+        if (out instanceof ChannelOutput) {
+            ((ChannelOutput) out).write(buffer);
+        } else {
+            copy(out, buffer);
+        }
+    }
+
+    /**
+     * Writes several buffers to the given stream, gathered into one write if the stream supports it.
+     */
+    static void write(OutputStream out, ByteBuffer[] buffers) throws IOException {
+        if (out instanceof ChannelOutput) {
+            ((ChannelOutput) out).write(buffers);
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                copy(out, buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes a buffer to the given stream through a heap array.
+     */
+    static void copy(OutputStream out, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(COPY_BUFFER_SIZE, buffer.remaining())];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Sends a file region to the given stream, zero-copy if the stream supports it and through a
+     * heap buffer otherwise.
+     */
+    static void transfer(OutputStream out, FileChannel file, long position, long count) throws IOException {
+        if (out instanceof ChannelOutput) {
+            ((ChannelOutput) out).transferFrom(file, position, count);
+        } else {
+            copy(out, file, position, count);
+        }
+    }
+
+    /**
+     * Sends a file region to the given stream through a heap buffer.
+     */
+    static void copy(OutputStream out, FileChannel file, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1)));
+        long end = position + count;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File is shorter than expected");
+            }
+            out.write(buffer.array(), 0, read);
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+/**
+ * Decodes the chunked transfer coding of a request body. The decoder is handed the framing bytes
+ * one at a time and told how much chunk data the caller consumed, so the blocking engine can pull the
+ * body off the connection stream and the NIO engine can push whatever a read brought in, and neither
+ * ever consumes a byte past the end of the body.
+ */
+final class ChunkedDecoder {
+
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private enum State {
+        SIZE, DATA, DATA_END, TRAILER, DONE
+    }
+
+    private final long maxSize;
+    private final StringBuilder line = new StringBuilder(16);
+    private State state = State.SIZE;
+    private long chunkRemaining = 0;
+    private long size = 0;
+    private int lineLength = 0;
+    private int trailerBytes = 0;
+
+    ChunkedDecoder(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return how many bytes of chunk data follow before the next framing byte is due
+     */
+    long dataRemaining() {
+        return state == State.DATA ? chunkRemaining : 0;
+    }
+
+    /**
+     * Records that the caller took {@code count} bytes of chunk data, at most {@link #dataRemaining()}.
+     */
+    void consumed(long count) {
+        chunkRemaining -= count;
+        if (chunkRemaining == 0) {
+            state = State.DATA_END;
+        }
+    }
+
+    /**
+     * @return true once the last chunk and the trailer have been read
+     */
+    boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Feeds the next byte of the chunk framing: a chunk size line, the line break after the chunk
+     * data or a trailer line.
+     */
+    void frame(int b) throws RequestBodyException {
+        switch (state) {
+            case SIZE:
+                if (b == '\n') {
+                    startChunk(parseSize());
+                } else if (line.length() < MAX_LINE_LENGTH) {
+                    line.append((char) b);
+                } else {
+                    throw new RequestBodyException(400, "Chunk size line too long");
+                }
+                break;
+            case DATA_END:
+                if (b == '\n') {
+                    state = State.SIZE;
+                    lineLength = 0;
+                } else if (b != '\r' || lineLength++ > 0) {
+                    throw new RequestBodyException(400, "Missing line break after chunk data");
+                }
+                break;
+            case TRAILER:
+                // trailer fields are not passed on, they only have to fit the header size limit
+                if (++trailerBytes > StartupArgs.MAX_REQUEST_HEADER_SIZE) {
+                    throw new RequestBodyException(400, "Request trailer too large");
+                }
+                if (b == '\n') {
+                    if (lineLength == 0) {
+                        state = State.DONE;
+                    }
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    lineLength++;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Chunk framing byte in state " + state);
+        }
+    }
+
+    private long parseSize() throws RequestBodyException {
+        int end = line.indexOf(";");
+        String hex = (end < 0 ? line.toString() : line.substring(0, end)).trim();
+        line.setLength(0);
+        if (hex.isEmpty() || hex.length() > 15) {
+            throw new RequestBodyException(400, "Invalid chunk size");
+        }
+        long chunkSize = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new RequestBodyException(400, "Invalid chunk size");
+            }
+            chunkSize = chunkSize * 16 + digit;
+        }
+        return chunkSize;
+    }
+
+    private void startChunk(long chunkSize) throws RequestBodyException {
+        if (chunkSize == 0) {
+            state = State.TRAILER;
+            lineLength = 0;
+            return;
+        }
+        size += chunkSize;
+        if (size > maxSize) {
+            throw new RequestBodyException(413, "Request body too large");
+        }
+        chunkRemaining = chunkSize;
+        state = State.DATA;
+    }
+}
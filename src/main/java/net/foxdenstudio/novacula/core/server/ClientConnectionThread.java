@@ -25,88 +25,311 @@
 package net.foxdenstudio.novacula.core.server;
 
 import net.foxdenstudio.novacula.core.StartupArgs;
-import net.foxdenstudio.novacula.core.plugins.PluginSystem;
-import net.foxdenstudio.novacula.core.plugins.events.ServerRequestEvent;
 import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
 import net.foxdenstudio.novacula.core.utils.NovaLogger;
 
 import java.io.*;
-import java.net.Socket;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
 
 /**
  * Created by d4rkfly3r (Joshua F.) on 12/23/15.
  */
-class ClientConnectionThread implements Runnable {
+class ClientConnectionThread implements Runnable, ConnectionTracker.Drainable {
 
-    private final Socket socket;
-    @SuppressWarnings({"FieldCanBeLocal", "unused"})
+    private final SocketChannel channel;
+    private final TlsChannel tls;
     private final String serverName;
     private final NovaLogger novaLogger;
+    private final WorkerPool workerPool;
+    private final TimingWheel timingWheel;
+    private final ConnectionTimer readTimer;
+    private final ConnectionTimer writeTimer;
+    private final ConnectionTracker connectionTracker;
+    private final NioEventLoop handOverLoop;
+    private LongLivedConnection takenOver;
+    private Object clientKey;
+    private volatile boolean idle = false;
+    private volatile boolean closedByServer = false;
 
-    private String fileMimeType = "text/html";
-
-    public ClientConnectionThread(NovaLogger novaLogger, Socket clientSocket, String serverName) {
+    /**
+     * @param tls the TLS layer over the channel for connections from a TLS listener, or null
+     */
+    public ClientConnectionThread(NovaLogger novaLogger, SocketChannel clientChannel, TlsChannel tls, String serverName,
+                                  WorkerPool workerPool, TimingWheel timingWheel, ConnectionTracker connectionTracker,
+                                  NioEventLoop handOverLoop) {
         this.novaLogger = novaLogger;
 
-        this.socket = clientSocket;
+        this.channel = clientChannel;
+        this.tls = tls;
         this.serverName = serverName;
+        this.workerPool = workerPool;
+        this.timingWheel = timingWheel;
+        this.readTimer = new ConnectionTimer(timingWheel, this::onTimeout);
+        this.writeTimer = new ConnectionTimer(timingWheel, this::onTimeout);
+        this.connectionTracker = connectionTracker;
+        this.handOverLoop = handOverLoop;
     }
 
+    /**
+     * Reads requests off the connection until it is closed. Requests the client has already sent
+     * behind the current one (HTTP pipelining) are answered concurrently, up to the configured
+     * pipeline depth, and their responses are written back in request order. A connection a plugin
+     * turned into a WebSocket or an event stream is passed on to an event loop instead of being closed.
+     */
     @Override
     public void run() {
-        try {
-            OutputStream outputStream = socket.getOutputStream();
-            InputStream inputStream = socket.getInputStream();
+        ByteBuffer buffered = null;
+        boolean handOff = false;
+        try (InputStream inputStream = SocketChannelStreams.input(tls != null ? tls : channel);
+             OutputStream outputStream = new GatheringOutputStream(new TimedOutputStream(SocketChannelStreams.output(tls != null ? tls : channel), writeTimer, StartupArgs.WRITE_TIMEOUT))) {
+            ResponseSequencer sequencer = new ResponseSequencer(outputStream);
+            Semaphore pipelineWindow = new Semaphore(Math.max(1, StartupArgs.PIPELINE_DEPTH));
+            try {
+                int requests = 0;
+                while (!sequencer.isClosing()) {
+                    if (requests > 0) {
+                        readTimer.arm(ConnectionTimer.Phase.KEEP_ALIVE, StartupArgs.KEEP_ALIVE_TIMEOUT);
+                        idle = true;
+                        if (connectionTracker.isDraining() || !awaitNextRequest(inputStream)) break;
+                        idle = false;
+                    }
+                    readTimer.arm(ConnectionTimer.Phase.HEADER_READ, StartupArgs.HEADER_READ_TIMEOUT);
+                    if (requests == 0 && StartupArgs.HTTP2 && Http2Connection.matchPreface(inputStream)) {
+                        readTimer.disarm();
+                        http2(inputStream).prefaceRead().run();
+                        break;
+                    }
+                    RequestTiming timing = new RequestTiming();
+                    HTTPHeaderParser headerParser = new HTTPHeaderParser(inputStream);
+                    int status = headerParser.parseRequest();
+                    timing.parsed();
+                    readTimer.disarm();
+                    if (status == 0) break;
+                    if (status == 200 && tls == null && Http2Connection.isUpgradeRequest(headerParser) && !connectionTracker.isDraining()) {
+                        sequencer.awaitIdle();
+                        http2(inputStream).upgradeFrom(headerParser).run();
+                        break;
+                    }
+                    if (status == 200 && RateLimiter.ENABLED && !admitRequest(headerParser, sequencer)) break;
 
-            long time = System.currentTimeMillis();
+                    boolean allowKeepAlive = ++requests < StartupArgs.KEEP_ALIVE_MAX_REQUESTS && !connectionTracker.isDraining();
+                    boolean reuse = allowKeepAlive && status == 200 && headerParser.isKeepAlive();
+                    // a body is read off the connection by the request itself, so nothing behind it
+                    // can be parsed before it is done
+                    boolean hasBody = status == 200 && headerParser.hasBody();
+                    // requests a plugin may answer by taking over the connection, after which
+                    // nothing on it is HTTP any more
+                    boolean takeOver = status == 200 && (headerParser.isWebSocketUpgrade() || headerParser.isEventStreamRequest());
+                    if (!reuse || hasBody || takeOver || !isIdempotent(headerParser.getMethod())) {
+                        sequencer.awaitIdle();
+                    }
 
-            HTTPHeaderParser headerParser = new HTTPHeaderParser(inputStream);
-            headerParser.parseRequest();
+                    pipelineWindow.acquire();
+                    connectionTracker.requestStarted();
+                    OutputStream slot = sequencer.next();
+                    RequestBody body = hasBody ? RequestBody.stream(headerParser, inputStream, readTimer, slot) : null;
+                    boolean concurrent = reuse && !hasBody && !takeOver && inputStream.available() > 0;
+                    Runnable request = () -> answer(headerParser, status, body, slot, allowKeepAlive, !concurrent, sequencer, pipelineWindow, timing);
+                    if (concurrent) {
+                        workerPool.executeOrRun(request);
+                    } else {
+                        request.run();
+                    }
+                    if (!reuse || takenOver != null) break;
+                }
+            } finally {
+                sequencer.awaitIdle();
+            }
+            if (takenOver != null) {
+                buffered = takeBuffered(inputStream);
+                handOff = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!closedByServer) e.printStackTrace();
+        } finally {
+            readTimer.disarm();
+            writeTimer.disarm();
+            connectionTracker.remove(this);
+            if (handOff) {
+                handOverLoop.register(channel, tls, takenOver, buffered);
+            } else {
+                if (takenOver != null) {
+                    takenOver.close();
+                }
+                try {
+                    (tls != null ? tls : channel).close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a pooled buffer with whatever the input stream has read past the last request, or
+     * null if there is nothing
+     */
+    private static ByteBuffer takeBuffered(InputStream inputStream) throws IOException {
+        int available = inputStream.available();
+        if (available == 0) return null;
+        byte[] bytes = new byte[available];
+        int count = inputStream.read(bytes, 0, available);
+        ByteBuffer buffered = BufferPool.acquire(Math.max(count, BufferPool.MIN_SIZE));
+        buffered.put(bytes, 0, count);
+        return buffered;
+    }
+
+    /**
+     * Continues the connection with HTTP/2 on this thread.
+     */
+    private Http2Connection http2(InputStream inputStream) {
+        return new Http2Connection(channel, tls, inputStream, serverName, workerPool, timingWheel, connectionTracker);
+    }
+
+    /**
+     * Blocks until the client starts sending its next request.
+     *
+     * @return false if the client closed the connection instead
+     */
+    private static boolean awaitNextRequest(InputStream inputStream) throws IOException {
+        inputStream.mark(1);
+        if (inputStream.read() < 0) return false;
+        inputStream.reset();
+        return true;
+    }
+
+    private void onTimeout(ConnectionTimer.Phase phase) {
+        abort();
+    }
+
+    /**
+     * Ends the read side only, so responses to requests that were pipelined before the drain started
+     * are still written out before the connection closes.
+     */
+    @Override
+    public void drain() {
+        if (idle) {
+            closedByServer = true;
+            try {
+                channel.shutdownInput();
+            } catch (IOException ignored) {
+            }
+        }
+    }
 
-            PluginSystem.callEvent(new ServerRequestEvent(outputStream, headerParser));
+    @Override
+    public void abort() {
+        closedByServer = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
 
-            novaLogger.log("Request processed in: " + (System.currentTimeMillis() - time));
+    private void answer(HTTPHeaderParser headerParser, int status, RequestBody body, OutputStream slot, boolean allowKeepAlive,
+                        boolean inline, ResponseSequencer sequencer, Semaphore pipelineWindow, RequestTiming timing) {
+        boolean keepAlive = false;
+        boolean answered = false;
+        try {
+            keepAlive = RequestDispatcher.dispatch(headerParser, status, body, slot, allowKeepAlive, serverName,
+                    inline ? connection -> takenOver = connection : null, timing);
+            answered = true;
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!closedByServer) e.printStackTrace();
+        } finally {
+            try {
+                sequencer.finish(slot, keepAlive);
+                if (answered) {
+                    timing.written();
+                }
+            } catch (IOException ignored) {
+            }
+            pipelineWindow.release();
+            connectionTracker.requestFinished();
         }
     }
 
-    private static class QuickAccess {
-
-        static void Error404(OutputStream outputStream, String serverName) throws IOException {
-            String make = "";
-            make += "HTTP/1.1 404 Not Found\r\n";
-            make += "Date: " + new Date().toString() + "\r\n";
-            make += "Server: NovaServer1.5r\n";
-            make += "Accept-Ranges: bytes\r\n";
-            make += ("Content-Type: text/html\r\n");
-            make += "\r\n";
-            make += "<html>\r\n";
-            make += "<Title>404 File Not Found</Title>\r\n";
-            make += "<body style='background-color: #2A3132;'>\r\n";
-            make += "<p>&nbsp;</p><p>&nbsp;</p><p>&nbsp;</p>\r\n";
-            make += "<div align='center'><center>\r\n";
-            make += "<div style='width: 60%;padding: 7px;background-color: #763626;'>\r\n";
-            make += "<p align='center'><font color='#FFFFFF' size='6'><strong>404 File Not Found</strong></font></p>\r\n";
-            make += "<p><font color='#FFFFFF' size='4'>The Web Server cannot find the requested file or script.  Please check the URL to be sure that it is correct.</font></p>\r\n";
-            make += "<p><font color='#FFFFFF' size='4'>If the problem persists, please contact the webmaster at " + StartupArgs.MAILTO + "</font></p>\r\n";
-            make += "</div>\r\n";
-            make += "</center></div>\r\n";
-            make += "</html>" + "\r\n";
-            outputStream.write(make.getBytes());
-            outputStream.flush();
+    /**
+     * Checks the request against the rate limits, answering it with 429 behind the responses that are
+     * still pending if the client is over them. The connection is closed afterwards.
+     */
+    private boolean admitRequest(HTTPHeaderParser headerParser, ResponseSequencer sequencer) throws IOException {
+        if (clientKey == null) {
+            clientKey = RateLimiter.clientKey(channel);
+        }
+        int retryAfter = RateLimiter.checkRequest(clientKey, headerParser);
+        if (retryAfter == 0) return true;
+        OutputStream slot = sequencer.next();
+        try {
+            slot.write(RateLimiter.tooManyRequests(retryAfter));
+        } finally {
+            sequencer.finish(slot, false);
+        }
+        return false;
+    }
+
+    private static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("HEAD");
+    }
+
+    static class QuickAccess {
+
+        private static final byte[] NOT_FOUND_PAGE = ("<html>\r\n" +
+                "<Title>404 File Not Found</Title>\r\n" +
+                "<body style='background-color: #2A3132;'>\r\n" +
+                "<p>&nbsp;</p><p>&nbsp;</p><p>&nbsp;</p>\r\n" +
+                "<div align='center'><center>\r\n" +
+                "<div style='width: 60%;padding: 7px;background-color: #763626;'>\r\n" +
+                "<p align='center'><font color='#FFFFFF' size='6'><strong>404 File Not Found</strong></font></p>\r\n" +
+                "<p><font color='#FFFFFF' size='4'>The Web Server cannot find the requested file or script.  Please check the URL to be sure that it is correct.</font></p>\r\n" +
+                "<p><font color='#FFFFFF' size='4'>If the problem persists, please contact the webmaster at " + StartupArgs.MAILTO + "</font></p>\r\n" +
+                "</div>\r\n" +
+                "</center></div>\r\n" +
+                "</html>\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        static void Error404(HttpResponseStream response, String serverName) throws IOException {
+            HeaderWriter head = new HeaderWriter()
+                    .status(404)
+                    .date()
+                    .server(serverName)
+                    .line(HeaderWriter.ACCEPT_RANGES)
+                    .line(HeaderWriter.CONTENT_TYPE_HTML)
+                    .header("Content-Length", NOT_FOUND_PAGE.length);
+            response.writeHead(404, head, NOT_FOUND_PAGE.length);
+            response.write(NOT_FOUND_PAGE);
+            response.flush();
+        }
+
+        static void Error(HttpResponseStream response, int status, String serverName) throws IOException {
+            String reply = HTTPHeaderParser.getHttpReply(status);
+            byte[] page = ("<html>\r\n" +
+                    "<Title>" + reply + "</Title>\r\n" +
+                    "<body><p align='center'><strong>" + reply + "</strong></p></body>\r\n" +
+                    "</html>\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            HeaderWriter head = new HeaderWriter()
+                    .status(status)
+                    .date()
+                    .server(serverName)
+                    .line(HeaderWriter.CONTENT_TYPE_HTML)
+                    .header("Content-Length", page.length);
+            response.writeHead(status, head, page.length);
+            response.write(page);
+            response.flush();
         }
 
         public static void Success200(OutputStream outputStream, String fileMimeType, String serverName) throws IOException {
-            String make = "";
-            make += "HTTP/1.1 200 OK\r\n";
-            make += "Date: " + new Date().toString() + "\r\n";
-            make += "Server: " + serverName + "\r\n";
-            make += "Accept-Ranges: bytes\r\n";
-            make += "Content-Type: " + fileMimeType + "\r\n";
-            make += "\r\n";
-            outputStream.write(make.getBytes());
+            new HeaderWriter()
+                    .status(200)
+                    .date()
+                    .server(serverName)
+                    .line(HeaderWriter.ACCEPT_RANGES)
+                    .header("Content-Type", fileMimeType)
+                    .end()
+                    .writeTo(outputStream);
             outputStream.flush();
         }
     }
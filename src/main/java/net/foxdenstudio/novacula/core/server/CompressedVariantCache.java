@@ -0,0 +1,84 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compressed bodies keyed by resource, entity tag and encoding, so a representation that has been
+ * compressed once is not compressed again. Bounded by a byte budget with least recently used
+ * eviction, like the {@link StaticFileCache}.
+ */
+class CompressedVariantCache {
+
+    private final long capacity;
+    private final LinkedHashMap<String, ByteBuffer> variants = new LinkedHashMap<>(64, 0.75f, true);
+    private long residentBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    CompressedVariantCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    ByteBuffer get(String key) {
+        ByteBuffer variant;
+        synchronized (this) {
+            variant = variants.get(key);
+        }
+        (variant == null ? misses : hits).increment();
+        return variant;
+    }
+
+    synchronized void put(String key, ByteBuffer body) {
+        if (body.remaining() > capacity) return;
+        ByteBuffer previous = variants.put(key, body);
+        if (previous != null) {
+            residentBytes -= previous.remaining();
+        }
+        residentBytes += body.remaining();
+        Iterator<ByteBuffer> eldest = variants.values().iterator();
+        while (residentBytes > capacity && eldest.hasNext()) {
+            residentBytes -= eldest.next().remaining();
+            eldest.remove();
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+}
@@ -0,0 +1,333 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Content-Encoding support: negotiation of gzip and deflate, streaming encoders backed by pooled
+ * {@link Deflater}s so requests do not allocate native zlib state, and the cache of compressed
+ * variants shared by static files and plugin responses.
+ */
+final class Compression {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final DeflaterPool GZIP_DEFLATERS = new DeflaterPool(true);
+    private static final DeflaterPool ZLIB_DEFLATERS = new DeflaterPool(false);
+    private static final CompressedVariantCache VARIANTS = StartupArgs.COMPRESSION_CACHE_SIZE > 0
+            ? new CompressedVariantCache(StartupArgs.COMPRESSION_CACHE_SIZE)
+            : null;
+
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder compressionNanos = new LongAdder();
+
+    private Compression() {
+    }
+
+    /**
+     * @return the encoding to use for a response of the given type and length, or null if it should
+     * be sent as is
+     */
+    static String select(String acceptEncoding, String contentType, long length) {
+        if (!StartupArgs.COMPRESSION || length >= 0 && length < StartupArgs.COMPRESSION_MIN_SIZE || !isCompressible(contentType)) {
+            return null;
+        }
+        return negotiate(acceptEncoding);
+    }
+
+    /**
+     * @return true if responses of this type are compressed for clients that accept it, and so
+     * need {@code Vary: Accept-Encoding}
+     */
+    static boolean isCompressible(String contentType) {
+        if (!StartupArgs.COMPRESSION || contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int semicolon = type.indexOf(';');
+        if (semicolon >= 0) {
+            type = type.substring(0, semicolon);
+        }
+        type = type.trim();
+        return type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json")
+                || type.equals("application/javascript") || type.equals("application/x-javascript")
+                || type.equals("application/json") || type.equals("application/xml")
+                || type.equals("application/wasm") || type.equals("font/ttf") || type.equals("font/otf");
+    }
+
+    /**
+     * Picks gzip or deflate from an Accept-Encoding header, honouring q-values; gzip wins ties.
+     *
+     * @return the encoding, or null if the client accepts neither
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float wildcard = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (coding.equals("deflate")) {
+                deflate = Math.max(deflate, q);
+            } else if (coding.equals("*")) {
+                wildcard = q;
+            }
+        }
+        if (gzip < 0) gzip = wildcard;
+        if (deflate < 0) deflate = wildcard;
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * @return a stream that encodes everything written to it into {@code out}; closing it finishes
+     * the encoding and returns its deflater to the pool but leaves {@code out} open
+     */
+    static OutputStream encoder(OutputStream out, String encoding) {
+        return new Encoder(out, encoding.equals(GZIP));
+    }
+
+    /**
+     * Compresses a complete body into a new read-only buffer.
+     */
+    static ByteBuffer compress(ByteBuffer input, String encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, input.remaining() / 3));
+        try (OutputStream encoder = encoder(compressed, encoding)) {
+            ChannelOutput.copy(encoder, input.duplicate());
+        }
+        return toBuffer(compressed.toByteArray());
+    }
+
+    /**
+     * @return a read-only direct copy of a compressed body, as kept in the variant cache
+     */
+    static ByteBuffer toBuffer(byte[] compressed) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(compressed.length);
+        buffer.put(compressed).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @param resource identifies what the entity tag belongs to, such as a file or request target
+     * @return the cached compressed body, or null
+     */
+    static ByteBuffer getVariant(String resource, String etag) {
+        if (VARIANTS == null) return null;
+        ByteBuffer variant = VARIANTS.get(resource + ' ' + etag);
+        return variant == null ? null : variant.duplicate();
+    }
+
+    static void putVariant(String resource, String etag, ByteBuffer body) {
+        if (VARIANTS != null && body.remaining() <= StartupArgs.COMPRESSION_MAX_SIZE) {
+            VARIANTS.put(resource + ' ' + etag, body);
+        }
+    }
+
+    static CompressedVariantCache getVariantCache() {
+        return VARIANTS;
+    }
+
+    static long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    static long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    static long getCompressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    private static final class Encoder extends OutputStream {
+        private final OutputStream out;
+        private final boolean gzip;
+        private final DeflaterPool pool;
+        private final CRC32 crc;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private Deflater deflater;
+        private boolean started = false;
+
+        Encoder(OutputStream out, boolean gzip) {
+            this.out = out;
+            this.gzip = gzip;
+            this.pool = gzip ? GZIP_DEFLATERS : ZLIB_DEFLATERS;
+            this.crc = gzip ? new CRC32() : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len <= 0) return;
+            start();
+            long time = System.nanoTime();
+            deflater.setInput(b, off, len);
+            if (gzip) {
+                crc.update(b, off, len);
+            }
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            compressionNanos.add(System.nanoTime() - time);
+            bytesIn.add(len);
+        }
+
+        /**
+         * Pushes out everything written so far as complete deflate blocks, so streamed responses reach
+         * the client without waiting for the encoder to fill up.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (deflater == null) return;
+            while (deflate(Deflater.SYNC_FLUSH) == buffer.length) {
+                // keep going until the flush has been drained completely
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater == null) {
+                if (started) return;
+                start();
+            }
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(Deflater.NO_FLUSH);
+                }
+                if (gzip) {
+                    int size = (int) deflater.getBytesRead();
+                    int checksum = (int) crc.getValue();
+                    byte[] trailer = {
+                            (byte) checksum, (byte) (checksum >> 8), (byte) (checksum >> 16), (byte) (checksum >> 24),
+                            (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)};
+                    out.write(trailer);
+                    bytesOut.add(trailer.length);
+                }
+            } finally {
+                pool.release(deflater);
+                deflater = null;
+            }
+        }
+
+        private void start() throws IOException {
+            if (deflater != null) return;
+            if (started) {
+                throw new IOException("Encoder closed");
+            }
+            started = true;
+            deflater = pool.acquire();
+            if (gzip) {
+                out.write(GZIP_HEADER);
+                bytesOut.add(GZIP_HEADER.length);
+            }
+        }
+
+        private int deflate(int flush) throws IOException {
+            int n = deflater.deflate(buffer, 0, buffer.length, flush);
+            if (n > 0) {
+                out.write(buffer, 0, n);
+                bytesOut.add(n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Idle deflaters ready for reuse. Deflaters beyond the idle limit are ended right away so their
+     * native memory does not wait for the garbage collector.
+     */
+    private static final class DeflaterPool {
+        private static final int MAX_IDLE = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+
+        private final boolean nowrap;
+        private final Queue<Deflater> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        DeflaterPool(boolean nowrap) {
+            this.nowrap = nowrap;
+        }
+
+        Deflater acquire() {
+            Deflater deflater = idle.poll();
+            if (deflater != null) {
+                idleCount.decrementAndGet();
+                return deflater;
+            }
+            return new Deflater(StartupArgs.COMPRESSION_LEVEL, nowrap);
+        }
+
+        void release(Deflater deflater) {
+            deflater.reset();
+            if (idleCount.incrementAndGet() <= MAX_IDLE) {
+                idle.offer(deflater);
+            } else {
+                idleCount.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+}
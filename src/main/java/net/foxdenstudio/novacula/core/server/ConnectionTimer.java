@@ -0,0 +1,80 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.util.function.Consumer;
+
+/**
+ * A resettable deadline for one connection, tracked by a {@link TimingWheel}. Arming and disarming
+ * are plain volatile writes in the common case, so they are cheap enough to do around every read
+ * and write.
+ */
+class ConnectionTimer {
+
+    enum Phase {
+        HEADER_READ, BODY_READ, WRITE, KEEP_ALIVE, LINGER
+    }
+
+    private final TimingWheel wheel;
+    private final Consumer<Phase> onTimeout;
+    private volatile Phase phase;
+    volatile long deadline = Long.MAX_VALUE;
+
+    // owned by the wheel thread, scheduledDeadline is read by arming threads
+    TimingWheel.Entry entry;
+    volatile long scheduledDeadline = Long.MAX_VALUE;
+
+    ConnectionTimer(TimingWheel wheel, Consumer<Phase> onTimeout) {
+        this.wheel = wheel;
+        this.onTimeout = onTimeout;
+    }
+
+    void arm(Phase phase, long timeoutMillis) {
+        long now = TimingWheel.now();
+        long deadline = now + timeoutMillis;
+        if (deadline < now) {
+            deadline = Long.MAX_VALUE - 1;
+        }
+        this.phase = phase;
+        this.deadline = deadline;
+        if (deadline < scheduledDeadline) {
+            wheel.schedule(this);
+        }
+    }
+
+    void disarm() {
+        this.deadline = Long.MAX_VALUE;
+    }
+
+    Phase getPhase() {
+        return deadline == Long.MAX_VALUE ? null : phase;
+    }
+
+    void expire() {
+        Phase expired = phase;
+        wheel.getMetrics().connectionTimedOut(expired);
+        onTimeout.accept(expired);
+    }
+}
@@ -0,0 +1,120 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the open connections and the requests in flight on them so {@link NovaServer#stop()}
+ * can let running requests finish before closing everything.
+ */
+class ConnectionTracker {
+
+    /**
+     * A client connection that can be asked to shut down.
+     */
+    interface Drainable {
+
+        /**
+         * Closes the connection right away if it is waiting for a request, otherwise once the current
+         * response has been written.
+         */
+        void drain();
+
+        /**
+         * Closes the connection immediately, cutting off whatever it is doing.
+         */
+        void abort();
+    }
+
+    private final Set<Drainable> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean draining = false;
+    private int inFlight = 0;
+    private int completedWhileDraining = 0;
+    private int drainedRequests = 0;
+
+    void add(Drainable connection) {
+        connections.add(connection);
+        if (draining) {
+            connection.drain();
+        }
+    }
+
+    void remove(Drainable connection) {
+        connections.remove(connection);
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    synchronized void requestStarted() {
+        inFlight++;
+    }
+
+    synchronized void requestFinished() {
+        inFlight--;
+        if (draining) {
+            completedWhileDraining++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stops connections from taking further requests and waits for the requests in flight to finish.
+     * The requests that finished in time are available from {@link #getDrainedRequests()} afterwards.
+     *
+     * @return number of requests still running once the timeout passed or the caller was interrupted
+     */
+    synchronized int drain(long timeoutMillis) {
+        draining = true;
+        for (Drainable connection : connections) {
+            connection.drain();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining;
+        try {
+            while (inFlight > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drainedRequests = completedWhileDraining;
+        return inFlight;
+    }
+
+    synchronized int getDrainedRequests() {
+        return drainedRequests;
+    }
+
+    void abortAll() {
+        for (Drainable connection : connections) {
+            connection.abort();
+        }
+        connections.clear();
+    }
+}
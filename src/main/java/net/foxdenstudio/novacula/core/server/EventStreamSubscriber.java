@@ -0,0 +1,256 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A connection streaming the events of one {@link EventStreams.Topic} after its response head. Events
+ * are queued as views of the buffer the topic encoded them into, so fanning an event out copies
+ * nothing. The queue is bounded for clients that do not keep up: once the socket stops taking data
+ * and the queue is full, the client is disconnected rather than buffered for, and catches up from the
+ * topic's recent events when it reconnects with Last-Event-ID. A burst published faster than the
+ * event loop gets to write it does not count against a client whose socket is still draining.
+ * Between events the connection holds no thread and no buffer; a comment line is sent now and then so
+ * proxies keep it open and a vanished client is noticed.
+ */
+class EventStreamSubscriber implements LongLivedConnection, ConnectionTracker.Drainable {
+
+    private static final int MAX_GATHER = 16;
+    private static final ByteBuffer HEARTBEAT = ByteBuffer.allocateDirect(3).put(":\n\n".getBytes(StandardCharsets.ISO_8859_1));
+
+    static {
+        HEARTBEAT.flip();
+    }
+
+    private final EventStreams.Topic topic;
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private NioEventLoop eventLoop;
+    private SocketChannel channel;
+    private TlsChannel tls;
+    private SelectionKey key;
+    private ConnectionTimer heartbeatTimer;
+    private ConnectionTimer writeTimer;
+    private boolean started = false;
+    private boolean flushScheduled = false;
+    private boolean overflowed = false;
+    private boolean stalled = false;
+    private boolean closeAfterWrite = false;
+    private volatile boolean closed = false;
+
+    EventStreamSubscriber(EventStreams.Topic topic) {
+        this.topic = topic;
+    }
+
+    /**
+     * Queues an event. Called by the publishing thread with the topic locked, so this must not block.
+     */
+    void offer(ByteBuffer frame) {
+        boolean schedule;
+        synchronized (this) {
+            if (closed || overflowed) return;
+            if (stalled && queue.size() >= StartupArgs.SSE_MAX_QUEUED_EVENTS) {
+                overflowed = true;
+                queue.clear();
+                if (started) {
+                    eventLoop.execute(this::close);
+                }
+                return;
+            }
+            queue.add(frame.duplicate());
+            schedule = started && !flushScheduled;
+            flushScheduled |= schedule;
+        }
+        if (schedule) {
+            eventLoop.execute(this::flush);
+        }
+    }
+
+    @Override
+    public void start(NioEventLoop eventLoop, SocketChannel channel, TlsChannel tls, SelectionKey key, ByteBuffer buffered) {
+        if (buffered != null) {
+            BufferPool.release(buffered);
+        }
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.tls = tls;
+        this.key = key;
+        this.heartbeatTimer = new ConnectionTimer(eventLoop.getTimingWheel(), phase -> eventLoop.execute(this::heartbeat));
+        this.writeTimer = new ConnectionTimer(eventLoop.getTimingWheel(), phase -> eventLoop.execute(this::close));
+        boolean overflow;
+        synchronized (this) {
+            started = true;
+            overflow = overflowed;
+        }
+        try {
+            key.attach(this);
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            close();
+            return;
+        }
+        if (overflow) {
+            close();
+            return;
+        }
+        eventLoop.getConnectionTracker().add(this);
+        if (StartupArgs.SSE_HEARTBEAT_INTERVAL > 0) {
+            heartbeatTimer.arm(ConnectionTimer.Phase.KEEP_ALIVE, StartupArgs.SSE_HEARTBEAT_INTERVAL);
+        }
+        flush();
+    }
+
+    /**
+     * Clients have nothing to say on an event stream; whatever they send is read and dropped so the
+     * end of the connection is noticed.
+     */
+    @Override
+    public void onReadable() throws IOException {
+        ByteBuffer discard = BufferPool.acquire(BufferPool.MIN_SIZE);
+        try {
+            if ((tls != null ? tls.read(discard) : channel.read(discard)) < 0) {
+                close();
+            } else if (tls != null && tls.hasPendingOutput()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } finally {
+            BufferPool.release(discard);
+        }
+    }
+
+    @Override
+    public boolean hasBufferedInput() {
+        return tls != null && tls.hasBufferedInput();
+    }
+
+    @Override
+    public void onWritable() {
+        flush();
+    }
+
+    @Override
+    public void drain() {
+        eventLoop.execute(() -> {
+            closeAfterWrite = true;
+            flush();
+        });
+    }
+
+    @Override
+    public void abort() {
+        eventLoop.execute(this::close);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            queue.clear();
+        }
+        topic.unsubscribe(this);
+        if (heartbeatTimer != null) {
+            heartbeatTimer.disarm();
+            writeTimer.disarm();
+            eventLoop.getConnectionTracker().remove(this);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                (tls != null ? tls : channel).close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void heartbeat() {
+        if (closed) return;
+        offer(HEARTBEAT);
+        heartbeatTimer.arm(ConnectionTimer.Phase.KEEP_ALIVE, StartupArgs.SSE_HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * Writes the queued events with gathering writes until the queue is empty or the socket is full.
+     */
+    private void flush() {
+        synchronized (this) {
+            flushScheduled = false;
+        }
+        if (closed) return;
+        try {
+            while (true) {
+                int count = 0;
+                synchronized (this) {
+                    for (ByteBuffer frame : queue) {
+                        if (count == MAX_GATHER) break;
+                        gather[count++] = frame;
+                    }
+                }
+                if (count == 0) break;
+                long written = tls != null ? tls.write(gather, 0, count) : channel.write(gather, 0, count);
+                int done = 0;
+                synchronized (this) {
+                    while (done < count && !gather[done].hasRemaining()) {
+                        queue.poll();
+                        done++;
+                    }
+                    stalled = done < count;
+                }
+                Arrays.fill(gather, null);
+                if (done < count) {
+                    if (written > 0 || writeTimer.getPhase() == null) {
+                        writeTimer.arm(ConnectionTimer.Phase.WRITE, StartupArgs.WRITE_TIMEOUT);
+                    }
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (tls != null && !tls.flush()) {
+                writeTimer.arm(ConnectionTimer.Phase.WRITE, StartupArgs.WRITE_TIMEOUT);
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeTimer.disarm();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterWrite) {
+                close();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-sent events for plugins. A plugin subscribes a request to a topic with
+ * {@link net.foxdenstudio.novacula.core.plugins.events.ServerRequestEvent#acceptEventStream(String)}
+ * and publishes to it from anywhere with {@link #publish(String, String, String)}. Every event is
+ * encoded once, into a buffer all subscribers write from. The last events of each topic are kept so a
+ * client that reconnects with a Last-Event-ID header gets what it missed.
+ */
+public final class EventStreams {
+
+    private static final Map<String, Topic> topics = new ConcurrentHashMap<>();
+
+    private EventStreams() {
+    }
+
+    /**
+     * Sends an event to every subscriber of the topic.
+     *
+     * @param event the event type, or null for the default "message" event
+     * @param data  the event data, may span several lines
+     * @return the id the event was sent with
+     */
+    public static long publish(String topic, String event, String data) {
+        StringBuilder frame = new StringBuilder(data.length() + 32);
+        if (event != null) {
+            if (event.indexOf('\r') >= 0 || event.indexOf('\n') >= 0) {
+                throw new IllegalArgumentException("Invalid event type: " + event);
+            }
+            frame.append("event: ").append(event).append('\n');
+        }
+        for (String line : data.split("\r\n|\r|\n", -1)) {
+            frame.append("data: ").append(line).append('\n');
+        }
+        frame.append('\n');
+        return topic(topic).publish(frame.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static long publish(String topic, String data) {
+        return publish(topic, null, data);
+    }
+
+    /**
+     * @return the number of connections currently subscribed to the topic
+     */
+    public static int getSubscriberCount(String topic) {
+        Topic existing = topics.get(topic);
+        return existing != null ? existing.subscribers.size() : 0;
+    }
+
+    static Topic topic(String name) {
+        return topics.computeIfAbsent(name, Topic::new);
+    }
+
+    /**
+     * The subscribers of a topic and a ring of its most recent events.
+     */
+    static final class Topic {
+
+        private final String name;
+        private final Set<EventStreamSubscriber> subscribers = ConcurrentHashMap.newKeySet();
+        private final ByteBuffer[] recent = new ByteBuffer[Math.max(0, StartupArgs.SSE_REPLAY_SIZE)];
+        private final long[] recentIds = new long[recent.length];
+        private int next = 0;
+        private long lastId = 0;
+
+        Topic(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Encodes the event with its id into a direct buffer and queues a view of it on every
+         * subscriber. Holding the lock while doing so keeps the events in id order for everyone.
+         */
+        synchronized long publish(byte[] body) {
+            long id = ++lastId;
+            byte[] idLine = ("id: " + id + "\n").getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer frame = ByteBuffer.allocateDirect(idLine.length + body.length);
+            frame.put(idLine).put(body).flip();
+            frame = frame.asReadOnlyBuffer();
+            if (recent.length > 0) {
+                recent[next] = frame;
+                recentIds[next] = id;
+                next = (next + 1) % recent.length;
+            }
+            for (EventStreamSubscriber subscriber : subscribers) {
+                subscriber.offer(frame);
+            }
+            return id;
+        }
+
+        /**
+         * Adds a subscriber, first queueing the kept events after {@code lastEventId} so nothing is
+         * lost or sent twice between the replay and live events.
+         *
+         * @param lastEventId the id of the last event the client saw, or -1 to start with live events
+         */
+        synchronized void subscribe(EventStreamSubscriber subscriber, long lastEventId) {
+            if (lastEventId >= 0) {
+                for (int i = 0; i < recent.length; i++) {
+                    int slot = (next + i) % recent.length;
+                    if (recent[slot] != null && recentIds[slot] > lastEventId) {
+                        subscriber.offer(recent[slot]);
+                    }
+                }
+            }
+            subscribers.add(subscriber);
+        }
+
+        void unsubscribe(EventStreamSubscriber subscriber) {
+            subscribers.remove(subscriber);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Coalesces the writes of the blocking engine. Small writes, such as a response head and the pieces
+ * of a body, collect in a pooled buffer; they are sent together with the next large buffer in one
+ * gathering write, or on their own when the stream is flushed, so a response that is written in many
+ * small pieces does not turn into as many TCP segments. The buffer goes back to the pool on every
+ * flush, an idle connection holds none.
+ */
+class GatheringOutputStream extends OutputStream implements ChannelOutput {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final OutputStream out;
+    private ByteBuffer pending;
+
+    GatheringOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pending != null && !pending.hasRemaining()) {
+            send(null);
+        }
+        pending().put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len <= 0) return;
+        if (len >= BUFFER_SIZE) {
+            write(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        if (pending != null && len > pending.remaining()) {
+            send(null);
+        }
+        pending().put(b, off, len);
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        send(buffer);
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers) throws IOException {
+        if (pending == null || pending.position() == 0) {
+            ChannelOutput.write(out, buffers);
+            return;
+        }
+        ByteBuffer[] gathered = new ByteBuffer[buffers.length + 1];
+        System.arraycopy(buffers, 0, gathered, 1, buffers.length);
+        gathered[0] = pending;
+        pending.flip();
+        try {
+            ChannelOutput.write(out, gathered);
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        send(null);
+        ChannelOutput.transfer(out, file, position, count);
+    }
+
+    /**
+     * Sends everything collected so far and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        send(null);
+        release();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Writes the collected bytes followed by {@code buffer}, if any, in one gathering write.
+     */
+    private void send(ByteBuffer buffer) throws IOException {
+        if (pending == null || pending.position() == 0) {
+            if (buffer != null) {
+                ChannelOutput.write(out, buffer);
+            }
+            return;
+        }
+        pending.flip();
+        try {
+            if (buffer == null) {
+                ChannelOutput.write(out, pending);
+            } else {
+                ChannelOutput.write(out, new ByteBuffer[]{pending, buffer});
+            }
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        pending.clear();
+    }
+
+    private ByteBuffer pending() {
+        if (pending == null) {
+            pending = BufferPool.acquire(BUFFER_SIZE);
+        }
+        return pending;
+    }
+
+    private void release() {
+        if (pending != null) {
+            BufferPool.release(pending);
+            pending = null;
+        }
+    }
+}
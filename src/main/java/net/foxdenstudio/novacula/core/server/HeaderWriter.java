@@ -0,0 +1,207 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+import net.foxdenstudio.novacula.core.utils.HttpDateTicker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Assembles a response head directly as bytes. Status lines for every known code and common header
+ * lines are encoded once up front and the Date line comes from {@link HttpDateTicker}, so most of a
+ * head is written with array copies; other headers are encoded as ISO-8859-1 without going through
+ * an intermediate String.
+ */
+final class HeaderWriter {
+
+    static final byte[] ACCEPT_RANGES = encode("Accept-Ranges: bytes\r\n");
+    static final byte[] VARY_ACCEPT_ENCODING = encode("Vary: Accept-Encoding\r\n");
+    static final byte[] CONTENT_TYPE_HTML = encode("Content-Type: text/html\r\n");
+    static final byte[] EVENT_STREAM = encode("Content-Type: text/event-stream\r\nCache-Control: no-cache\r\nConnection: close\r\n");
+    static final byte[] UPGRADE_WEBSOCKET = encode("Upgrade: websocket\r\nConnection: Upgrade\r\n");
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+    private static final byte[][] STATUS_LINES = new byte[600][];
+
+    private static volatile ServerLine serverLine = new ServerLine("");
+
+    static {
+        for (int status = 0; status < STATUS_LINES.length; status++) {
+            String reply = HTTPHeaderParser.getHttpReply(status);
+            if (reply != null) {
+                STATUS_LINES[status] = encode("HTTP/1.1 " + reply + "\r\n");
+            }
+        }
+    }
+
+    private byte[] buffer;
+    private int count = 0;
+
+    HeaderWriter() {
+        this(256);
+    }
+
+    HeaderWriter(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * @return the encoded status line, with an empty reason phrase for unknown codes
+     */
+    static byte[] statusLine(int status) {
+        byte[] line = status >= 0 && status < STATUS_LINES.length ? STATUS_LINES[status] : null;
+        return line != null ? line : encode("HTTP/1.1 " + status + " \r\n");
+    }
+
+    HeaderWriter status(int status) {
+        return line(statusLine(status));
+    }
+
+    HeaderWriter date() {
+        ensureCapacity(HttpDateTicker.getDateLineLength());
+        count += HttpDateTicker.copyDateLine(buffer, count);
+        return this;
+    }
+
+    /**
+     * Writes the Server line. The encoded line is kept for the last name used, which in practice is
+     * the only one.
+     */
+    HeaderWriter server(String serverName) {
+        ServerLine line = serverLine;
+        if (!line.name.equals(serverName)) {
+            line = new ServerLine(serverName);
+            serverLine = line;
+        }
+        return line(line.encoded);
+    }
+
+    /**
+     * Writes pre-encoded bytes, which must be one or more complete header lines.
+     */
+    HeaderWriter line(byte[] encoded) {
+        ensureCapacity(encoded.length);
+        System.arraycopy(encoded, 0, buffer, count, encoded.length);
+        count += encoded.length;
+        return this;
+    }
+
+    /**
+     * Writes complete header lines given as text, which must be ISO-8859-1.
+     */
+    HeaderWriter lines(String lines) {
+        ensureCapacity(lines.length());
+        put(lines);
+        return this;
+    }
+
+    HeaderWriter header(String name, String value) {
+        ensureCapacity(name.length() + value.length() + 4);
+        put(name);
+        put(HEADER_SEPARATOR);
+        put(value);
+        put(CRLF);
+        return this;
+    }
+
+    /**
+     * Writes a header with a non-negative numeric value, such as Content-Length.
+     */
+    HeaderWriter header(String name, long value) {
+        ensureCapacity(name.length() + 24);
+        put(name);
+        put(HEADER_SEPARATOR);
+        int start = count;
+        do {
+            buffer[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+        put(CRLF);
+        return this;
+    }
+
+    /**
+     * Ends the head with the empty line.
+     */
+    HeaderWriter end() {
+        ensureCapacity(2);
+        put(CRLF);
+        return this;
+    }
+
+    int size() {
+        return count;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, count);
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void put(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            buffer[count++] = c < 256 ? (byte) c : (byte) '?';
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+        }
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static final class ServerLine {
+        private final String name;
+        private final byte[] encoded;
+
+        ServerLine(String name) {
+            this.name = name;
+            this.encoded = encode("Server: " + name + "\r\n");
+        }
+    }
+}
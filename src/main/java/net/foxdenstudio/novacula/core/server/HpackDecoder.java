@@ -0,0 +1,194 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks. One decoder belongs to one connection and keeps its dynamic table
+ * across all header blocks the client sends on it, every block has to be decoded in order, including
+ * those of streams that are refused.
+ */
+final class HpackDecoder {
+
+    private final int maxTableSize;
+    private final int maxHeaderListSize;
+    private String[][] entries = new String[16][];
+    private int head = 0;
+    private int count = 0;
+    private int tableSize = 0;
+    private int tableCapacity;
+
+    private byte[] block;
+    private int position;
+    private int limit;
+
+    /**
+     * @param maxTableSize      the largest dynamic table the client may use, as advertised in SETTINGS
+     * @param maxHeaderListSize the largest decoded header list accepted, in HPACK size units
+     */
+    HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.maxTableSize = maxTableSize;
+        this.tableCapacity = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * @return the header fields as name/value pairs, in the order they were sent
+     */
+    List<String[]> decode(byte[] block, int off, int len) throws Http2Exception {
+        this.block = block;
+        this.position = off;
+        this.limit = off + len;
+        List<String[]> headers = new ArrayList<>();
+        int listSize = 0;
+        boolean fieldSeen = false;
+        while (position < limit) {
+            int b = block[position] & 0xFF;
+            String[] field;
+            if ((b & 0x80) != 0) {
+                field = lookup(readInteger(7));
+            } else if ((b & 0x40) != 0) {
+                field = readLiteral(6);
+                add(field);
+            } else if ((b & 0x20) != 0) {
+                if (fieldSeen) {
+                    throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Table size update after a header field");
+                }
+                int size = readInteger(5);
+                if (size > maxTableSize) {
+                    throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Table size update above the limit");
+                }
+                tableCapacity = size;
+                evict(0);
+                continue;
+            } else {
+                // literal without indexing or never indexed, both have a 4-bit prefix
+                field = readLiteral(4);
+            }
+            fieldSeen = true;
+            listSize += field[0].length() + field[1].length() + Hpack.ENTRY_OVERHEAD;
+            if (listSize > maxHeaderListSize) {
+                throw Http2Exception.connection(Http2Exception.ENHANCE_YOUR_CALM, "Header list too large");
+            }
+            headers.add(field);
+        }
+        this.block = null;
+        return headers;
+    }
+
+    private String[] lookup(int index) throws Http2Exception {
+        if (index <= 0) {
+            throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Invalid header index " + index);
+        }
+        if (index <= Hpack.STATIC_TABLE.length) {
+            return Hpack.STATIC_TABLE[index - 1];
+        }
+        int dynamic = index - Hpack.STATIC_TABLE.length - 1;
+        if (dynamic >= count) {
+            throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Invalid header index " + index);
+        }
+        return entries[(head - 1 - dynamic + entries.length) % entries.length];
+    }
+
+    private String[] readLiteral(int prefixBits) throws Http2Exception {
+        int index = readInteger(prefixBits);
+        String name = index == 0 ? readString() : lookup(index)[0];
+        return new String[]{name, readString()};
+    }
+
+    private void add(String[] field) {
+        int size = field[0].length() + field[1].length() + Hpack.ENTRY_OVERHEAD;
+        evict(size);
+        if (size > tableCapacity) {
+            // an entry larger than the table empties it and is not added
+            return;
+        }
+        if (count == entries.length) {
+            String[][] grown = new String[entries.length * 2][];
+            for (int i = 0; i < count; i++) {
+                grown[i] = entries[(head - count + i + entries.length) % entries.length];
+            }
+            entries = grown;
+            head = count;
+        }
+        entries[head] = field;
+        head = (head + 1) % entries.length;
+        count++;
+        tableSize += size;
+    }
+
+    /**
+     * Drops the oldest entries until {@code incoming} more bytes fit into the table.
+     */
+    private void evict(int incoming) {
+        while (count > 0 && tableSize + incoming > tableCapacity) {
+            int oldest = (head - count + entries.length) % entries.length;
+            String[] field = entries[oldest];
+            entries[oldest] = null;
+            count--;
+            tableSize -= field[0].length() + field[1].length() + Hpack.ENTRY_OVERHEAD;
+        }
+    }
+
+    private int readInteger(int prefixBits) throws Http2Exception {
+        int max = (1 << prefixBits) - 1;
+        int value = block[position++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (position >= limit) {
+                throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Truncated integer");
+            }
+            b = block[position++] & 0xFF;
+            if (shift > 21) {
+                throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Integer too large");
+            }
+            value += (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private String readString() throws Http2Exception {
+        if (position >= limit) {
+            throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Truncated string");
+        }
+        boolean huffman = (block[position] & 0x80) != 0;
+        int length = readInteger(7);
+        if (length > limit - position) {
+            throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "Truncated string");
+        }
+        String value = huffman ? Hpack.huffmanDecode(block, position, length)
+                : new String(block, position, length, StandardCharsets.ISO_8859_1);
+        position += length;
+        return value;
+    }
+}
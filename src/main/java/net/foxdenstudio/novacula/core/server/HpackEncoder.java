@@ -0,0 +1,170 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes response headers with HPACK. Fields that repeat across responses, such as Server or
+ * Content-Type, go into the dynamic table so later responses send them as a single index; fields that
+ * change with every response are sent as literals so they do not push the useful entries out, and
+ * cookies are never indexed. The encoder is shared by all streams of a connection, blocks have to be
+ * written in the order they were encoded.
+ */
+final class HpackEncoder {
+
+    private static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final Map<String, Long> fields = new HashMap<>();
+    private final Map<String, Long> names = new HashMap<>();
+    private long inserted = 0;
+    private int tableSize = 0;
+    private int capacity = DEFAULT_TABLE_SIZE;
+    private boolean capacityChanged = false;
+
+    /**
+     * Applies the client's SETTINGS_HEADER_TABLE_SIZE. The encoder never uses more than the default
+     * table size, even if the client allows it.
+     */
+    void setMaxTableSize(int maxTableSize) {
+        int newCapacity = Math.min(maxTableSize, DEFAULT_TABLE_SIZE);
+        if (newCapacity != capacity) {
+            capacity = newCapacity;
+            capacityChanged = true;
+            evict(0);
+        }
+    }
+
+    void encode(List<String[]> headers, ByteArrayOutputStream out) {
+        if (capacityChanged) {
+            Hpack.writeInteger(out, 5, 0x20, capacity);
+            capacityChanged = false;
+        }
+        for (String[] header : headers) {
+            String name = header[0];
+            String value = header[1];
+            String key = name + ':' + value;
+
+            Integer staticIndex = Hpack.STATIC_FIELDS.get(key);
+            if (staticIndex != null && !value.isEmpty()) {
+                Hpack.writeInteger(out, 7, 0x80, staticIndex);
+                continue;
+            }
+            Long dynamic = fields.get(key);
+            if (dynamic != null) {
+                Hpack.writeInteger(out, 7, 0x80, index(dynamic));
+                continue;
+            }
+
+            int nameIndex = 0;
+            Integer staticName = Hpack.STATIC_NAMES.get(name);
+            if (staticName != null) {
+                nameIndex = staticName;
+            } else {
+                Long dynamicName = names.get(name);
+                if (dynamicName != null) {
+                    nameIndex = index(dynamicName);
+                }
+            }
+            if (isSensitive(name)) {
+                Hpack.writeInteger(out, 4, 0x10, nameIndex);
+            } else if (isVolatile(name)) {
+                Hpack.writeInteger(out, 4, 0x00, nameIndex);
+            } else {
+                Hpack.writeInteger(out, 6, 0x40, nameIndex);
+                add(name, value, key);
+            }
+            if (nameIndex == 0) {
+                Hpack.writeString(out, name);
+            }
+            Hpack.writeString(out, value);
+        }
+    }
+
+    private int index(long insertion) {
+        // the newest entry comes right after the static table
+        return Hpack.STATIC_TABLE.length + 1 + (int) (inserted - insertion);
+    }
+
+    private void add(String name, String value, String key) {
+        int size = name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+        evict(size);
+        if (size > capacity) return;
+        long insertion = ++inserted;
+        entries.addLast(new Entry(name, key, size, insertion));
+        fields.put(key, insertion);
+        names.put(name, insertion);
+        tableSize += size;
+    }
+
+    private void evict(int incoming) {
+        while (!entries.isEmpty() && tableSize + incoming > capacity) {
+            Entry oldest = entries.removeFirst();
+            tableSize -= oldest.size;
+            fields.remove(oldest.key, oldest.insertion);
+            names.remove(oldest.name, oldest.insertion);
+        }
+    }
+
+    private static boolean isSensitive(String name) {
+        return name.equals("set-cookie") || name.equals("authorization") || name.equals("proxy-authenticate");
+    }
+
+    private static boolean isVolatile(String name) {
+        switch (name) {
+            case ":status":
+            case "date":
+            case "content-length":
+            case "content-range":
+            case "etag":
+            case "last-modified":
+            case "expires":
+            case "age":
+            case "location":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static class Entry {
+        private final String name;
+        private final String key;
+        private final int size;
+        private final long insertion;
+
+        Entry(String name, String key, int size, long insertion) {
+            this.name = name;
+            this.key = key;
+            this.size = size;
+            this.insertion = insertion;
+        }
+    }
+}
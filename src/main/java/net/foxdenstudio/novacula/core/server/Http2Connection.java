@@ -0,0 +1,958 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An HTTP/2 connection over cleartext TCP (h2c), entered either with the connection preface right
+ * away or by upgrading an HTTP/1.1 request. One thread reads the frames, every stream is answered on
+ * a worker of its own as a regular request, so a slow response does not hold up the others. Writes
+ * from all streams go through one lock, the flow control windows decide how far each stream may get
+ * ahead of the client.
+ */
+class Http2Connection implements Runnable, ConnectionTracker.Drainable {
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\n" +
+            "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final int FRAME_SIZE = 16384;
+    private static final int HEADER_TABLE_SIZE = 4096;
+
+    private final SocketChannel channel;
+    private final TlsChannel tls;
+    private final InputStream in;
+    private final OutputStream out;
+    private final String serverName;
+    private final WorkerPool workerPool;
+    private final ConnectionTracker connectionTracker;
+    private final ConnectionTimer readTimer;
+    private final ConnectionTimer writeTimer;
+    private final int streamWindowSize = Math.max(DEFAULT_WINDOW_SIZE, StartupArgs.HTTP2_WINDOW_SIZE);
+    private final int connectionWindowSize = (int) Math.min(MAX_WINDOW_SIZE, 4L * streamWindowSize);
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+    private final HpackDecoder decoder = new HpackDecoder(HEADER_TABLE_SIZE, 2 * StartupArgs.MAX_REQUEST_HEADER_SIZE);
+    private final Object writeLock = new Object();
+    private Object clientKey;
+    private RequestTiming headerTiming;
+
+    // guarded by writeLock
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream(256);
+    private final byte[] frameHeader = new byte[9];
+
+    // send windows, guarded by this
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int peerMaxFrameSize = FRAME_SIZE;
+
+    // receive window of the connection, guarded by this
+    private int receiveWindow;
+    private int unacknowledged = 0;
+
+    // owned by the reading thread
+    private final ByteArrayOutputStream headerFragments = new ByteArrayOutputStream(256);
+    private int headerStreamId = 0;
+    private int headerFlags = 0;
+    private int lastStreamId = 0;
+    private byte[] payload = new byte[FRAME_SIZE];
+    private HTTPHeaderParser upgradeRequest;
+    private byte[] upgradeSettings;
+    private boolean prefaceRead = false;
+
+    private int activeStreams = 0;
+    private volatile boolean goingAway = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param in the connection's input, positioned at the client preface or, if the preface was
+     *           already checked with {@link #matchPreface(InputStream)}, right after it
+     */
+    Http2Connection(SocketChannel channel, TlsChannel tls, InputStream in, String serverName, WorkerPool workerPool,
+                    TimingWheel timingWheel, ConnectionTracker connectionTracker) {
+        this.channel = channel;
+        this.tls = tls;
+        this.in = in;
+        this.serverName = serverName;
+        this.workerPool = workerPool;
+        this.connectionTracker = connectionTracker;
+        this.readTimer = new ConnectionTimer(timingWheel, phase -> abort());
+        this.writeTimer = new ConnectionTimer(timingWheel, phase -> abort());
+        this.out = new GatheringOutputStream(new TimedOutputStream(SocketChannelStreams.output(tls != null ? tls : channel), writeTimer, StartupArgs.WRITE_TIMEOUT));
+        this.receiveWindow = DEFAULT_WINDOW_SIZE;
+    }
+
+    /**
+     * Continues the connection with HTTP/2 after the given request asked for it in an Upgrade header.
+     * The request becomes stream 1 and is answered over HTTP/2.
+     */
+    Http2Connection upgradeFrom(HTTPHeaderParser request) {
+        this.upgradeRequest = request;
+        this.upgradeSettings = Base64.getUrlDecoder().decode(request.getHeader("http2-settings").trim());
+        return this;
+    }
+
+    /**
+     * Marks the client preface as read by the caller.
+     */
+    Http2Connection prefaceRead() {
+        this.prefaceRead = true;
+        return this;
+    }
+
+    /**
+     * @return whether the request asks to continue the connection with h2c and can be answered that
+     * way; requests with a body stay on HTTP/1.1
+     */
+    static boolean isUpgradeRequest(HTTPHeaderParser request) {
+        if (!StartupArgs.HTTP2 || request.hasBody()) return false;
+        String upgrade = request.getHeader("upgrade");
+        String connection = request.getHeader("connection");
+        String settings = request.getHeader("http2-settings");
+        if (upgrade == null || connection == null || settings == null) return false;
+        if (!containsToken(upgrade, "h2c") || !containsToken(connection, "upgrade") || !containsToken(connection, "http2-settings")) {
+            return false;
+        }
+        try {
+            return Base64.getUrlDecoder().decode(settings.trim()).length % 6 == 0;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether a fresh connection starts with the HTTP/2 preface, reading no further than the
+     * first byte that differs. The stream is left after the preface if it matched, and reset to where
+     * it was otherwise.
+     */
+    static boolean matchPreface(InputStream in) throws IOException {
+        in.mark(PREFACE.length);
+        for (byte b : PREFACE) {
+            if (in.read() != (b & 0xFF)) {
+                in.reset();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the start of the bytes read so far on a fresh connection against the HTTP/2 preface.
+     *
+     * @return 1 if they start with the preface, 0 if they are too short to tell and -1 if they do not
+     */
+    static int matchPreface(ByteBuffer buffer, int length) {
+        int n = Math.min(length, PREFACE.length);
+        for (int i = 0; i < n; i++) {
+            if (buffer.get(i) != PREFACE[i]) return -1;
+        }
+        return n == PREFACE.length ? 1 : 0;
+    }
+
+    private static boolean containsToken(String header, String token) {
+        for (String part : header.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        connectionTracker.add(this);
+        try {
+            if (upgradeRequest != null) {
+                synchronized (writeLock) {
+                    out.write(SWITCHING_PROTOCOLS);
+                }
+            }
+            writeSettings();
+            if (upgradeRequest != null) {
+                applySettings(upgradeSettings, upgradeSettings.length);
+                lastStreamId = 1;
+                HTTPHeaderParser request = upgradeRequest;
+                upgradeRequest = null;
+                startStream(1, request, 200, true, new RequestTiming());
+            }
+            if (!prefaceRead) {
+                readTimer.arm(ConnectionTimer.Phase.HEADER_READ, StartupArgs.HEADER_READ_TIMEOUT);
+                byte[] preface = new byte[PREFACE.length];
+                readFully(preface, preface.length);
+                if (!Arrays.equals(preface, PREFACE)) {
+                    throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+                }
+            }
+            boolean first = true;
+            while (readFrame(first)) {
+                first = false;
+            }
+        } catch (Http2Exception e) {
+            goAway(e.getErrorCode());
+        } catch (IOException e) {
+            if (!closed && !(e instanceof EOFException)) e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops taking new streams. The connection closes once the streams already started are answered.
+     */
+    @Override
+    public void drain() {
+        goingAway = true;
+        goAway(Http2Exception.NO_ERROR);
+        boolean idle;
+        synchronized (this) {
+            idle = activeStreams == 0;
+        }
+        if (idle) {
+            close();
+        }
+    }
+
+    @Override
+    public void abort() {
+        close();
+    }
+
+    private void close() {
+        closed = true;
+        readTimer.disarm();
+        writeTimer.disarm();
+        synchronized (this) {
+            notifyAll();
+        }
+        for (Http2Stream stream : streams.values()) {
+            stream.reset();
+        }
+        try {
+            (tls != null ? tls : channel).close();
+        } catch (IOException ignored) {
+        }
+        connectionTracker.remove(this);
+    }
+
+    /**
+     * Reads and handles one frame.
+     *
+     * @return false if the client closed the connection
+     */
+    private boolean readFrame(boolean first) throws IOException {
+        boolean idle;
+        synchronized (this) {
+            idle = activeStreams == 0;
+        }
+        if (idle) {
+            readTimer.arm(ConnectionTimer.Phase.KEEP_ALIVE, StartupArgs.HTTP2_IDLE_TIMEOUT);
+        } else {
+            readTimer.disarm();
+        }
+        int b = in.read();
+        if (b < 0) return false;
+        readTimer.arm(ConnectionTimer.Phase.HEADER_READ, StartupArgs.HEADER_READ_TIMEOUT);
+        frameHeader[0] = (byte) b;
+        readFully(frameHeader, 1, 8);
+        int length = (frameHeader[0] & 0xFF) << 16 | (frameHeader[1] & 0xFF) << 8 | frameHeader[2] & 0xFF;
+        int type = frameHeader[3] & 0xFF;
+        int flags = frameHeader[4] & 0xFF;
+        int streamId = readInt(frameHeader, 5) & 0x7FFFFFFF;
+        if (length > FRAME_SIZE) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "Frame too large: " + length);
+        }
+        readFully(payload, length);
+        readTimer.disarm();
+
+        if (first && (type != SETTINGS || (flags & FLAG_ACK) != 0)) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Connection preface lacks SETTINGS");
+        }
+        if (headerStreamId != 0 && (type != CONTINUATION || streamId != headerStreamId)) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION");
+        }
+        try {
+            switch (type) {
+                case DATA:
+                    onData(streamId, flags, length);
+                    break;
+                case HEADERS:
+                    onHeaders(streamId, flags, length);
+                    break;
+                case PRIORITY:
+                    if (streamId == 0) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                    }
+                    if (length != 5) {
+                        throw Http2Exception.stream(streamId, Http2Exception.FRAME_SIZE_ERROR, "Invalid PRIORITY frame");
+                    }
+                    break;
+                case RST_STREAM:
+                    onReset(streamId, length);
+                    break;
+                case SETTINGS:
+                    onSettings(streamId, flags, length);
+                    break;
+                case PUSH_PROMISE:
+                    throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from client");
+                case PING:
+                    onPing(streamId, flags, length);
+                    break;
+                case GOAWAY:
+                    if (streamId != 0) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream");
+                    }
+                    break;
+                case WINDOW_UPDATE:
+                    onWindowUpdate(streamId, length);
+                    break;
+                case CONTINUATION:
+                    onContinuation(streamId, flags, length);
+                    break;
+                default:
+                    // unknown frame types are ignored
+            }
+        } catch (Http2Exception e) {
+            if (e.getStreamId() == 0) throw e;
+            Http2Stream stream = streams.get(e.getStreamId());
+            if (stream != null) {
+                stream.reset();
+            }
+            resetStream(e.getStreamId(), e.getErrorCode());
+        }
+        return true;
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        if (streamId > lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+        }
+        int padding = padding(flags, length);
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        synchronized (this) {
+            receiveWindow -= length;
+            if (receiveWindow < 0) {
+                throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "Connection receive window exceeded");
+            }
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            // the stream has already been answered, what the client still sends is dropped
+            consumed(null, length);
+            return;
+        }
+        stream.receiveData(payload, offset, length - offset - padding, length, (flags & FLAG_END_STREAM) != 0);
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "HEADERS on invalid stream " + streamId);
+        }
+        int padding = padding(flags, length);
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (offset + padding > length) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Invalid HEADERS padding");
+        }
+        headerTiming = new RequestTiming();
+        headerFragments.reset();
+        headerFragments.write(payload, offset, length - offset - padding);
+        headerStreamId = streamId;
+        headerFlags = flags;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, int length) throws IOException {
+        if (headerStreamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        headerFragments.write(payload, 0, length);
+        if (headerFragments.size() > 4 * StartupArgs.MAX_REQUEST_HEADER_SIZE) {
+            throw Http2Exception.connection(Http2Exception.ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws IOException {
+        int streamId = headerStreamId;
+        boolean endStream = (headerFlags & FLAG_END_STREAM) != 0;
+        headerStreamId = 0;
+        // the block is decoded even if the stream is refused, the client's encoder has already
+        // updated its table for it
+        List<String[]> fields = decoder.decode(headerFragments.toByteArray(), 0, headerFragments.size());
+
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            // trailers, which are not passed on
+            if (!endStream) {
+                throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Trailers without END_STREAM");
+            }
+            stream.receiveData(payload, 0, 0, 0, true);
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+        }
+        lastStreamId = streamId;
+        if (goingAway) return;
+        synchronized (this) {
+            if (activeStreams >= StartupArgs.HTTP2_MAX_CONCURRENT_STREAMS) {
+                throw Http2Exception.stream(streamId, Http2Exception.REFUSED_STREAM, "Too many streams");
+            }
+        }
+
+        String head = toRequestHead(streamId, fields);
+        HTTPHeaderParser request = new HTTPHeaderParser(new ByteArrayInputStream(head.getBytes(StandardCharsets.ISO_8859_1)));
+        int status = request.parseRequest();
+        headerTiming.parsed();
+        startStream(streamId, request, status == 0 ? 400 : status, endStream, headerTiming);
+    }
+
+    private void startStream(int streamId, HTTPHeaderParser request, int status, boolean endStream, RequestTiming timing) throws IOException {
+        Http2Stream stream = new Http2Stream(this, streamId, peerInitialWindowSize(), streamWindowSize,
+                "HEAD".equals(request.getMethod()), endStream);
+        synchronized (this) {
+            activeStreams++;
+        }
+        streams.put(streamId, stream);
+        connectionTracker.requestStarted();
+        Runnable task = () -> stream.serve(request, status, serverName, timing);
+        if (status == 200 && RateLimiter.ENABLED) {
+            if (clientKey == null) {
+                clientKey = RateLimiter.clientKey(channel);
+            }
+            int retryAfter = RateLimiter.checkRequest(clientKey, request);
+            if (retryAfter > 0) {
+                task = () -> stream.reject(RateLimiter.tooManyRequests(retryAfter));
+            }
+        }
+        if (!workerPool.tryExecute(task)) {
+            streams.remove(streamId);
+            streamFinished();
+            resetStream(streamId, Http2Exception.REFUSED_STREAM);
+        }
+    }
+
+    /**
+     * Rewrites the header fields of a stream as an HTTP/1.1 style request head, which is what the
+     * rest of the server understands. The version is given as 2.0.
+     */
+    private static String toRequestHead(int streamId, List<String[]> fields) throws Http2Exception {
+        String method = null, path = null, scheme = null, authority = null;
+        StringBuilder headers = new StringBuilder(256);
+        StringBuilder cookies = null;
+        boolean host = false;
+        boolean regular = false;
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            if (!isValidValue(value)) {
+                throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Invalid value in " + name);
+            }
+            if (name.startsWith(":")) {
+                if (regular) {
+                    throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Pseudo-header after regular header");
+                }
+                boolean duplicate;
+                switch (name) {
+                    case ":method":
+                        duplicate = method != null;
+                        method = value;
+                        break;
+                    case ":path":
+                        duplicate = path != null;
+                        path = value;
+                        break;
+                    case ":scheme":
+                        duplicate = scheme != null;
+                        scheme = value;
+                        break;
+                    case ":authority":
+                        duplicate = authority != null;
+                        authority = value;
+                        break;
+                    default:
+                        throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Unknown pseudo-header " + name);
+                }
+                if (duplicate) {
+                    throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Duplicate " + name);
+                }
+                continue;
+            }
+            regular = true;
+            if (!name.equals(name.toLowerCase()) || name.isEmpty()) {
+                throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Invalid header name " + name);
+            }
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Connection-specific header " + name);
+                case "te":
+                    if (!value.equals("trailers")) {
+                        throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Invalid TE header");
+                    }
+                    continue;
+                case "cookie":
+                    cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+                    continue;
+                case "host":
+                    host = true;
+                    break;
+                default:
+            }
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (method == null || path == null || scheme == null || path.isEmpty() || method.indexOf(' ') >= 0 || path.indexOf(' ') >= 0) {
+            throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Missing or invalid pseudo-headers");
+        }
+        if (cookies != null) {
+            headers.append("cookie: ").append(cookies).append("\r\n");
+        }
+        if (!host && authority != null) {
+            headers.append("host: ").append(authority).append("\r\n");
+        }
+        return method + ' ' + path + " HTTP/2.0\r\n" + headers + "\r\n";
+    }
+
+    private static boolean isValidValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) return false;
+        }
+        return true;
+    }
+
+    private void onReset(int streamId, int length) throws IOException {
+        if (streamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (length != 4) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+        }
+        if (streamId > lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.reset();
+        }
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+        }
+        applySettings(payload, length);
+        writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+    }
+
+    private void applySettings(byte[] settings, int length) throws IOException {
+        for (int i = 0; i < length; i += 6) {
+            int id = (settings[i] & 0xFF) << 8 | settings[i + 1] & 0xFF;
+            long value = readInt(settings, i + 2) & 0xFFFFFFFFL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW_SIZE) {
+                        throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        int delta = (int) value - peerInitialWindowSize;
+                        peerInitialWindowSize = (int) value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                                throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+                            }
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < FRAME_SIZE || value > 0xFFFFFF) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // SETTINGS_MAX_CONCURRENT_STREAMS only limits pushed streams, which are not used,
+                    // other settings are advisory or unknown
+            }
+        }
+    }
+
+    private void onPing(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (length != 8) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "Invalid PING frame");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        }
+        int increment = readInt(payload, 0) & 0x7FFFFFFF;
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Zero window increment");
+            }
+            throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "Zero window increment");
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW_SIZE) {
+                    throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    if (streamId > lastStreamId) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+                    }
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                    throw Http2Exception.stream(streamId, Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private int padding(int flags, int length) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) return 0;
+        if (length < 1 || (payload[0] & 0xFF) >= length) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+        }
+        return payload[0] & 0xFF;
+    }
+
+    int peerInitialWindowSize() {
+        synchronized (this) {
+            return peerInitialWindowSize;
+        }
+    }
+
+    int getPeerMaxFrameSize() {
+        return peerMaxFrameSize;
+    }
+
+    /**
+     * Waits until the stream and the connection may send at least one byte and takes up to
+     * {@code wanted} bytes of both windows.
+     */
+    synchronized int reserveWindow(Http2Stream stream, int wanted) throws IOException {
+        long deadline = TimingWheel.now() + StartupArgs.WRITE_TIMEOUT;
+        while (stream.sendWindow <= 0 || sendWindow <= 0) {
+            if (closed || stream.isReset()) {
+                throw new IOException("Stream " + stream.id + " was reset");
+            }
+            long remaining = deadline - TimingWheel.now();
+            if (remaining <= 0) {
+                throw new IOException("Timed out waiting for the flow control window");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the flow control window");
+            }
+        }
+        int count = (int) Math.min(wanted, Math.min(stream.sendWindow, sendWindow));
+        stream.sendWindow -= count;
+        sendWindow -= count;
+        return count;
+    }
+
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * Records that {@code count} bytes of received DATA have been used up and opens the windows again
+     * once enough has piled up.
+     *
+     * @param stream the stream to credit as well, or null if it is finished
+     */
+    void consumed(Http2Stream stream, int count) throws IOException {
+        if (count <= 0) return;
+        int connectionIncrement = 0;
+        synchronized (this) {
+            unacknowledged += count;
+            if (unacknowledged >= connectionWindowSize / 2) {
+                connectionIncrement = unacknowledged;
+                receiveWindow += unacknowledged;
+                unacknowledged = 0;
+            }
+        }
+        int streamIncrement = stream == null ? 0 : stream.consumed(count);
+        if (connectionIncrement > 0) {
+            writeWindowUpdate(0, connectionIncrement);
+        }
+        if (streamIncrement > 0) {
+            writeWindowUpdate(stream.id, streamIncrement);
+        }
+    }
+
+    /**
+     * Called by a stream once its response is complete.
+     *
+     * @param draining true if the stream stays until the client has sent the rest of the request body,
+     *                 otherwise it is reset if the client is not done yet
+     */
+    void streamFinished(Http2Stream stream, boolean draining) {
+        if (!draining) {
+            if (streams.remove(stream.id) != null && !stream.isRemoteClosed() && !stream.isReset()) {
+                resetStream(stream.id, Http2Exception.NO_ERROR);
+            }
+        }
+        streamFinished();
+    }
+
+    /**
+     * Drops a stream that was kept to drain its request body.
+     */
+    void forget(Http2Stream stream) {
+        streams.remove(stream.id);
+    }
+
+    private void streamFinished() {
+        boolean idle;
+        synchronized (this) {
+            idle = --activeStreams == 0;
+        }
+        connectionTracker.requestFinished();
+        if (idle && goingAway) {
+            close();
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[3 * 6];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, StartupArgs.HTTP2_MAX_CONCURRENT_STREAMS);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, streamWindowSize);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, 2 * StartupArgs.MAX_REQUEST_HEADER_SIZE);
+        synchronized (writeLock) {
+            writeFrameHeader(settings.length, SETTINGS, 0, 0);
+            out.write(settings);
+            if (connectionWindowSize > DEFAULT_WINDOW_SIZE) {
+                synchronized (this) {
+                    receiveWindow = connectionWindowSize;
+                }
+                writeFrameHeader(4, WINDOW_UPDATE, 0, 0);
+                out.write(intBytes(connectionWindowSize - DEFAULT_WINDOW_SIZE));
+            }
+            out.flush();
+        }
+    }
+
+    private static void putSetting(byte[] settings, int offset, int id, int value) {
+        settings[offset] = (byte) (id >>> 8);
+        settings[offset + 1] = (byte) id;
+        System.arraycopy(intBytes(value), 0, settings, offset + 2, 4);
+    }
+
+    /**
+     * Encodes and writes a response head, split into CONTINUATION frames if it is larger than a frame.
+     */
+    void writeHeaders(int streamId, List<String[]> fields, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            checkOpen();
+            headerBlock.reset();
+            encoder.encode(fields, headerBlock);
+            byte[] block = headerBlock.toByteArray();
+            int maxFrameSize = peerMaxFrameSize;
+            int offset = 0;
+            int type = HEADERS;
+            do {
+                int length = Math.min(maxFrameSize, block.length - offset);
+                int flags = offset + length == block.length ? FLAG_END_HEADERS : 0;
+                if (type == HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrameHeader(length, type, flags, streamId);
+                out.write(block, offset, length);
+                offset += length;
+                type = CONTINUATION;
+            } while (offset < block.length);
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes a DATA frame, the caller has to have reserved the flow control window for it.
+     */
+    void writeData(int streamId, byte[] data, int offset, int length, boolean endStream) throws IOException {
+        writeFrame(DATA, endStream ? FLAG_END_STREAM : 0, streamId, data, offset, length);
+    }
+
+    void resetStream(int streamId, int errorCode) {
+        try {
+            writeFrame(RST_STREAM, 0, streamId, intBytes(errorCode), 0, 4);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(WINDOW_UPDATE, 0, streamId, intBytes(increment), 0, 4);
+    }
+
+    private void goAway(int errorCode) {
+        byte[] goAway = new byte[8];
+        System.arraycopy(intBytes(lastStreamId), 0, goAway, 0, 4);
+        System.arraycopy(intBytes(errorCode), 0, goAway, 4, 4);
+        try {
+            writeFrame(GOAWAY, 0, 0, goAway, 0, goAway.length);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] data, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            checkOpen();
+            writeFrameHeader(length, type, flags, streamId);
+            out.write(data, offset, length);
+            out.flush();
+        }
+    }
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        System.arraycopy(intBytes(streamId), 0, header, 5, 4);
+        out.write(header);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        readFully(buffer, 0, length);
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = in.read(buffer, offset, length);
+            if (count < 0) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8 | b[offset + 3] & 0xFF;
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+}
@@ -0,0 +1,516 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One HTTP/2 stream, answered like an HTTP/1.1 request. The request body is handed to the plugin
+ * through a pipe the reading thread fills with DATA frames, and the response the plugin writes is
+ * translated back: the head becomes a HEADERS frame, the body is cut into DATA frames as the flow
+ * control windows allow.
+ */
+final class Http2Stream {
+
+    private static final int MAX_RESPONSE_HEAD_SIZE = 64 * 1024;
+
+    final int id;
+    private final Http2Connection connection;
+    private final boolean headRequest;
+    private final int windowSize;
+    private final BodyPipe body;
+
+    // guarded by the connection
+    long sendWindow;
+
+    // guarded by this
+    private int receiveWindow;
+    private int unacknowledged = 0;
+    private boolean remoteClosed;
+    private boolean answered = false;
+    private long drained = 0;
+
+    private volatile boolean reset = false;
+
+    Http2Stream(Http2Connection connection, int id, int sendWindow, int windowSize, boolean headRequest, boolean remoteClosed) {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+        this.windowSize = windowSize;
+        this.receiveWindow = windowSize;
+        this.headRequest = headRequest;
+        this.remoteClosed = remoteClosed;
+        this.body = remoteClosed ? null : new BodyPipe();
+    }
+
+    boolean isReset() {
+        return reset;
+    }
+
+    synchronized boolean isRemoteClosed() {
+        return remoteClosed;
+    }
+
+    /**
+     * Cuts the stream off, because the client reset it or the connection is gone.
+     */
+    void reset() {
+        reset = true;
+        if (body != null) {
+            body.fail(new IOException("Stream " + id + " was reset"));
+        }
+        connection.wakeUp();
+    }
+
+    /**
+     * Answers the request, on a worker thread.
+     */
+    void serve(HTTPHeaderParser request, int status, String serverName, RequestTiming timing) {
+        respond(out -> RequestDispatcher.dispatch(request, status, body != null ? RequestBody.until(body) : null, out, false,
+                serverName, null, timing), timing);
+    }
+
+    /**
+     * Answers the request with a complete HTTP/1.1 style response instead, on a worker thread.
+     */
+    void reject(byte[] response) {
+        respond(out -> out.write(response), null);
+    }
+
+    /**
+     * @param timing recorded once the response has been written, if not null
+     */
+    private void respond(Responder responder, RequestTiming timing) {
+        ResponseOutput out = new ResponseOutput();
+        try {
+            responder.respond(out);
+            out.finish();
+            if (timing != null) {
+                timing.written();
+            }
+        } catch (Http2Exception e) {
+            if (!reset) {
+                connection.resetStream(id, e.getErrorCode());
+            }
+        } catch (IOException e) {
+            if (!reset) {
+                e.printStackTrace();
+                connection.resetStream(id, Http2Exception.INTERNAL_ERROR);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            connection.resetStream(id, Http2Exception.INTERNAL_ERROR);
+        } finally {
+            if (body != null) {
+                body.close();
+            }
+            boolean draining;
+            synchronized (this) {
+                answered = true;
+                draining = !remoteClosed && !reset && (body == null || body.failed() == null);
+            }
+            // the rest of the request body is read and dropped rather than the stream reset, as some
+            // clients take a reset as a failed request even after a complete response; unlike on an
+            // HTTP/1.1 connection this costs no more than the window updates
+            connection.streamFinished(this, draining);
+        }
+    }
+
+    /**
+     * Takes a DATA frame off the reading thread.
+     *
+     * @param frameLength the length of the frame including padding, which counts against the window
+     */
+    void receiveData(byte[] data, int offset, int length, int frameLength, boolean endStream) throws IOException {
+        synchronized (this) {
+            if (remoteClosed) {
+                connection.consumed(null, frameLength);
+                throw Http2Exception.stream(id, Http2Exception.STREAM_CLOSED, "DATA after END_STREAM");
+            }
+            receiveWindow -= frameLength;
+            if (receiveWindow < 0) {
+                throw Http2Exception.stream(id, Http2Exception.FLOW_CONTROL_ERROR, "Stream receive window exceeded");
+            }
+            remoteClosed = endStream;
+        }
+        if (length > 0 && !body.offer(data, offset, length)) {
+            // nobody reads the body any more
+            connection.consumed(this, length);
+        }
+        if (frameLength > length) {
+            connection.consumed(this, frameLength - length);
+        }
+        if (endStream) {
+            body.end();
+        }
+        boolean drainingDone = false;
+        boolean tooLong = false;
+        synchronized (this) {
+            if (answered) {
+                drained += frameLength;
+                tooLong = !remoteClosed && drained > StartupArgs.MAX_REQUEST_BODY_SIZE;
+                drainingDone = remoteClosed || tooLong;
+            }
+        }
+        if (tooLong) {
+            connection.resetStream(id, Http2Exception.NO_ERROR);
+        }
+        if (drainingDone) {
+            connection.forget(this);
+        }
+    }
+
+    /**
+     * @return the window increment to send for this stream, or 0 if it is not worth a frame yet
+     */
+    synchronized int consumed(int count) {
+        if (remoteClosed) return 0;
+        unacknowledged += count;
+        if (unacknowledged < windowSize / 2) return 0;
+        int increment = unacknowledged;
+        receiveWindow += increment;
+        unacknowledged = 0;
+        return increment;
+    }
+
+    /**
+     * The request body as it arrives in DATA frames. Reading blocks until the next frame is there.
+     */
+    private class BodyPipe extends InputStream {
+
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int chunkPosition = 0;
+        private long received = 0;
+        private boolean ended = false;
+        private boolean closed = false;
+        private IOException failure;
+
+        /**
+         * @return false if the body is no longer read and the data was dropped
+         */
+        synchronized boolean offer(byte[] data, int offset, int length) {
+            if (closed || failure != null) return false;
+            received += length;
+            if (received > StartupArgs.MAX_REQUEST_BODY_SIZE) {
+                fail(new RequestBodyException(413, "Request body too large"));
+                return false;
+            }
+            byte[] chunk = new byte[length];
+            System.arraycopy(data, offset, chunk, 0, length);
+            chunks.add(chunk);
+            notifyAll();
+            return true;
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized IOException failed() {
+            return failure;
+        }
+
+        synchronized void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int count = 0;
+            synchronized (this) {
+                long deadline = TimingWheel.now() + StartupArgs.BODY_READ_TIMEOUT;
+                while (chunks.isEmpty()) {
+                    if (failure != null) throw failure;
+                    if (ended || closed) return -1;
+                    long remaining = deadline - TimingWheel.now();
+                    if (remaining <= 0) {
+                        throw new RequestBodyException(408, "Timed out reading the request body");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while reading the request body");
+                    }
+                }
+                while (count < len && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.peek();
+                    int n = Math.min(len - count, chunk.length - chunkPosition);
+                    System.arraycopy(chunk, chunkPosition, b, off + count, n);
+                    count += n;
+                    chunkPosition += n;
+                    if (chunkPosition == chunk.length) {
+                        chunks.poll();
+                        chunkPosition = 0;
+                    }
+                }
+            }
+            connection.consumed(Http2Stream.this, count);
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            int available = 0;
+            for (byte[] chunk : chunks) {
+                available += chunk.length;
+            }
+            return available - chunkPosition;
+        }
+
+        /**
+         * Drops what has not been read, giving its room in the windows back.
+         */
+        @Override
+        public void close() {
+            int dropped;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                dropped = available();
+                chunks.clear();
+                chunkPosition = 0;
+                notifyAll();
+            }
+            try {
+                connection.consumed(Http2Stream.this, dropped);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Takes the HTTP/1.1 response the dispatcher writes and sends it as HEADERS and DATA frames.
+     */
+    private interface Responder {
+        void respond(ResponseOutput out) throws IOException;
+    }
+
+    private class ResponseOutput extends OutputStream {
+
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+        private List<String[]> headers;
+        private boolean headersSent = false;
+        private boolean discardBody = false;
+        private ChunkedDecoder chunked;
+        private byte[] data;
+        private int dataLength = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (reset) {
+                throw new IOException("Stream " + id + " was reset");
+            }
+            while (len > 0 && headers == null) {
+                int n = readHead(b, off, len);
+                off += n;
+                len -= n;
+            }
+            if (len > 0 && !discardBody) {
+                if (chunked != null) {
+                    dechunk(b, off, len);
+                } else {
+                    body(b, off, len);
+                }
+            }
+        }
+
+        /**
+         * Collects the response head up to the empty line.
+         *
+         * @return how many bytes were taken
+         */
+        private int readHead(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                head.write(b[off + i]);
+                int size = head.size();
+                if (size >= 4 && b[off + i] == '\n' && endsWithEmptyLine()) {
+                    parseHead();
+                    return i + 1;
+                }
+                if (size > MAX_RESPONSE_HEAD_SIZE) {
+                    throw Http2Exception.stream(id, Http2Exception.INTERNAL_ERROR, "Response head too large");
+                }
+            }
+            return len;
+        }
+
+        private boolean endsWithEmptyLine() {
+            byte[] bytes = head.toByteArray();
+            int n = bytes.length;
+            return bytes[n - 4] == '\r' && bytes[n - 3] == '\n' && bytes[n - 2] == '\r';
+        }
+
+        private void parseHead() throws IOException {
+            String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+            head.reset();
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+                throw Http2Exception.stream(id, Http2Exception.INTERNAL_ERROR, "Invalid response status line");
+            }
+            int status;
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw Http2Exception.stream(id, Http2Exception.INTERNAL_ERROR, "Invalid response status line");
+            }
+            // interim responses such as 100 Continue have no meaning here
+            if (status / 100 == 1) return;
+
+            List<String[]> fields = new ArrayList<>(lines.length);
+            fields.add(new String[]{":status", Integer.toString(status)});
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) continue;
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                switch (name) {
+                    case "transfer-encoding":
+                        if (value.toLowerCase(Locale.ROOT).contains("chunked")) {
+                            chunked = new ChunkedDecoder(Long.MAX_VALUE);
+                        }
+                        continue;
+                    case "connection":
+                    case "keep-alive":
+                    case "proxy-connection":
+                    case "upgrade":
+                        continue;
+                    default:
+                        fields.add(new String[]{name, value});
+                }
+            }
+            headers = fields;
+            discardBody = headRequest || status == 204 || status == 304;
+        }
+
+        private void dechunk(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end && !chunked.isDone()) {
+                long remaining = chunked.dataRemaining();
+                if (remaining == 0) {
+                    chunked.frame(b[off++] & 0xFF);
+                    continue;
+                }
+                int n = (int) Math.min(remaining, end - off);
+                body(b, off, n);
+                chunked.consumed(n);
+                off += n;
+            }
+        }
+
+        private void body(byte[] b, int off, int len) throws IOException {
+            if (data == null) {
+                data = new byte[connection.getPeerMaxFrameSize()];
+            }
+            while (len > 0) {
+                int n = Math.min(len, data.length - dataLength);
+                System.arraycopy(b, off, data, dataLength, n);
+                dataLength += n;
+                off += n;
+                len -= n;
+                if (dataLength == data.length) {
+                    sendData(false);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (headers == null || reset) return;
+            if (!headersSent) {
+                sendHeaders(false);
+            }
+            if (dataLength > 0) {
+                sendData(false);
+            }
+        }
+
+        /**
+         * Ends the stream once the response has been written completely.
+         */
+        void finish() throws IOException {
+            if (headers == null) {
+                throw Http2Exception.stream(id, Http2Exception.INTERNAL_ERROR, "Incomplete response head");
+            }
+            if (!headersSent && dataLength == 0) {
+                sendHeaders(true);
+                return;
+            }
+            if (!headersSent) {
+                sendHeaders(false);
+            }
+            sendData(true);
+        }
+
+        private void sendHeaders(boolean endStream) throws IOException {
+            headersSent = true;
+            connection.writeHeaders(id, headers, endStream);
+        }
+
+        private void sendData(boolean endStream) throws IOException {
+            if (!headersSent) {
+                sendHeaders(false);
+            }
+            int offset = 0;
+            while (offset < dataLength) {
+                int n = connection.reserveWindow(Http2Stream.this, dataLength - offset);
+                boolean last = offset + n == dataLength;
+                connection.writeData(id, data, offset, n, endStream && last);
+                offset += n;
+            }
+            if (dataLength == 0 && endStream) {
+                connection.writeData(id, new byte[0], 0, 0, true);
+            }
+            dataLength = 0;
+        }
+    }
+}
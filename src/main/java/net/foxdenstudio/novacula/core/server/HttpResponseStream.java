@@ -0,0 +1,533 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+import net.foxdenstudio.novacula.core.utils.HttpValidators;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Stream handed to plugins as the client output of a single request. Plugins still write a complete
+ * HTTP response (status line, headers, body); this stream inspects the head they write and frames
+ * the body so the connection can be reused afterwards: a declared Content-Length is passed through,
+ * otherwise the body is sent with chunked encoding, and where neither works the connection is closed.
+ * A 200 response carrying an ETag or Last-Modified header that satisfies the request's conditional
+ * headers is turned into 304 Not Modified and its body dropped. Compressible 200 responses are gzip or
+ * deflate encoded for clients that accept it; when the plugin sent a strong ETag the encoded body is
+ * kept in the compressed variant cache and later requests for that version are answered from there.
+ * <p>
+ * Closing this stream ends the response but never closes the underlying connection.
+ */
+class HttpResponseStream extends OutputStream implements ChannelOutput {
+
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final OutputStream out;
+    private final HTTPHeaderParser request;
+    private final boolean http11;
+    private final boolean headRequest;
+    private boolean keepAlive;
+
+    private ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+    private int headEndMatch = 0;
+    private boolean discardBody = false;
+    private boolean chunked = false;
+    private long contentLength = -1;
+    private long bodyBytes = 0;
+    private int chunkSize = StartupArgs.RESPONSE_CHUNK_SIZE;
+    private byte[] chunkBuffer;
+    private int chunkCount = 0;
+    private boolean finished = false;
+    private int status = 0;
+
+    private boolean compressionAllowed = true;
+    private OutputStream encoder;
+    private String variantResource;
+    private String variantETag;
+    private ByteArrayOutputStream variantCapture;
+    private ByteBuffer cachedVariant;
+
+    /**
+     * @param request the request being answered, or null if conditional headers should not be applied
+     */
+    HttpResponseStream(OutputStream out, HTTPHeaderParser request, boolean keepAlive, boolean http11, boolean headRequest) {
+        this.out = out;
+        this.request = request;
+        this.keepAlive = keepAlive;
+        this.http11 = http11;
+        this.headRequest = headRequest;
+    }
+
+    /**
+     * @return the status the response was sent with, 0 while its head has not been written or if it
+     * could not be read from what the plugin wrote
+     */
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true once anything has been written to this response
+     */
+    boolean isCommitted() {
+        return head == null || head.size() > 0;
+    }
+
+    /**
+     * @return whether the connection may carry another request after this response has been closed
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Closes the connection after this response. Only announced to the client with a Connection
+     * header if the head has not been written yet.
+     */
+    void disableKeepAlive() {
+        keepAlive = false;
+    }
+
+    /**
+     * Sets the size of the chunks the body is sent in if it is chunked. Only has an effect before the
+     * head has been written.
+     */
+    void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sends the body exactly as written, for callers that have already chosen a content coding.
+     */
+    void disableCompression() {
+        compressionAllowed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Response already finished");
+        }
+        if (head != null) {
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                head.write(b[i]);
+                if (b[i] == (headEndMatch % 2 == 0 ? '\r' : '\n')) {
+                    headEndMatch++;
+                } else {
+                    headEndMatch = b[i] == '\r' ? 1 : 0;
+                }
+                if (headEndMatch == 4 || !looksLikeHead()) {
+                    commitHead(headEndMatch == 4);
+                    writeBody(b, i + 1, end - i - 1);
+                    return;
+                }
+            }
+            return;
+        }
+        writeBody(b, off, len);
+    }
+
+    /**
+     * Sends a buffer as response body, handed to the connection without copying where possible, see
+     * {@link #transferFrom(FileChannel, long, long)}.
+     */
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        if (finished) {
+            throw new IOException("Response already finished");
+        }
+        if (head != null || chunked || encoder != null) {
+            ChannelOutput.copy(this, buffer);
+            return;
+        }
+        if (discardBody) return;
+        bodyBytes += buffer.remaining();
+        ChannelOutput.write(out, buffer);
+    }
+
+    /**
+     * Sends part of a file as response body. Once the head is complete and the body does not need
+     * chunking the region goes to the connection zero-copy, otherwise it is copied like any other
+     * write.
+     */
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        if (finished) {
+            throw new IOException("Response already finished");
+        }
+        if (head != null || chunked || encoder != null) {
+            ChannelOutput.copy(this, file, position, count);
+            return;
+        }
+        if (count <= 0 || discardBody) return;
+        bodyBytes += count;
+        ChannelOutput.transfer(out, file, position, count);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (head == null) {
+            if (encoder != null) {
+                encoder.flush();
+            }
+            if (chunked) {
+                writeChunk();
+            }
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (finished) return;
+        if (head != null) {
+            commitHead(false);
+        }
+        if (encoder != null) {
+            OutputStream finishing = encoder;
+            encoder = null;
+            finishing.close();
+            if (variantCapture != null) {
+                Compression.putVariant(variantResource, variantETag, Compression.toBuffer(variantCapture.toByteArray()));
+                variantCapture = null;
+            }
+        }
+        if (cachedVariant != null) {
+            ChannelOutput.write(out, cachedVariant);
+        }
+        if (chunked) {
+            writeChunk();
+            out.write(LAST_CHUNK);
+        } else if (contentLength >= 0 && !discardBody && bodyBytes != contentLength) {
+            keepAlive = false;
+        }
+        finished = true;
+        out.flush();
+    }
+
+    private boolean looksLikeHead() {
+        int size = head.size();
+        if (size > MAX_HEAD_SIZE) return false;
+        if (size > 5) return true;
+        byte[] prefix = "HTTP/".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] written = head.toByteArray();
+        for (int i = 0; i < written.length; i++) {
+            if (written[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the head the plugin produced, adjusted for the framing chosen for the body. A head that
+     * never completed, or output that is not an HTTP response at all, is passed through unchanged and
+     * the connection is closed afterwards.
+     */
+    private void commitHead(boolean complete) throws IOException {
+        byte[] raw = head.toByteArray();
+        head = null;
+        if (!complete) {
+            keepAlive = false;
+            out.write(raw);
+            return;
+        }
+
+        String[] lines = new String(raw, StandardCharsets.ISO_8859_1).split("\r\n");
+        StringBuilder rebuilt = new StringBuilder(raw.length + 64);
+
+        int status = 200;
+        String[] statusLine = lines[0].split(" ");
+        if (statusLine.length > 1) {
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        String etag = headerValue(lines, "ETag");
+        String lastModified = headerValue(lines, "Last-Modified");
+        boolean notModified = status == 200 && isNotModified(etag, lastModified);
+
+        String encoding = null;
+        String contentType = headerValue(lines, "Content-Type");
+        boolean vary = compressionAllowed && request != null && status == 200 && Compression.isCompressible(contentType)
+                && headerValue(lines, "Content-Encoding") == null && headerValue(lines, "Transfer-Encoding") == null;
+        if (vary) {
+            long declaredLength = -1;
+            try {
+                String length = headerValue(lines, "Content-Length");
+                if (length != null) declaredLength = Long.parseLong(length);
+            } catch (NumberFormatException ignored) {
+            }
+            encoding = Compression.select(request.getHeader("Accept-Encoding"), contentType, declaredLength);
+        }
+        boolean compress = encoding != null && !notModified;
+        if (notModified) {
+            status = 304;
+            rebuilt.append(statusLine[0]).append(' ').append(HTTPHeaderParser.getHttpReply(304)).append("\r\n");
+        } else {
+            rebuilt.append(lines[0]).append("\r\n");
+        }
+
+        boolean pluginChunked = false;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            int idx = line.indexOf(':');
+            String name = idx < 0 ? "" : line.substring(0, idx).trim().toLowerCase(Locale.ROOT);
+            String value = idx < 0 ? "" : line.substring(idx + 1).trim().toLowerCase(Locale.ROOT);
+            if (name.equals("connection")) {
+                if (value.contains("close")) keepAlive = false;
+                continue;
+            }
+            if (notModified && (name.equals("content-length") || name.equals("transfer-encoding"))) {
+                continue;
+            }
+            if (compress && name.equals("content-length")) {
+                continue;
+            }
+            if (encoding != null && name.equals("etag")) {
+                rebuilt.append("ETag: ").append(HttpValidators.encodedETag(etag, encoding)).append("\r\n");
+                continue;
+            }
+            if (vary && name.equals("vary")) {
+                if (!value.contains("accept-encoding") && !value.equals("*")) {
+                    line = line + ", Accept-Encoding";
+                }
+                vary = false;
+            }
+            if (name.equals("content-length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    keepAlive = false;
+                }
+            } else if (name.equals("transfer-encoding") && value.contains("chunked")) {
+                pluginChunked = true;
+            }
+            rebuilt.append(line).append("\r\n");
+        }
+        if (vary) {
+            rebuilt.append("Vary: Accept-Encoding\r\n");
+        }
+        if (compress) {
+            rebuilt.append("Content-Encoding: ").append(encoding).append("\r\n");
+            if (!headRequest && isCacheable(lines, etag)) {
+                variantResource = request.getRequestTarget();
+                variantETag = HttpValidators.encodedETag(etag, encoding);
+                cachedVariant = Compression.getVariant(variantResource, variantETag);
+                if (cachedVariant != null) {
+                    contentLength = cachedVariant.remaining();
+                    rebuilt.append("Content-Length: ").append(contentLength).append("\r\n");
+                }
+            }
+        }
+
+        this.status = status;
+        rebuilt.append(chooseFraming(status, pluginChunked)).append("\r\n");
+        out.write(rebuilt.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        if (cachedVariant != null) {
+            discardBody = true;
+        } else if (compress && !discardBody) {
+            encoder = Compression.encoder(new EncodedBody(), encoding);
+            if (variantETag != null) {
+                variantCapture = new ByteArrayOutputStream();
+            }
+        }
+    }
+
+    /**
+     * Writes a head the server assembled itself, skipping the parsing and rewriting applied to
+     * plugin output: conditional requests and compression are up to the caller. Only the framing
+     * headers are added.
+     *
+     * @param head          status line and headers, without the empty line that ends the head
+     * @param contentLength the Content-Length contained in the head, or -1 if there is none
+     */
+    void writeHead(int status, HeaderWriter head, long contentLength) throws IOException {
+        if (finished || this.head == null || this.head.size() > 0) {
+            throw new IllegalStateException("Response head already written");
+        }
+        this.head = null;
+        this.status = status;
+        this.contentLength = contentLength;
+        head.lines(chooseFraming(status, false)).end();
+        head.writeTo(out);
+    }
+
+    /**
+     * Writes a complete head and ends the response, for a connection that is taken over by a
+     * WebSocket or an event stream; whatever follows is written by them.
+     */
+    void takeOver(int status, HeaderWriter head) throws IOException {
+        if (finished || this.head == null || this.head.size() > 0) {
+            throw new IllegalStateException("Response head already written");
+        }
+        this.head = null;
+        this.status = status;
+        finished = true;
+        keepAlive = false;
+        head.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Decides how the body is delimited: by its Content-Length, by chunked encoding or by closing the
+     * connection.
+     *
+     * @return the header lines this requires
+     */
+    private String chooseFraming(int status, boolean pluginChunked) {
+        String lines = "";
+        if (headRequest || status / 100 == 1 || status == 204 || status == 304) {
+            discardBody = true;
+        } else if (contentLength < 0 && !pluginChunked) {
+            if (keepAlive && http11) {
+                chunked = true;
+                chunkBuffer = new byte[chunkSize];
+                lines = "Transfer-Encoding: chunked\r\n";
+            } else {
+                keepAlive = false;
+            }
+        }
+        if (!keepAlive) {
+            lines += "Connection: close\r\n";
+        } else if (!http11) {
+            lines += "Connection: keep-alive\r\n";
+        }
+        return lines;
+    }
+
+    /**
+     * Checks the validators in a plugin's response head against the request's conditional headers.
+     */
+    private boolean isNotModified(String etag, String lastModifiedDate) {
+        if (request == null) return false;
+        long lastModified = lastModifiedDate == null ? 0 : Math.max(0, HTTPHeaderParser.parseDate(lastModifiedDate));
+        return (etag != null || lastModified > 0) && HttpValidators.isNotModified(request, etag, lastModified);
+    }
+
+    /**
+     * Only the encoding of a strong entity tag that shared caches may store is worth keeping: anything
+     * else might differ between two responses that carry the same tag.
+     */
+    private static boolean isCacheable(String[] lines, String etag) {
+        if (etag == null || etag.startsWith("W/")) return false;
+        String cacheControl = headerValue(lines, "Cache-Control");
+        if (cacheControl == null) return true;
+        cacheControl = cacheControl.toLowerCase(Locale.ROOT);
+        return !cacheControl.contains("no-store") && !cacheControl.contains("private");
+    }
+
+    /**
+     * @return the trimmed value of the first header with this name, or null
+     */
+    private static String headerValue(String[] lines, String name) {
+        for (int i = 1; i < lines.length; i++) {
+            int idx = lines[i].indexOf(':');
+            if (idx >= 0 && lines[i].substring(0, idx).trim().equalsIgnoreCase(name)) {
+                return lines[i].substring(idx + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private void writeBody(byte[] b, int off, int len) throws IOException {
+        if (len <= 0 || discardBody) return;
+        if (encoder != null) {
+            encoder.write(b, off, len);
+            return;
+        }
+        writeFramed(b, off, len);
+    }
+
+    private void writeFramed(byte[] b, int off, int len) throws IOException {
+        bodyBytes += len;
+        if (!chunked) {
+            out.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            int n = Math.min(len, chunkBuffer.length - chunkCount);
+            System.arraycopy(b, off, chunkBuffer, chunkCount, n);
+            chunkCount += n;
+            off += n;
+            len -= n;
+            if (chunkCount == chunkBuffer.length) {
+                writeChunk();
+            }
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if (chunkCount == 0) return;
+        out.write(Integer.toHexString(chunkCount).getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+        out.write(chunkBuffer, 0, chunkCount);
+        out.write(CRLF);
+        chunkCount = 0;
+    }
+
+    /**
+     * Receives the encoder's output and frames it like any other body, keeping a copy for the variant
+     * cache while it stays small enough.
+     */
+    private final class EncodedBody extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFramed(b, off, len);
+            if (variantCapture != null) {
+                if (variantCapture.size() + len > StartupArgs.COMPRESSION_MAX_SIZE) {
+                    variantCapture = null;
+                } else {
+                    variantCapture.write(b, off, len);
+                }
+            }
+        }
+    }
+}
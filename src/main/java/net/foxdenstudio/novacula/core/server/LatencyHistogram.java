@@ -0,0 +1,171 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts nanosecond latencies in log-linear buckets, like HdrHistogram: 16 buckets for every power
+ * of two, so a percentile read back is within about 3% of the recorded value, from 1ns up to about
+ * 68 seconds, above which values are counted as the maximum.
+ * <p>
+ * Counts are kept per time slice so percentiles can be read over the last few slices. The ring has
+ * one slice more than that, which is cleared for the next slice while the current one is filled, so
+ * counts are only lost to a concurrent clear when nothing was recorded for a whole slice. Recording
+ * threads are spread over stripes, each allocated on first use, so they rarely touch the same
+ * counters; recording allocates nothing and takes no locks. A reader merges the stripes without
+ * stopping the writers.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final long MAX_VALUE = (1L << 36) - 1;
+    static final int BUCKETS = bucket(MAX_VALUE) + 1;
+    private static final int STRIPES = stripes();
+    private static final long ORIGIN = System.nanoTime();
+    private static final long CLEARING = -2;
+
+    private final long sliceNanos;
+    private final int slices;
+    private final AtomicReferenceArray<Stripe> stripes = new AtomicReferenceArray<>(STRIPES);
+
+    /**
+     * @param sliceMillis length of a time slice
+     * @param slices      number of slices kept, which makes the longest window that can be read
+     */
+    LatencyHistogram(long sliceMillis, int slices) {
+        this.sliceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, sliceMillis));
+        this.slices = Math.max(1, slices) + 1;
+    }
+
+    private static int stripes() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors()) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    static int bucket(long value) {
+        value = Math.min(Math.max(value, 0), MAX_VALUE);
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1));
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the middle of the range of values counted in the given bucket
+     */
+    static long valueOf(int bucket) {
+        int shift = bucket < 2 * HALF ? 0 : bucket / HALF - 1;
+        return ((long) (bucket - shift * HALF) << shift) + ((1L << shift) >>> 1);
+    }
+
+    void record(long nanos, long now) {
+        int index = (int) (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 40) & (STRIPES - 1);
+        Stripe stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new Stripe(slices));
+            stripe = stripes.get(index);
+        }
+        long epoch = Math.max(0, now - ORIGIN) / sliceNanos;
+        int slice = (int) (epoch % slices);
+        if (stripe.epochs.get(slice) != epoch) {
+            stripe.clear(slice, epoch);
+        }
+        stripe.counts.incrementAndGet(slice * BUCKETS + bucket(nanos));
+        int next = slice + 1 == slices ? 0 : slice + 1;
+        if (stripe.epochs.get(next) <= epoch) {
+            stripe.clear(next, epoch + 1);
+        }
+    }
+
+    /**
+     * Adds the counts of the given number of most recent slices, the current one included, to
+     * {@code counts}.
+     */
+    void addTo(long[] counts, int window, long now) {
+        long epoch = Math.max(0, now - ORIGIN) / sliceNanos;
+        window = Math.min(Math.max(window, 1), slices - 1);
+        for (int index = 0; index < STRIPES; index++) {
+            Stripe stripe = stripes.get(index);
+            if (stripe == null) continue;
+            for (int slice = 0; slice < slices; slice++) {
+                long sliceEpoch = stripe.epochs.get(slice);
+                if (sliceEpoch < 0 || sliceEpoch > epoch || sliceEpoch <= epoch - window) continue;
+                for (int bucket = 0, offset = slice * BUCKETS; bucket < BUCKETS; bucket++) {
+                    counts[bucket] += stripe.counts.get(offset + bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value the given share of the counted values is at or below, 0 if nothing was counted
+     */
+    static long percentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) return valueOf(bucket);
+        }
+        return valueOf(counts.length - 1);
+    }
+
+    private static class Stripe {
+        private final AtomicLongArray epochs;
+        private final AtomicIntegerArray counts;
+
+        Stripe(int slices) {
+            this.epochs = new AtomicLongArray(slices);
+            this.counts = new AtomicIntegerArray(slices * BUCKETS);
+            for (int slice = 0; slice < slices; slice++) {
+                epochs.set(slice, -1);
+            }
+        }
+
+        /**
+         * Empties the slice for the given epoch, unless another thread already does.
+         */
+        void clear(int slice, long epoch) {
+            long current = epochs.get(slice);
+            if (current == CLEARING || current >= epoch || !epochs.compareAndSet(slice, current, CLEARING)) return;
+            for (int i = slice * BUCKETS, end = i + BUCKETS; i < end; i++) {
+                counts.set(i, 0);
+            }
+            epochs.set(slice, epoch);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Closes a connection that was answered without reading its request, such as one shed with 503.
+ * Its output has been shut down already; whatever the client still sends is read and thrown away
+ * until it closes its side or {@link StartupArgs#LINGER_TIMEOUT} passes. Closing with the request
+ * unread would make the kernel reset the connection, and the client could lose the response.
+ */
+class LingeringClose implements NioEventLoop.Handler {
+
+    private final SocketChannel channel;
+    private final ConnectionTimer timer;
+    private SelectionKey key;
+
+    LingeringClose(NioEventLoop eventLoop, SocketChannel channel) {
+        this.channel = channel;
+        this.timer = new ConnectionTimer(eventLoop.getTimingWheel(), phase -> eventLoop.execute(this::close));
+    }
+
+    void start(SelectionKey key) {
+        this.key = key;
+        timer.arm(ConnectionTimer.Phase.LINGER, StartupArgs.LINGER_TIMEOUT);
+    }
+
+    @Override
+    public void onReadable() throws IOException {
+        ByteBuffer buffer = BufferPool.acquire(BufferPool.MIN_SIZE);
+        try {
+            int n;
+            do {
+                buffer.clear();
+                n = channel.read(buffer);
+            } while (n > 0);
+            if (n < 0) {
+                close();
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    @Override
+    public void onWritable() {
+    }
+
+    @Override
+    public void close() {
+        timer.disarm();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One address/port pair the server listens on, parsed from a listen spec such as
+ * {@code 0.0.0.0:8004/1024} (the {@code /backlog} part is optional, IPv6 hosts go in brackets).
+ * Socket options for the accepted connections may follow, e.g.
+ * {@code 0.0.0.0:8004;nodelay=false;sndbuf=262144;rcvbuf=65536}; options left out use the
+ * server-wide defaults and a buffer size of 0 keeps the OS default. {@code tls=true} makes it an
+ * HTTPS listener, using the keystore configured in {@link StartupArgs}.
+ */
+class Listener {
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
+
+    private final InetSocketAddress address;
+    private final int backlog;
+    private final boolean noDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final boolean tls;
+
+    Listener(InetSocketAddress address, int backlog, boolean noDelay, int sendBufferSize, int receiveBufferSize, boolean tls) {
+        this.address = address;
+        this.backlog = backlog;
+        this.noDelay = noDelay;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.tls = tls;
+    }
+
+    static List<Listener> parse(String spec, int defaultBacklog) {
+        List<Listener> listeners = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+
+            boolean noDelay = StartupArgs.TCP_NODELAY;
+            int sendBufferSize = StartupArgs.SOCKET_SEND_BUFFER;
+            int receiveBufferSize = StartupArgs.SOCKET_RECEIVE_BUFFER;
+            boolean tls = false;
+            String[] parts = entry.split(";");
+            entry = parts[0].trim();
+            for (int i = 1; i < parts.length; i++) {
+                String option = parts[i].trim();
+                int equals = option.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Invalid listener option: " + option);
+                }
+                String name = option.substring(0, equals).trim().toLowerCase();
+                String value = option.substring(equals + 1).trim();
+                switch (name) {
+                    case "nodelay":
+                        noDelay = Boolean.parseBoolean(value);
+                        break;
+                    case "sndbuf":
+                        sendBufferSize = Integer.parseInt(value);
+                        break;
+                    case "rcvbuf":
+                        receiveBufferSize = Integer.parseInt(value);
+                        break;
+                    case "tls":
+                        tls = Boolean.parseBoolean(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown listener option: " + name);
+                }
+            }
+
+            int backlog = defaultBacklog;
+            int slash = entry.lastIndexOf('/');
+            if (slash >= 0) {
+                backlog = Integer.parseInt(entry.substring(slash + 1).trim());
+                entry = entry.substring(0, slash).trim();
+            }
+
+            String host = null;
+            String port = entry;
+            int colon = entry.lastIndexOf(':');
+            if (colon >= 0 && entry.indexOf(']') < colon) {
+                host = entry.substring(0, colon);
+                port = entry.substring(colon + 1);
+                if (host.startsWith("[") && host.endsWith("]")) {
+                    host = host.substring(1, host.length() - 1);
+                }
+            }
+
+            InetSocketAddress address = host == null || host.isEmpty() || host.equals("*")
+                    ? new InetSocketAddress(Integer.parseInt(port))
+                    : new InetSocketAddress(host, Integer.parseInt(port));
+            listeners.add(new Listener(address, backlog, noDelay, sendBufferSize, receiveBufferSize, tls));
+        }
+        return listeners;
+    }
+
+    boolean isTls() {
+        return tls;
+    }
+
+    /**
+     * @return true if several sockets can be bound to the same address and have the kernel balance
+     * incoming connections between them (SO_REUSEPORT, Java 9+ on Linux and BSD)
+     */
+    static boolean isReusePortSupported() {
+        return SO_REUSEPORT != null;
+    }
+
+    ServerSocketChannel openServerChannel(boolean reusePort) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                serverChannel.setOption(SO_REUSEPORT, true);
+            }
+            if (receiveBufferSize > 0) {
+                // Accepted sockets inherit this; it has to be set before bind for the TCP window
+                // scale to be negotiated accordingly.
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+            serverChannel.bind(address, backlog);
+            return serverChannel;
+        } catch (IOException | RuntimeException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Applies this listener's socket options to an accepted connection, closing it if that fails.
+     */
+    void configure(SocketChannel channel) throws IOException {
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+            if (sendBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address + " (backlog " + backlog + (tls ? ", tls" : "") + (noDelay ? ", nodelay" : "")
+                + (sendBufferSize > 0 ? ", sndbuf " + sendBufferSize : "")
+                + (receiveBufferSize > 0 ? ", rcvbuf " + receiveBufferSize : "") + ")";
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookupReusePort() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+                return probe.supportedOptions().contains(option) ? option : null;
+            }
+        } catch (ReflectiveOperationException | IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
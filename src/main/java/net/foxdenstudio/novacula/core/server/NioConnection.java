@@ -0,0 +1,776 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connection state for the NIO engine. Reads and writes happen on the owning {@link NioEventLoop};
+ * once a complete request head has been buffered it is parsed and handed to the plugins, which write
+ * their response through a {@link NioOutputStream} from a worker thread. Between requests of a
+ * persistent connection no thread is tied to it, and no read buffer either: buffers come from the
+ * {@link BufferPool} while there is unprocessed input and are returned as soon as it is consumed.
+ * Connections from a TLS listener read and write through a {@link TlsChannel}.
+ */
+class NioConnection implements NioEventLoop.Handler, ConnectionTracker.Drainable {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+    private static final long WRITE_HIGH_WATERMARK = 256 * 1024;
+    private static final int MAX_GATHER = 16;
+    private static final byte[] HEAD_TOO_LARGE = ("HTTP/1.1 431 Request Header Fields Too Large\r\n" +
+            "Connection: close\r\n" +
+            "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final TlsChannel tls;
+    private final Queue<Object> writeQueue = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private int scanPosition = 0;
+    private boolean closeAfterWrite = false;
+    private boolean requestInFlight = false;
+    private int requests = 0;
+    private int unfinishedRequests = 0;
+    private final ConnectionTimer readTimer;
+    private final ConnectionTimer writeTimer;
+    private long pendingBytes = 0;
+    private volatile boolean closed = false;
+    private volatile LongLivedConnection takenOver;
+    private Object clientKey;
+    private RequestTiming timing;
+
+    // the request whose body is being read, if any
+    private HTTPHeaderParser bodyRequest;
+    private boolean bodyAllowKeepAlive;
+    private ChunkedDecoder bodyDecoder;
+    private long bodyRemaining;
+    private BodySpool bodySpool;
+
+    NioConnection(NioEventLoop eventLoop, SocketChannel channel, TlsChannel tls) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.tls = tls;
+        this.readTimer = new ConnectionTimer(eventLoop.getTimingWheel(), phase -> eventLoop.execute(this::close));
+        this.writeTimer = new ConnectionTimer(eventLoop.getTimingWheel(), phase -> eventLoop.execute(this::close));
+        this.readTimer.arm(ConnectionTimer.Phase.HEADER_READ, StartupArgs.HEADER_READ_TIMEOUT);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public void onReadable() throws IOException {
+        if (readBuffer == null) {
+            readBuffer = BufferPool.acquire(bodyRequest != null ? BODY_BUFFER_SIZE : READ_BUFFER_SIZE);
+        }
+        if ((tls != null ? tls.read(readBuffer) : channel.read(readBuffer)) < 0) {
+            close();
+            return;
+        }
+        if (tls != null && tls.hasPendingOutput()) {
+            // the handshake has more to send than the socket took
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        processBufferedRequest();
+    }
+
+    @Override
+    public boolean hasBufferedInput() {
+        return tls != null && tls.hasBufferedInput();
+    }
+
+    /**
+     * Dispatches the next request if its head, and its body if it has one, has been read completely.
+     * Reading is paused until the response has been produced, anything the client sent after the
+     * request stays buffered for the next request on the connection.
+     */
+    private void processBufferedRequest() throws IOException {
+        if (bodyRequest != null) {
+            readBody();
+            return;
+        }
+        if (requests == 0 && StartupArgs.HTTP2 && readBuffer.position() > 0) {
+            int preface = Http2Connection.matchPreface(readBuffer, readBuffer.position());
+            if (preface > 0) {
+                switchToHttp2(null, Http2Connection.PREFACE.length);
+                return;
+            }
+            // the preface contains an empty line, a partial one must not be parsed as a request
+            if (preface == 0) return;
+        }
+        if (scanPosition == 0) {
+            skipLeadingEmptyLines();
+        }
+        if (timing == null && readBuffer.position() > 0) {
+            timing = new RequestTiming();
+        }
+        int headEnd = findHeadEnd();
+        if (headEnd < 0) {
+            if (readBuffer.position() == 0) {
+                releaseReadBufferIfEmpty();
+                return;
+            }
+            if (readTimer.getPhase() == ConnectionTimer.Phase.KEEP_ALIVE) {
+                readTimer.arm(ConnectionTimer.Phase.HEADER_READ, StartupArgs.HEADER_READ_TIMEOUT);
+            }
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= StartupArgs.MAX_REQUEST_HEADER_SIZE) {
+                    key.interestOps(0);
+                    writeControl(HEAD_TOO_LARGE);
+                    finish();
+                    return;
+                }
+                ByteBuffer grown = BufferPool.acquire(Math.min(readBuffer.capacity() * 2, StartupArgs.MAX_REQUEST_HEADER_SIZE));
+                readBuffer.flip();
+                grown.put(readBuffer);
+                BufferPool.release(readBuffer);
+                readBuffer = grown;
+            }
+            return;
+        }
+
+        readTimer.disarm();
+        ByteBuffer head = readBuffer.duplicate();
+        head.position(0).limit(headEnd);
+        HTTPHeaderParser headerParser = new HTTPHeaderParser(new BufferInputStream(head));
+        int status = headerParser.parseRequest();
+        timing.parsed();
+        readBuffer.flip();
+        readBuffer.position(headEnd);
+        readBuffer.compact();
+        releaseReadBufferIfEmpty();
+        scanPosition = 0;
+        // h2c is cleartext only, over TLS HTTP/2 is negotiated during the handshake
+        if (status == 200 && tls == null && Http2Connection.isUpgradeRequest(headerParser) && unfinishedRequests == 0
+                && writeQueue.isEmpty() && !eventLoop.getConnectionTracker().isDraining()) {
+            switchToHttp2(headerParser, 0);
+            return;
+        }
+        if (status == 200 && RateLimiter.ENABLED) {
+            if (clientKey == null) {
+                clientKey = RateLimiter.clientKey(channel);
+            }
+            int retryAfter = RateLimiter.checkRequest(clientKey, headerParser);
+            if (retryAfter > 0) {
+                key.interestOps(0);
+                writeControl(RateLimiter.tooManyRequests(retryAfter));
+                finish();
+                return;
+            }
+        }
+        requestInFlight = true;
+        boolean allowKeepAlive = ++requests < StartupArgs.KEEP_ALIVE_MAX_REQUESTS && !eventLoop.getConnectionTracker().isDraining();
+        unfinishedRequests++;
+        eventLoop.getConnectionTracker().requestStarted();
+
+        if (status == 200 && headerParser.hasBody()) {
+            bodyRequest = headerParser;
+            bodyAllowKeepAlive = allowKeepAlive;
+            bodyDecoder = headerParser.isChunked() ? new ChunkedDecoder(StartupArgs.MAX_REQUEST_BODY_SIZE) : null;
+            bodyRemaining = headerParser.getContentLength();
+            bodySpool = new BodySpool(StartupArgs.REQUEST_BODY_MEMORY_THRESHOLD);
+            readTimer.arm(ConnectionTimer.Phase.BODY_READ, StartupArgs.BODY_READ_TIMEOUT);
+            if (headerParser.expectsContinue()) {
+                writeControl(CONTINUE);
+            }
+            readBody();
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        dispatch(headerParser, status, null, allowKeepAlive);
+    }
+
+    /**
+     * Hands the connection over to an {@link Http2Connection}, which runs on a worker thread of its own
+     * over the channel in blocking mode. Anything read past the preface or the upgrade request is
+     * passed along.
+     */
+    private void switchToHttp2(HTTPHeaderParser upgradeRequest, int skip) {
+        byte[] leftover = new byte[0];
+        if (readBuffer != null) {
+            leftover = new byte[readBuffer.position() - skip];
+            readBuffer.flip();
+            readBuffer.position(skip);
+            readBuffer.get(leftover);
+            BufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        readTimer.disarm();
+        writeTimer.disarm();
+        eventLoop.getConnectionTracker().remove(this);
+
+        byte[] buffered = leftover;
+        eventLoop.deregister(key, () -> {
+            try {
+                channel.configureBlocking(true);
+                InputStream socketInput = SocketChannelStreams.input(tls != null ? tls : channel);
+                InputStream in = buffered.length > 0
+                        ? new SequenceInputStream(new ByteArrayInputStream(buffered), socketInput) : socketInput;
+                Http2Connection connection = new Http2Connection(channel, tls, in, StartupArgs.SERVER_NAME, eventLoop.getWorkerPool(),
+                        eventLoop.getTimingWheel(), eventLoop.getConnectionTracker());
+                if (upgradeRequest != null) {
+                    connection.upgradeFrom(upgradeRequest);
+                } else {
+                    connection.prefaceRead();
+                }
+                boolean accepted = eventLoop.getWorkerPool().tryExecute(() -> {
+                    try {
+                        connection.run();
+                    } finally {
+                        try {
+                            in.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                });
+                if (!accepted) {
+                    in.close();
+                    (tls != null ? tls : channel).close();
+                }
+            } catch (IOException e) {
+                try {
+                    (tls != null ? tls : channel).close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands the channel over to the WebSocket or event stream a plugin accepted, once the response
+     * head has been written. It stays on this event loop and takes the selection key, and with it
+     * anything the client sent after the request.
+     */
+    private void handOver() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        readTimer.disarm();
+        writeTimer.disarm();
+        eventLoop.getConnectionTracker().remove(this);
+        ByteBuffer buffered = readBuffer;
+        readBuffer = null;
+        takenOver.start(eventLoop, channel, tls, key, buffered);
+    }
+
+    /**
+     * Moves the body bytes read so far into the spool and dispatches the request once the body is
+     * complete. A malformed or oversized body is answered with an error and ends the connection.
+     */
+    private void readBody() throws IOException {
+        if (readBuffer == null) return;
+        readBuffer.flip();
+        int start = readBuffer.position();
+        int status = 200;
+        boolean complete;
+        try {
+            if (bodyDecoder != null) {
+                while (readBuffer.hasRemaining() && !bodyDecoder.isDone()) {
+                    long data = bodyDecoder.dataRemaining();
+                    if (data > 0) {
+                        int count = (int) Math.min(data, readBuffer.remaining());
+                        spool(count);
+                        bodyDecoder.consumed(count);
+                    } else {
+                        bodyDecoder.frame(readBuffer.get() & 0xFF);
+                    }
+                }
+                complete = bodyDecoder.isDone();
+            } else {
+                int count = (int) Math.min(bodyRemaining, readBuffer.remaining());
+                spool(count);
+                bodyRemaining -= count;
+                complete = bodyRemaining == 0;
+            }
+        } catch (RequestBodyException e) {
+            status = e.getStatus();
+            complete = true;
+        }
+        boolean progress = readBuffer.position() > start;
+        readBuffer.compact();
+        releaseReadBufferIfEmpty();
+        if (!complete) {
+            if (progress) {
+                readTimer.arm(ConnectionTimer.Phase.BODY_READ, StartupArgs.BODY_READ_TIMEOUT);
+            }
+            return;
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        readTimer.disarm();
+        HTTPHeaderParser request = bodyRequest;
+        BodySpool spool = bodySpool;
+        bodyRequest = null;
+        bodyDecoder = null;
+        bodySpool = null;
+        RequestBody body = null;
+        if (status == 200) {
+            body = RequestBody.of(spool.toInputStream(), spool.size());
+        } else {
+            spool.discard();
+        }
+        dispatch(request, status, body, status == 200 && bodyAllowKeepAlive);
+    }
+
+    private void spool(int count) throws IOException {
+        ByteBuffer data = readBuffer.duplicate();
+        data.limit(data.position() + count);
+        bodySpool.write(data);
+        readBuffer.position(readBuffer.position() + count);
+    }
+
+    private void dispatch(HTTPHeaderParser headerParser, int status, RequestBody body, boolean allowKeepAlive) {
+        NioOutputStream outputStream = new NioOutputStream(this);
+        RequestTiming timing = this.timing;
+        this.timing = null;
+        boolean accepted = eventLoop.getWorkerPool().tryExecute(() -> {
+            boolean keepAlive = false;
+            try {
+                keepAlive = RequestDispatcher.dispatch(headerParser, status, body, outputStream, allowKeepAlive,
+                        StartupArgs.SERVER_NAME, connection -> takenOver = connection, timing);
+            } catch (IOException ignored) {
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    outputStream.close();
+                } catch (IOException ignored) {
+                    keepAlive = false;
+                }
+                endResponse(keepAlive, timing);
+            }
+        });
+        if (!accepted) {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ignored) {
+                }
+            }
+            writeControl(WorkerPool.SERVICE_UNAVAILABLE);
+            finish();
+        }
+    }
+
+    /**
+     * Called by the worker once the response has been handed to the connection. Either resumes
+     * reading for the next request or closes the connection once the response has been written.
+     * The timing is queued behind the response, to be recorded once it has been written.
+     */
+    private void endResponse(boolean keepAlive, RequestTiming timing) {
+        eventLoop.execute(() -> {
+            requestInFlight = false;
+            writeQueue.add(timing);
+            if (takenOver != null) {
+                flushWrites();
+                return;
+            }
+            if (!keepAlive || eventLoop.getConnectionTracker().isDraining()) {
+                closeAfterWrite = true;
+                flushWrites();
+                return;
+            }
+            flushWrites();
+            if (closed) return;
+            try {
+                if (readBuffer != null) {
+                    readTimer.arm(ConnectionTimer.Phase.HEADER_READ, StartupArgs.HEADER_READ_TIMEOUT);
+                } else {
+                    readTimer.arm(ConnectionTimer.Phase.KEEP_ALIVE, StartupArgs.KEEP_ALIVE_TIMEOUT);
+                }
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                if (readBuffer != null) {
+                    processBufferedRequest();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        });
+    }
+
+    @Override
+    public void onWritable() {
+        flushWrites();
+    }
+
+    /**
+     * Queues a buffer for writing. May be called from any thread; blocks the caller while too much
+     * data is already waiting to be written so a slow client cannot make the server buffer unboundedly.
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        enqueue(buffer, buffer);
+    }
+
+    /**
+     * Like {@link #write(ByteBuffer)}, for a buffer from the {@link BufferPool} that the connection
+     * releases once it has been written. The caller gives up the buffer even if this throws.
+     */
+    void writeAndRelease(ByteBuffer buffer) throws IOException {
+        try {
+            enqueue(new PooledBuffer(buffer), buffer);
+        } catch (IOException e) {
+            BufferPool.release(buffer);
+            throw e;
+        }
+    }
+
+    private void enqueue(Object entry, ByteBuffer buffer) throws IOException {
+        synchronized (this) {
+            while (pendingBytes > WRITE_HIGH_WATERMARK && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            pendingBytes += buffer.remaining();
+        }
+        writeQueue.add(entry);
+        eventLoop.execute(this::flushWrites);
+    }
+
+    /**
+     * Queues a short message from the event loop itself, which must never wait for the
+     * high-watermark as it is the thread that drains the queue.
+     */
+    private void writeControl(byte[] message) {
+        synchronized (this) {
+            pendingBytes += message.length;
+        }
+        writeQueue.add(ByteBuffer.wrap(message));
+        flushWrites();
+    }
+
+    /**
+     * Queues a file region behind the data written so far and blocks until the event loop has sent
+     * it, so the caller can close the file afterwards. File regions do not count towards the write
+     * high-watermark as they are not held in memory.
+     */
+    void transferFile(FileChannel file, long position, long count) throws IOException {
+        FileRegion region = new FileRegion(file, position, count);
+        writeQueue.add(region);
+        eventLoop.execute(this::flushWrites);
+        synchronized (this) {
+            while (!region.done && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (!region.done) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Closes the connection once everything queued so far has been written.
+     */
+    void finish() {
+        eventLoop.execute(() -> {
+            closeAfterWrite = true;
+            flushWrites();
+        });
+    }
+
+    @Override
+    public void drain() {
+        eventLoop.execute(() -> {
+            if (!requestInFlight && unfinishedRequests == 0) {
+                close();
+            }
+        });
+    }
+
+    @Override
+    public void abort() {
+        eventLoop.execute(this::close);
+    }
+
+    /**
+     * Reports the requests on this connection as finished to the tracker, either because their
+     * responses have been written out completely or because the connection was closed.
+     */
+    private void finishRequests() {
+        while (unfinishedRequests > 0) {
+            unfinishedRequests--;
+            eventLoop.getConnectionTracker().requestFinished();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        readTimer.disarm();
+        writeTimer.disarm();
+        finishRequests();
+        eventLoop.getConnectionTracker().remove(this);
+        if (key != null) {
+            key.cancel();
+        }
+        if (readBuffer != null) {
+            BufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+        if (bodySpool != null) {
+            bodySpool.discard();
+            bodySpool = null;
+        }
+        if (takenOver != null) {
+            takenOver.close();
+        }
+        Object entry;
+        while ((entry = writeQueue.poll()) != null) {
+            if (entry instanceof PooledBuffer) {
+                BufferPool.release(((PooledBuffer) entry).buffer);
+            }
+        }
+        try {
+            (tls != null ? tls : channel).close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void flushWrites() {
+        if (closed) return;
+        try {
+            Object next;
+            while ((next = writeQueue.peek()) != null) {
+                if (next instanceof RequestTiming) {
+                    writeQueue.poll();
+                    ((RequestTiming) next).written();
+                    continue;
+                }
+                long written;
+                boolean complete;
+                if (next instanceof FileRegion) {
+                    FileRegion region = (FileRegion) next;
+                    written = region.transferTo(channel, tls);
+                    complete = region.remaining == 0;
+                    if (complete) {
+                        synchronized (this) {
+                            region.done = true;
+                            notifyAll();
+                        }
+                    }
+                    if (complete) {
+                        writeQueue.poll();
+                    }
+                } else {
+                    written = writeGathered();
+                    complete = gather[0] == null;
+                    if (written > 0) {
+                        synchronized (this) {
+                            pendingBytes -= written;
+                            notifyAll();
+                        }
+                    }
+                    Arrays.fill(gather, null);
+                }
+                if (!complete) {
+                    if (written > 0 || writeTimer.getPhase() == null) {
+                        writeTimer.arm(ConnectionTimer.Phase.WRITE, StartupArgs.WRITE_TIMEOUT);
+                    }
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (tls != null && !tls.flush()) {
+                writeTimer.arm(ConnectionTimer.Phase.WRITE, StartupArgs.WRITE_TIMEOUT);
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeTimer.disarm();
+            if (!requestInFlight) {
+                finishRequests();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (takenOver != null && !requestInFlight) {
+                handOver();
+            } else if (closeAfterWrite) {
+                close();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes the buffers at the head of the queue, up to the next file region or the end of the
+     * response, with one gathering write, so a response head and the body chunks queued behind it
+     * leave in as few segments as possible. Removes the buffers that were written completely and
+     * leaves the first unfinished one in {@code gather[0]}.
+     */
+    private long writeGathered() throws IOException {
+        int count = 0;
+        for (Object entry : writeQueue) {
+            if (entry instanceof FileRegion || entry instanceof RequestTiming || count == MAX_GATHER) break;
+            gather[count++] = entry instanceof PooledBuffer ? ((PooledBuffer) entry).buffer : (ByteBuffer) entry;
+        }
+        long written = tls != null ? tls.write(gather, 0, count) : channel.write(gather, 0, count);
+        int done = 0;
+        while (done < count && !gather[done].hasRemaining()) {
+            Object entry = writeQueue.poll();
+            if (entry instanceof PooledBuffer) {
+                BufferPool.release(((PooledBuffer) entry).buffer);
+            }
+            done++;
+        }
+        gather[0] = done < count ? gather[done] : null;
+        return written;
+    }
+
+    private void releaseReadBufferIfEmpty() {
+        if (readBuffer.position() == 0) {
+            BufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    /**
+     * Drops the empty lines a client may send in front of a request line, RFC 7230 3.5.
+     */
+    private void skipLeadingEmptyLines() {
+        int skip = 0;
+        while (skip < readBuffer.position() && (readBuffer.get(skip) == '\r' || readBuffer.get(skip) == '\n')) {
+            skip++;
+        }
+        if (skip == 0) return;
+        readBuffer.flip();
+        readBuffer.position(skip);
+        readBuffer.compact();
+    }
+
+    private int findHeadEnd() {
+        ByteBuffer data = readBuffer;
+        int limit = readBuffer.position();
+        for (int i = Math.max(scanPosition, 3); i < limit; i++) {
+            if (data.get(i) == '\n' && data.get(i - 1) == '\r' && data.get(i - 2) == '\n' && data.get(i - 3) == '\r') {
+                return i + 1;
+            }
+        }
+        scanPosition = limit;
+        return -1;
+    }
+
+    /**
+     * A queued buffer that goes back to the {@link BufferPool} once written.
+     */
+    private static class PooledBuffer {
+        private final ByteBuffer buffer;
+
+        PooledBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Reads a request head straight from the read buffer.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+
+    /**
+     * Part of a file waiting to be sent; the file itself stays owned by the thread that queued it.
+     */
+    private static class FileRegion {
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+        private boolean done = false;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        long transferTo(SocketChannel channel, TlsChannel tls) throws IOException {
+            if (remaining == 0) return 0;
+            long sent = tls != null ? tls.transferFrom(file, position, remaining) : file.transferTo(position, remaining, channel);
+            if (sent == 0 && position >= file.size()) {
+                throw new IOException("File is shorter than expected");
+            }
+            position += sent;
+            remaining -= sent;
+            return sent;
+        }
+    }
+}
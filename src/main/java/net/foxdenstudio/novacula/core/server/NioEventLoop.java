@@ -0,0 +1,316 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.utils.NovaLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread of the NIO engine. Owns every connection registered with it and performs
+ * all of their socket reads and writes; other threads talk to it through {@link #execute(Runnable)}.
+ * WebSockets and event streams on either engine are served by event loops too, so an open socket
+ * does not hold a thread.
+ */
+class NioEventLoop implements Runnable {
+
+    /**
+     * What is attached to a selection key: an HTTP connection or a {@link LongLivedConnection} that
+     * took one over.
+     */
+    interface Handler {
+
+        void onReadable() throws IOException;
+
+        void onWritable();
+
+        void close();
+
+        /**
+         * @return true if input is buffered below the handler, in a {@link TlsChannel}, that the
+         * selector cannot report
+         */
+        default boolean hasBufferedInput() {
+            return false;
+        }
+    }
+
+    private final NovaLogger novaLogger;
+    private final WorkerPool workerPool;
+    private final TimingWheel timingWheel;
+    private final ConnectionTracker connectionTracker;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<SelectionKey> bufferedInput = new LinkedHashSet<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    NioEventLoop(NovaLogger novaLogger, WorkerPool workerPool, TimingWheel timingWheel,
+                 ConnectionTracker connectionTracker, String name) throws IOException {
+        this.novaLogger = novaLogger;
+        this.workerPool = workerPool;
+        this.timingWheel = timingWheel;
+        this.connectionTracker = connectionTracker;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    ConnectionTracker getConnectionTracker() {
+        return connectionTracker;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Takes a channel off this loop's selector. {@code then} runs on the loop once the channel has
+     * been deregistered, so it can switch the channel to blocking mode.
+     */
+    void deregister(SelectionKey key, Runnable then) {
+        key.cancel();
+        tasks.add(then);
+        selector.wakeup();
+    }
+
+    /**
+     * @param tlsContext the context to create the engine from if the channel comes from a TLS
+     *                   listener, or null
+     */
+    void register(SocketChannel channel, TlsContext tlsContext) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                TlsChannel tls = tlsContext != null ? new TlsChannel(channel, tlsContext.newEngine()) : null;
+                NioConnection connection = new NioConnection(this, channel, tls);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                connectionTracker.add(connection);
+            } catch (IOException e) {
+                novaLogger.logError("Could not register client connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes a connection that was answered without reading its request once the client has closed
+     * its side, see {@link LingeringClose}. The caller must have shut down the channel's output.
+     */
+    void linger(SocketChannel channel) {
+        execute(() -> {
+            LingeringClose lingering = new LingeringClose(this, channel);
+            try {
+                channel.configureBlocking(false);
+                lingering.start(channel.register(selector, SelectionKey.OP_READ, lingering));
+            } catch (IOException e) {
+                lingering.close();
+            }
+        });
+    }
+
+    /**
+     * Adds a connection the blocking engine handed over, with the bytes that were already read past
+     * its last request.
+     *
+     * @param buffered a pooled buffer holding those bytes, or null
+     */
+    void register(SocketChannel channel, TlsChannel tls, LongLivedConnection connection, ByteBuffer buffered) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, 0, connection);
+                connection.start(this, channel, tls, key, buffered);
+                checkBufferedInput(key);
+            } catch (IOException e) {
+                if (buffered != null) {
+                    BufferPool.release(buffered);
+                }
+                connection.close();
+                try {
+                    (tls != null ? tls : channel).close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (hasReadableBufferedInput()) {
+                    selector.selectNow();
+                } else {
+                    selector.select();
+                }
+                runTasks();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    processKey(key);
+                }
+                processBufferedInput();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                novaLogger.logError("ERROR: " + e.getMessage());
+            }
+        }
+
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                novaLogger.logError("ERROR: " + e.getMessage());
+            }
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        Handler handler = (Handler) key.attachment();
+        try {
+            if (key.isReadable()) {
+                handler.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                handler.onWritable();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            handler.close();
+        } catch (RuntimeException e) {
+            fail(handler, e);
+        }
+        checkBufferedInput(key);
+    }
+
+    /**
+     * Closes a handler that threw an unexpected exception, so the failure stays with its own
+     * connection instead of ending the loop and every other connection on it.
+     */
+    private void fail(Handler handler, RuntimeException e) {
+        e.printStackTrace();
+        novaLogger.logError("ERROR: " + e.getMessage());
+        try {
+            handler.close();
+        } catch (RuntimeException closeFailure) {
+            closeFailure.printStackTrace();
+        }
+    }
+
+    private void checkBufferedInput(SelectionKey key) {
+        if (key.isValid() && ((Handler) key.attachment()).hasBufferedInput()) {
+            bufferedInput.add(key);
+        }
+    }
+
+    private boolean hasReadableBufferedInput() {
+        for (SelectionKey key : bufferedInput) {
+            try {
+                if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0) return true;
+            } catch (CancelledKeyException ignored) {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets handlers read the input their {@link TlsChannel} decrypted beyond what they took, as if
+     * the socket had become readable. A handler that is not reading keeps its place until it is.
+     */
+    private void processBufferedInput() {
+        Iterator<SelectionKey> iterator = bufferedInput.iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            Handler handler = (Handler) key.attachment();
+            try {
+                if (!key.isValid() || !handler.hasBufferedInput()) {
+                    iterator.remove();
+                } else if ((key.interestOps() & SelectionKey.OP_READ) != 0) {
+                    handler.onReadable();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                iterator.remove();
+                handler.close();
+            } catch (RuntimeException e) {
+                iterator.remove();
+                fail(handler, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Connection output used by the NIO engine while a request is being answered. Writes are collected
+ * into a pooled direct buffer which is handed to the connection's event loop as is on flush, the
+ * connection returns it to the {@link BufferPool} once written. Closing the stream only flushes it,
+ * the connection decides whether to stay open.
+ */
+class NioOutputStream extends OutputStream implements ChannelOutput {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final NioConnection connection;
+    private ByteBuffer buffer;
+    private boolean closed = false;
+
+    NioOutputStream(NioConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (buffer != null && !buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        if (buffer == null) {
+            buffer = BufferPool.acquire(BUFFER_SIZE);
+        }
+        buffer.put((byte) b);
+    }
+
+    /**
+     * Large writes are copied into buffers of their own, up to {@link BufferPool#MAX_SIZE} each,
+     * instead of passing through the small collecting buffer.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len >= BUFFER_SIZE) {
+            flushBuffer();
+            while (len > 0) {
+                int n = Math.min(len, BufferPool.MAX_SIZE);
+                ByteBuffer chunk = BufferPool.acquire(n);
+                chunk.put(b, off, n).flip();
+                connection.writeAndRelease(chunk);
+                off += n;
+                len -= n;
+            }
+            return;
+        }
+        if (buffer != null && len > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (buffer == null) {
+            buffer = BufferPool.acquire(BUFFER_SIZE);
+        }
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        flushBuffer();
+        connection.write(src);
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        ensureOpen();
+        flushBuffer();
+        connection.transferFile(file, position, count);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            flushBuffer();
+        } finally {
+            closed = true;
+            if (buffer != null) {
+                BufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer != null && buffer.position() > 0) {
+            ByteBuffer full = buffer;
+            buffer = null;
+            full.flip();
+            connection.writeAndRelease(full);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
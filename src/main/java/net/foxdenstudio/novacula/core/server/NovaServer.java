@@ -30,9 +30,14 @@ import net.foxdenstudio.novacula.core.plugins.events.*;
 import net.foxdenstudio.novacula.core.utils.NovaInfo;
 import net.foxdenstudio.novacula.core.utils.NovaLogger;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by d4rkfly3r (Joshua F.) on 12/23/15.
@@ -40,8 +45,16 @@ import java.net.Socket;
 public class NovaServer {
 
     private final NovaLogger novaLogger;
-    private ServerSocket serverSocket = null;
-    private boolean running = true;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final List<Closeable> serverSockets = new ArrayList<>();
+    private final List<Thread> acceptors = new ArrayList<>();
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    private final ConnectionTracker connectionTracker = new ConnectionTracker();
+    private WorkerPool workerPool = null;
+    private TimingWheel timingWheel = null;
+    private NioEventLoop[] eventLoops = null;
+    private TlsContext tlsContext = null;
+    private volatile boolean running = true;
 
     protected Thread runningThread = null;
 
@@ -49,6 +62,10 @@ public class NovaServer {
         this.novaLogger = novaLogger;
     }
 
+    /**
+     * Binds every configured listen address, starts the acceptor threads and blocks until the server
+     * is stopped.
+     */
     public synchronized void start() {
         PluginSystem.callEvent(new ServerPreInitializationEvent());
         long time = System.currentTimeMillis();
@@ -58,10 +75,16 @@ public class NovaServer {
 
         novaLogger.logQuiet(NovaLogger.ANSI_BLUE + "\n----------SERVER STARTING----------\n");
         try {
-            serverSocket = new ServerSocket(StartupArgs.BASE_SERVER_PORT);
+            workerPool = WorkerPool.create(metrics);
+            metrics.setWorkerPool(workerPool);
+            timingWheel = new TimingWheel(metrics, 100, 512);
+            timingWheel.start();
+            startEventLoops();
+            openListeners();
 
             novaLogger.logQuiet(NovaLogger.ANSI_BLUE + "\n----------SERVER IS RUNNING----------\n");
             novaLogger.logQuiet(NovaInfo.getServerInfo());
+            novaLogger.logQuiet(NovaLogger.ANSI_GREEN + "Request handling runs on " + (workerPool.isVirtual() ? "virtual threads" : "platform threads"));
             novaLogger.logQuiet(NovaInfo.getFileInfo());
         } catch (IOException e) {
             novaLogger.logQuiet(NovaLogger.ANSI_BLUE + "\n----------SERVER START FAILED----------\n");
@@ -70,40 +93,183 @@ public class NovaServer {
             System.exit(1);
         }
 
-        if (serverSocket != null) {
-            PluginSystem.callEvent(new ServerPostInitializationEvent(System.currentTimeMillis() - time));
-            while (isRunning()) {
-                Socket clientSocket;
-                try {
-                    clientSocket = this.serverSocket.accept();
-                    PluginSystem.callEvent(new ClientConnectingEvent());
-                } catch (IOException e) {
-                    if (isRunning()) {
-                        System.out.println("Server Stopped.");
-                        return;
-                    }
-                    throw new RuntimeException("Error accepting client connection", e);
+        PluginSystem.callEvent(new ServerPostInitializationEvent(System.currentTimeMillis() - time));
+        acceptors.forEach(Thread::start);
+        while (isRunning()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens the server sockets for every listen address. Each address gets the configured number of
+     * acceptor threads; where SO_REUSEPORT is available every acceptor binds its own socket so the
+     * kernel spreads connections across them, otherwise the acceptors share one socket. The keystore
+     * is only loaded if there is a TLS listener.
+     */
+    private void openListeners() throws IOException {
+        int acceptorCount = Math.max(1, StartupArgs.ACCEPTOR_THREADS);
+        boolean reusePort = acceptorCount > 1 && StartupArgs.REUSE_PORT && Listener.isReusePortSupported();
+
+        for (Listener listener : Listener.parse(StartupArgs.LISTEN_ADDRESSES, StartupArgs.ACCEPT_BACKLOG)) {
+            if (listener.isTls() && tlsContext == null) {
+                tlsContext = TlsContext.load();
+            }
+            ServerSocketChannel serverChannel = null;
+            for (int i = 0; i < acceptorCount; i++) {
+                if (serverChannel == null || reusePort) {
+                    serverChannel = listener.openServerChannel(reusePort);
+                    serverSockets.add(serverChannel);
                 }
-                new Thread(
-                        new ClientConnectionThread(novaLogger, clientSocket, StartupArgs.SERVER_NAME)
-                ).start();
-                PluginSystem.callEvent(new ClientConnectedEvent());
+                ServerSocketChannel channel = serverChannel;
+                Runnable acceptor = isNioEngine() ? () -> acceptNio(listener, channel) : () -> acceptBlocking(listener, channel);
+                acceptors.add(new Thread(acceptor, "Nova-Acceptor-" + acceptors.size()));
+            }
+            novaLogger.logQuiet(NovaLogger.ANSI_GREEN + "Listening on " + listener + " with " + acceptorCount
+                    + " acceptor(s)" + (reusePort ? " using SO_REUSEPORT" : ""));
+        }
+    }
+
+    /**
+     * Starts the selector threads. The blocking engine only needs one, for the WebSockets plugins
+     * accept, so an open socket does not hold a thread.
+     */
+    private void startEventLoops() throws IOException {
+        eventLoops = new NioEventLoop[isNioEngine() ? Math.max(1, StartupArgs.EVENT_LOOP_THREADS) : 1];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop(novaLogger, workerPool, timingWheel, connectionTracker, "Nova-EventLoop-" + i);
+            eventLoops[i].start();
+        }
+    }
+
+    private NioEventLoop nextEventLoop() {
+        return eventLoops[(nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+    }
+
+    private void acceptBlocking(Listener listener, ServerSocketChannel serverChannel) {
+        while (isRunning()) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+                listener.configure(clientChannel);
+                PluginSystem.callEvent(new ClientConnectingEvent());
+            } catch (IOException e) {
+                if (!isRunning()) return;
+                novaLogger.logError("Error accepting client connection: " + e.getMessage());
+                continue;
+            }
+            if (!admitConnection(listener, clientChannel)) continue;
+            TlsChannel tls = listener.isTls() ? new TlsChannel(clientChannel, tlsContext.newEngine()) : null;
+            ClientConnectionThread connection = new ClientConnectionThread(novaLogger, clientChannel, tls, StartupArgs.SERVER_NAME,
+                    workerPool, timingWheel, connectionTracker, nextEventLoop());
+            connectionTracker.add(connection);
+            if (!workerPool.tryExecute(connection)) {
+                connectionTracker.remove(connection);
+                rejectConnection(clientChannel, tls != null, WorkerPool.SERVICE_UNAVAILABLE);
+                continue;
+            }
+            PluginSystem.callEvent(new ClientConnectedEvent());
+        }
+    }
+
+    private void acceptNio(Listener listener, ServerSocketChannel serverChannel) {
+        while (isRunning()) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+                listener.configure(clientChannel);
+                PluginSystem.callEvent(new ClientConnectingEvent());
+            } catch (IOException e) {
+                if (!isRunning()) return;
+                novaLogger.logError("Error accepting client connection: " + e.getMessage());
+                continue;
+            }
+            if (!admitConnection(listener, clientChannel)) continue;
+            nextEventLoop().register(clientChannel, listener.isTls() ? tlsContext : null);
+            PluginSystem.callEvent(new ClientConnectedEvent());
+        }
+    }
+
+    /**
+     * Checks the client against the connection rate limit, answering with 429 if it is over it.
+     */
+    private boolean admitConnection(Listener listener, SocketChannel clientChannel) {
+        if (!RateLimiter.ENABLED) return true;
+        int retryAfter = RateLimiter.checkConnection(RateLimiter.clientKey(clientChannel));
+        if (retryAfter == 0) return true;
+        rejectConnection(clientChannel, listener.isTls(), RateLimiter.tooManyRequests(retryAfter));
+        return false;
+    }
+
+    /**
+     * Answers with the given response and closes the connection. The request is never read, so an
+     * event loop drains it before closing; the client would likely get a reset instead of the
+     * response otherwise. A TLS connection is just closed, as answering it would mean doing the
+     * handshake on the acceptor thread.
+     */
+    private void rejectConnection(SocketChannel clientChannel, boolean tls, byte[] response) {
+        try {
+            if (!tls) {
+                clientChannel.write(ByteBuffer.wrap(response));
+                clientChannel.shutdownOutput();
+                nextEventLoop().linger(clientChannel);
+                return;
             }
+        } catch (IOException ignored) {
+        }
+        try {
+            clientChannel.close();
+        } catch (IOException ignored) {
         }
     }
 
+    /**
+     * Stops accepting connections and lets the requests that are already running finish, for up to
+     * the configured drain timeout, before closing the remaining connections and shutting down.
+     */
     public synchronized void stop() {
+        if (!isRunning()) return;
         PluginSystem.callEvent(new ServerHaltingEvent());
         this.running = false;
+        int drained = 0;
+        int aborted = 0;
         try {
-            this.serverSocket.close();
+            for (Closeable serverSocket : serverSockets) {
+                serverSocket.close();
+            }
+            aborted = connectionTracker.drain(StartupArgs.SHUTDOWN_DRAIN_TIMEOUT);
+            drained = connectionTracker.getDrainedRequests();
+            connectionTracker.abortAll();
+            if (eventLoops != null) {
+                for (NioEventLoop eventLoop : eventLoops) {
+                    eventLoop.shutdown();
+                }
+            }
+            this.workerPool.shutdown();
+            this.timingWheel.stop();
         } catch (IOException e) {
             throw new RuntimeException("Error closing server", e);
+        } finally {
+            notifyAll();
         }
-        PluginSystem.callEvent(new ServerHaltedEvent());
+        novaLogger.log("Server Stopped. Drained " + drained + " request(s), aborted " + aborted + ".");
+        BufferPool.reportLeaks(novaLogger);
+        PluginSystem.callEvent(new ServerHaltedEvent(drained, aborted));
     }
 
     public boolean isRunning() {
         return this.running;
     }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isNioEngine() {
+        return "nio".equalsIgnoreCase(StartupArgs.SERVER_ENGINE);
+    }
 }
@@ -67,9 +67,9 @@ public class PHPHandler {
                 String line;
                 while ((line = bufferedReader.readLine()) != null) {
                     outputStream.write((line + "\r\n").getBytes());
-                    outputStream.flush();
                 }
             }
+            outputStream.flush();
 
             process.destroy();
         }
@@ -0,0 +1,287 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets per client, for the rate limits configured in {@link StartupArgs}: new connections
+ * are checked right after accept, requests once their head has been parsed, and requests whose
+ * normalized path lies under one of the prefixes in {@code novacula.rateLimitRoutes} (e.g.
+ * {@code /login=0.2/5,/api/=50/100}, tokens per second and burst) against a bucket of their own.
+ * <p>
+ * A bucket is a single timestamp, the time at which it will be full again: taking a token moves it
+ * forward by one token's worth, and refilling is implied by the clock passing it. Checking a request
+ * is therefore one map lookup and one compare-and-set. Buckets that have been full for longer than
+ * the idle timeout carry no information and are dropped when new clients are added.
+ */
+final class RateLimiter {
+
+    static final boolean ENABLED;
+
+    private static final RateLimiter CONNECTIONS;
+    private static final RateLimiter REQUESTS;
+    private static final Route[] ROUTES;
+    private static final byte[][] TOO_MANY_REQUESTS = new byte[61][];
+    private static final LongAdder limitedConnections = new LongAdder();
+    private static final LongAdder limitedRequests = new LongAdder();
+
+    static {
+        CONNECTIONS = StartupArgs.RATE_LIMIT_CONNECTIONS > 0
+                ? new RateLimiter(StartupArgs.RATE_LIMIT_CONNECTIONS, StartupArgs.RATE_LIMIT_CONNECTION_BURST) : null;
+        REQUESTS = StartupArgs.RATE_LIMIT_REQUESTS > 0
+                ? new RateLimiter(StartupArgs.RATE_LIMIT_REQUESTS, StartupArgs.RATE_LIMIT_REQUEST_BURST) : null;
+        ROUTES = parseRoutes(StartupArgs.RATE_LIMIT_ROUTES);
+        ENABLED = CONNECTIONS != null || REQUESTS != null || ROUTES.length > 0;
+        for (int i = 1; i < TOO_MANY_REQUESTS.length; i++) {
+            TOO_MANY_REQUESTS[i] = tooManyRequestsResponse(i);
+        }
+    }
+
+    private final long interval;
+    private final long capacity;
+    private final long idleNanos = TimeUnit.MILLISECONDS.toNanos(StartupArgs.RATE_LIMIT_IDLE_TIMEOUT);
+    private final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + idleNanos);
+
+    RateLimiter(double perSecond, int burst) {
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        this.capacity = interval * Math.max(1, burst);
+    }
+
+    /**
+     * @return the key a client is limited by: its address, or for IPv6 its /64 network, which is
+     * what a single subscriber usually gets; null if the address is unknown
+     */
+    static Object clientKey(SocketChannel channel) {
+        try {
+            InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            if (address instanceof Inet6Address) {
+                return ByteBuffer.wrap(address.getAddress()).getLong();
+            }
+            return address;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return 0 if the client may open another connection, otherwise the seconds until it may retry
+     */
+    static int checkConnection(Object client) {
+        if (CONNECTIONS == null || client == null) return 0;
+        int retryAfter = CONNECTIONS.acquire(client);
+        if (retryAfter > 0) {
+            limitedConnections.increment();
+        }
+        return retryAfter;
+    }
+
+    /**
+     * @return 0 if the client may send this request, otherwise the seconds until it may retry
+     */
+    static int checkRequest(Object client, HTTPHeaderParser request) {
+        if (client == null) return 0;
+        int retryAfter = REQUESTS != null ? REQUESTS.acquire(client) : 0;
+        if (retryAfter == 0 && ROUTES.length > 0) {
+            String path = normalizePath(request.getRequestTarget());
+            for (Route route : ROUTES) {
+                if (matchesRoute(path, route.prefix)) {
+                    retryAfter = route.limiter.acquire(client);
+                    break;
+                }
+            }
+        }
+        if (retryAfter > 0) {
+            limitedRequests.increment();
+        }
+        return retryAfter;
+    }
+
+    /**
+     * Matches whole path segments only: {@code /login} covers {@code /login} and {@code /login/x} but
+     * not {@code /loginhelp}, while a prefix ending in a slash covers everything below it.
+     */
+    static boolean matchesRoute(String path, String prefix) {
+        if (!path.startsWith(prefix)) return false;
+        return path.length() == prefix.length() || prefix.endsWith("/") || path.charAt(prefix.length()) == '/';
+    }
+
+    /**
+     * Reduces a request target to the path a route prefix is matched against: without the query,
+     * percent-decoded, with empty and dot segments resolved, so {@code /%6cogin}, {@code //login}
+     * and {@code /a/../login} all become {@code /login}. The scheme and authority of an
+     * absolute-form target are dropped.
+     */
+    static String normalizePath(String target) {
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        if (!path.startsWith("/")) {
+            int scheme = path.indexOf("://");
+            int start = scheme < 0 ? -1 : path.indexOf('/', scheme + 3);
+            path = start < 0 ? "/" : path.substring(start);
+        }
+        String decoded = StaticFileHandler.decode(path);
+        if (decoded != null) {
+            path = decoded;
+        }
+        ArrayDeque<String> segments = new ArrayDeque<>();
+        String[] parts = path.split("/", -1);
+        boolean directory = false;
+        for (String part : parts) {
+            directory = part.isEmpty() || part.equals(".") || part.equals("..");
+            if (part.equals("..")) {
+                segments.pollLast();
+            } else if (!part.isEmpty() && !part.equals(".")) {
+                segments.addLast(part);
+            }
+        }
+        StringBuilder normalized = new StringBuilder(path.length());
+        for (String segment : segments) {
+            normalized.append('/').append(segment);
+        }
+        if (directory || normalized.length() == 0) {
+            normalized.append('/');
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @return a complete 429 response that closes the connection
+     */
+    static byte[] tooManyRequests(int retryAfter) {
+        return retryAfter < TOO_MANY_REQUESTS.length ? TOO_MANY_REQUESTS[retryAfter] : tooManyRequestsResponse(retryAfter);
+    }
+
+    private static byte[] tooManyRequestsResponse(int retryAfter) {
+        return ("HTTP/1.1 429 Too Many Requests\r\n" +
+                "Retry-After: " + retryAfter + "\r\n" +
+                "Connection: close\r\n" +
+                "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Takes a token from the client's bucket.
+     *
+     * @return 0 if there was one, otherwise the seconds until there is
+     */
+    int acquire(Object client) {
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(client);
+        if (bucket == null) {
+            sweepIfDue(now);
+            bucket = buckets.computeIfAbsent(client, key -> new AtomicLong(now));
+        }
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + interval;
+            long wait = next - now - capacity;
+            if (wait > 0) {
+                return (int) Math.min(Integer.MAX_VALUE, (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+            }
+            if (bucket.compareAndSet(full, next)) return 0;
+        }
+    }
+
+    /**
+     * Drops the buckets that have been full for the idle timeout. A client taking a token from a
+     * bucket while it is dropped gets that token back, which is as good as full anyway.
+     */
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + idleNanos)) return;
+        buckets.values().removeIf(bucket -> now - bucket.get() > idleNanos);
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    static long getLimitedConnections() {
+        return limitedConnections.sum();
+    }
+
+    static long getLimitedRequests() {
+        return limitedRequests.sum();
+    }
+
+    /**
+     * @return number of clients currently tracked across all limits
+     */
+    static long getTrackedClients() {
+        long count = CONNECTIONS != null ? CONNECTIONS.size() : 0;
+        count += REQUESTS != null ? REQUESTS.size() : 0;
+        for (Route route : ROUTES) {
+            count += route.limiter.size();
+        }
+        return count;
+    }
+
+    private static Route[] parseRoutes(String spec) {
+        List<Route> routes = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int equals = entry.lastIndexOf('=');
+            int slash = entry.lastIndexOf('/');
+            if (equals <= 0 || slash < equals) {
+                throw new IllegalArgumentException("Invalid rate limit route: " + entry);
+            }
+            double perSecond = Double.parseDouble(entry.substring(equals + 1, slash).trim());
+            int burst = Integer.parseInt(entry.substring(slash + 1).trim());
+            if (perSecond <= 0) {
+                throw new IllegalArgumentException("Invalid rate limit route: " + entry);
+            }
+            routes.add(new Route(entry.substring(0, equals).trim(), new RateLimiter(perSecond, burst)));
+        }
+        return routes.toArray(new Route[0]);
+    }
+
+    private static class Route {
+        private final String prefix;
+        private final RateLimiter limiter;
+
+        Route(String prefix, RateLimiter limiter) {
+            this.prefix = prefix;
+            this.limiter = limiter;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body of a request as plugins read it: the bytes the client sent, with the chunked coding
+ * removed. Reading ends with the body, never in the request that follows it on the connection.
+ */
+final class RequestBody extends InputStream {
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final long DRAIN_LIMIT = 64 * 1024;
+
+    private final InputStream in;
+    private final long contentLength;
+    private final ChunkedDecoder chunked;
+    private final ConnectionTimer timer;
+    private final boolean ownsInput;
+    private OutputStream continueOut;
+    private long remaining;
+    private int failure = 0;
+
+    private RequestBody(InputStream in, long contentLength, ChunkedDecoder chunked, ConnectionTimer timer, boolean ownsInput) {
+        this.in = in;
+        this.contentLength = contentLength;
+        this.chunked = chunked;
+        this.timer = timer;
+        this.ownsInput = ownsInput;
+        this.remaining = contentLength;
+    }
+
+    /**
+     * Reads the body straight off a blocking connection as the plugin asks for it. A 100 Continue is
+     * sent to {@code out} on the first read if the client waits for one.
+     */
+    static RequestBody stream(HTTPHeaderParser request, InputStream in, ConnectionTimer timer, OutputStream out) {
+        RequestBody body = new RequestBody(in, request.getContentLength(),
+                request.isChunked() ? new ChunkedDecoder(StartupArgs.MAX_REQUEST_BODY_SIZE) : null, timer, false);
+        if (request.expectsContinue()) {
+            body.continueOut = out;
+        }
+        return body;
+    }
+
+    /**
+     * Wraps a body that has already been read completely, closing the body closes {@code in}.
+     */
+    static RequestBody of(InputStream in, long length) {
+        return new RequestBody(in, length, null, null, true);
+    }
+
+    /**
+     * Wraps a body that ends where {@code in} does, such as the body of an HTTP/2 stream. Closing the
+     * body closes {@code in}.
+     */
+    static RequestBody until(InputStream in) {
+        return new RequestBody(in, -1, null, null, true);
+    }
+
+    static RequestBody empty() {
+        return new RequestBody(null, 0, null, null, false);
+    }
+
+    /**
+     * @return the length of the body, or -1 if the length is not known up front
+     */
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the status the request should be answered with because its body could not be read, or
+     * 0 if nothing went wrong
+     */
+    int getFailure() {
+        return failure;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (failure != 0) {
+            throw new RequestBodyException(failure, "Request body could not be read");
+        }
+        try {
+            if (chunked == null && contentLength < 0) {
+                return in.read(b, off, len);
+            }
+            if (chunked == null) {
+                if (remaining == 0) return -1;
+                int count = readSource(b, off, (int) Math.min(len, remaining));
+                remaining -= count;
+                return count;
+            }
+            while (chunked.dataRemaining() == 0) {
+                if (chunked.isDone()) return -1;
+                chunked.frame(readSource());
+            }
+            int count = readSource(b, off, (int) Math.min(len, chunked.dataRemaining()));
+            chunked.consumed(count);
+            return count;
+        } catch (RequestBodyException e) {
+            failure = e.getStatus();
+            throw e;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (in == null || failure != 0) return 0;
+        if (chunked == null && contentLength < 0) return in.available();
+        long data = chunked == null ? remaining : chunked.dataRemaining();
+        return (int) Math.min(data, in.available());
+    }
+
+    /**
+     * Skips what the plugin left unread so the connection can carry the next request.
+     *
+     * @return false if the rest of the body is too large to be worth reading or could not be read, the
+     * connection has to be closed then
+     */
+    boolean discard() {
+        if (failure != 0) return false;
+        // a client still waiting for 100 Continue may or may not send the body, the connection cannot
+        // be reused safely
+        if (continueOut != null) return false;
+        if (chunked == null && (remaining > DRAIN_LIMIT || contentLength < 0)) return false;
+        byte[] scratch = new byte[4096];
+        long skipped = 0;
+        try {
+            while (skipped <= DRAIN_LIMIT) {
+                int count = read(scratch, 0, scratch.length);
+                if (count < 0) return true;
+                skipped += count;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsInput) {
+            in.close();
+        }
+    }
+
+    private int readSource() throws IOException {
+        sendContinue();
+        if (timer != null) {
+            timer.arm(ConnectionTimer.Phase.BODY_READ, StartupArgs.BODY_READ_TIMEOUT);
+        }
+        try {
+            int b = in.read();
+            if (b < 0) {
+                throw new RequestBodyException(400, "Request body ended early");
+            }
+            return b;
+        } finally {
+            if (timer != null) {
+                timer.disarm();
+            }
+        }
+    }
+
+    private int readSource(byte[] b, int off, int len) throws IOException {
+        sendContinue();
+        if (timer != null) {
+            timer.arm(ConnectionTimer.Phase.BODY_READ, StartupArgs.BODY_READ_TIMEOUT);
+        }
+        try {
+            int count = in.read(b, off, len);
+            if (count < 0) {
+                throw new RequestBodyException(400, "Request body ended early");
+            }
+            return count;
+        } finally {
+            if (timer != null) {
+                timer.disarm();
+            }
+        }
+    }
+
+    private void sendContinue() throws IOException {
+        if (continueOut != null) {
+            OutputStream out = continueOut;
+            continueOut = null;
+            out.write(CONTINUE);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.plugins.PluginSystem;
+import net.foxdenstudio.novacula.core.plugins.events.ServerRequestEvent;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+/**
+ * Runs a single parsed request through the plugins; shared by the blocking and the NIO engine.
+ */
+final class RequestDispatcher {
+
+    private RequestDispatcher() {
+    }
+
+    /**
+     * Answers the request on the given connection output. Requests the parser rejected get an error
+     * page, everything else is offered to the plugins as a {@link ServerRequestEvent}. If none of them
+     * wrote a response the request is served from the static files, and a 404 is sent if there is no
+     * file for it either.
+     *
+     * @param body           the request body, or null if the request has none
+     * @param allowKeepAlive false if the connection must be closed after this request regardless of
+     *                       what the client asked for
+     * @param takeOver       takes over the connection if a plugin accepted a WebSocket or an event
+     *                       stream, once the response head has been written; null if the connection
+     *                       cannot be handed over
+     * @param timing         told the status of the response once it has been produced
+     * @return whether the connection can be used for another request
+     */
+    static boolean dispatch(HTTPHeaderParser request, int status, RequestBody body, OutputStream out, boolean allowKeepAlive,
+                            String serverName, Consumer<LongLivedConnection> takeOver, RequestTiming timing) throws IOException {
+        boolean keepAlive = allowKeepAlive && status == 200 && request.isKeepAlive();
+        HttpResponseStream response = new HttpResponseStream(out, status == 200 ? request : null, keepAlive,
+                request.compareVersion(1, 1) <= 0, "HEAD".equals(request.getMethod()));
+
+        try {
+            if (status != 200) {
+                ClientConnectionThread.QuickAccess.Error(response, status, serverName);
+            } else {
+                ResponseWriter writer = new ResponseWriter(response, request, serverName, takeOver != null);
+                PluginSystem.callEventAndWait(new ServerRequestEvent(response, request, writer,
+                        body != null ? body : RequestBody.empty()));
+                writer.close();
+                if (writer.getTakenOver() != null) {
+                    takeOver.accept(writer.getTakenOver());
+                    return false;
+                }
+                if (body != null && body.getFailure() != 0 && !response.isCommitted()) {
+                    response.disableKeepAlive();
+                    ClientConnectionThread.QuickAccess.Error(response, body.getFailure(), serverName);
+                }
+                if (!response.isCommitted() && !StaticFileHandler.serve(request, response, serverName)) {
+                    ClientConnectionThread.QuickAccess.Error404(response, serverName);
+                }
+            }
+
+            response.close();
+            return response.isKeepAlive() && (body == null || body.discard());
+        } finally {
+            timing.dispatched(response.getStatus());
+            if (body != null) {
+                body.close();
+            }
+        }
+    }
+}
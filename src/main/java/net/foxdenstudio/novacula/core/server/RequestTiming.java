@@ -0,0 +1,100 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+/**
+ * Times one request through its phases and records the result into the latency histograms
+ * {@link ServerMetrics} reads, by phase and by status class, once the response has been written.
+ * Requests whose connection is closed before that are not recorded.
+ */
+final class RequestTiming {
+
+    private static final LatencyHistogram[][] HISTOGRAMS = new LatencyHistogram[ServerMetrics.RequestPhase.values().length][5];
+
+    static {
+        for (LatencyHistogram[] byStatus : HISTOGRAMS) {
+            for (int i = 0; i < byStatus.length; i++) {
+                byStatus[i] = new LatencyHistogram(StartupArgs.LATENCY_SLICE_MILLIS, StartupArgs.LATENCY_SLICES);
+            }
+        }
+    }
+
+    private final long started = System.nanoTime();
+    private long parsed;
+    private long dispatched;
+    private int status;
+
+    /**
+     * Starts timing a request whose head has started to arrive.
+     */
+    RequestTiming() {
+    }
+
+    void parsed() {
+        parsed = System.nanoTime();
+    }
+
+    /**
+     * @param status the status of the response, 0 if it failed before it had one
+     */
+    void dispatched(int status) {
+        this.dispatched = System.nanoTime();
+        this.status = status;
+    }
+
+    /**
+     * Records the request, now that its response has been written.
+     */
+    void written() {
+        long now = System.nanoTime();
+        // a response that failed before it had a status counts as a server error
+        int statusClass = status >= 100 && status < 600 ? status / 100 - 1 : 4;
+        long parsed = this.parsed != 0 ? this.parsed : started;
+        long dispatched = this.dispatched != 0 ? this.dispatched : parsed;
+        HISTOGRAMS[ServerMetrics.RequestPhase.PARSE.ordinal()][statusClass].record(parsed - started, now);
+        HISTOGRAMS[ServerMetrics.RequestPhase.DISPATCH.ordinal()][statusClass].record(dispatched - parsed, now);
+        HISTOGRAMS[ServerMetrics.RequestPhase.WRITE.ordinal()][statusClass].record(now - dispatched, now);
+        HISTOGRAMS[ServerMetrics.RequestPhase.TOTAL.ordinal()][statusClass].record(now - started, now);
+    }
+
+    /**
+     * @param statusClass 1 to 5 for the responses with a status of that class, 0 for all of them
+     * @param window      number of most recent time slices to merge
+     * @return the merged bucket counts, see {@link LatencyHistogram}
+     */
+    static long[] counts(ServerMetrics.RequestPhase phase, int statusClass, int window) {
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        long now = System.nanoTime();
+        LatencyHistogram[] byStatus = HISTOGRAMS[phase.ordinal()];
+        for (int i = 0; i < byStatus.length; i++) {
+            if (statusClass == 0 || statusClass == i + 1) {
+                byStatus[i].addTo(counts, window, now);
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,229 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Puts the responses of pipelined requests back into request order. Every request gets a slot from
+ * {@link #next()}; the oldest unfinished slot writes straight to the connection while later ones are
+ * buffered until it is their turn. A later slot buffers at most {@code novacula.pipelineBufferSize}
+ * bytes, beyond that its writer waits for its turn, so a pipelined batch of large files is never
+ * held on the heap.
+ */
+class ResponseSequencer {
+
+    private final OutputStream out;
+    private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+    private boolean closing = false;
+
+    ResponseSequencer(OutputStream out) {
+        this.out = out;
+    }
+
+    synchronized OutputStream next() {
+        Slot slot = new Slot();
+        slot.direct = slots.isEmpty();
+        slots.add(slot);
+        return slot;
+    }
+
+    /**
+     * Marks the response written to the slot as complete. If it must not be followed by another
+     * response on this connection, every later response is dropped.
+     */
+    synchronized void finish(OutputStream slot, boolean keepAlive) throws IOException {
+        Slot finished = (Slot) slot;
+        finished.done = true;
+        finished.keepAlive = keepAlive;
+        try {
+            advance();
+        } catch (IOException e) {
+            dropPending();
+            throw e;
+        } finally {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return true once a response has ended the connection
+     */
+    synchronized boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Waits until every response handed out so far has been finished.
+     */
+    synchronized void awaitIdle() throws IOException {
+        while (!slots.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Retires finished slots from the head of the queue. The stream is only flushed when the head
+     * moved; otherwise the head slot may be writing to it from another thread at this moment.
+     */
+    private void advance() throws IOException {
+        boolean advanced = false;
+        try {
+            while (!slots.isEmpty() && slots.peek().done) {
+                advanced = true;
+                Slot head = slots.poll();
+                if (!head.keepAlive) {
+                    dropPending();
+                    break;
+                }
+                Slot next = slots.peek();
+                if (next != null) {
+                    next.buffer.writeTo(out);
+                    next.buffer = null;
+                    next.direct = true;
+                }
+            }
+        } finally {
+            if (advanced) {
+                out.flush();
+            }
+        }
+    }
+
+    private void dropPending() {
+        closing = true;
+        for (Slot slot : slots) {
+            slot.dropped = true;
+        }
+        slots.clear();
+    }
+
+    private class Slot extends OutputStream implements ChannelOutput {
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private boolean direct;
+        private boolean done;
+        private boolean dropped;
+        private boolean keepAlive;
+
+        /**
+         * Waits, with the sequencer locked, until {@code length} more bytes fit into the buffer or
+         * the slot writes to the connection itself.
+         */
+        private void awaitRoom(long length) throws InterruptedIOException {
+            while (!direct && !dropped && buffer.size() + length > StartupArgs.PIPELINE_BUFFER_SIZE) {
+                try {
+                    ResponseSequencer.this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (ResponseSequencer.this) {
+                awaitRoom(len);
+                if (dropped) return;
+                if (!direct) {
+                    buffer.write(b, off, len);
+                    return;
+                }
+            }
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            synchronized (ResponseSequencer.this) {
+                awaitRoom(src.remaining());
+                if (dropped) return;
+                if (!direct) {
+                    ChannelOutput.copy(buffer, src);
+                    return;
+                }
+            }
+            ChannelOutput.write(out, src);
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers) throws IOException {
+            synchronized (ResponseSequencer.this) {
+                long length = 0;
+                for (ByteBuffer src : buffers) {
+                    length += src.remaining();
+                }
+                awaitRoom(length);
+                if (dropped) return;
+                if (!direct) {
+                    for (ByteBuffer src : buffers) {
+                        ChannelOutput.copy(buffer, src);
+                    }
+                    return;
+                }
+            }
+            ChannelOutput.write(out, buffers);
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            synchronized (ResponseSequencer.this) {
+                awaitRoom(count);
+                if (dropped) return;
+                if (!direct) {
+                    ChannelOutput.transfer(buffer, file, position, count);
+                    return;
+                }
+            }
+            ChannelOutput.transfer(out, file, position, count);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (ResponseSequencer.this) {
+                if (!direct || dropped) return;
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.plugins.events.ServerResponse;
+import net.foxdenstudio.novacula.core.plugins.events.WebSocket;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ServerResponse} on top of the {@link HttpResponseStream} of a request. The head is encoded
+ * with a {@link HeaderWriter} and written to that stream in one piece when the response is committed,
+ * so framing, compression and conditional requests are handled exactly as for plugins that write raw
+ * responses.
+ */
+class ResponseWriter implements ServerResponse {
+
+    private final HttpResponseStream response;
+    private final HTTPHeaderParser request;
+    private final String serverName;
+    private final boolean takeOverAllowed;
+    private final List<String[]> headers = new ArrayList<>();
+    private int status = 200;
+    private boolean used = false;
+    private boolean committed = false;
+    private LongLivedConnection takenOver;
+
+    /**
+     * @param takeOverAllowed whether the connection can be handed over to a WebSocket or an event
+     *                        stream, which is not the case for HTTP/2 streams
+     */
+    ResponseWriter(HttpResponseStream response, HTTPHeaderParser request, String serverName, boolean takeOverAllowed) {
+        this.response = response;
+        this.request = request;
+        this.serverName = serverName;
+        this.takeOverAllowed = takeOverAllowed;
+    }
+
+    @Override
+    public ServerResponse setStatus(int status) {
+        if (status < 100 || status > 999) {
+            throw new IllegalArgumentException("Invalid status code: " + status);
+        }
+        checkNotCommitted();
+        this.status = status;
+        return this;
+    }
+
+    @Override
+    public ServerResponse setHeader(String name, String value) {
+        checkNotCommitted();
+        headers.removeIf(header -> header[0].equalsIgnoreCase(name));
+        return addHeader(name, value);
+    }
+
+    @Override
+    public ServerResponse addHeader(String name, String value) {
+        checkNotCommitted();
+        if (name.isEmpty() || !isHeaderSafe(name) || !isHeaderSafe(value) || name.indexOf(':') >= 0) {
+            throw new IllegalArgumentException("Invalid header: " + name);
+        }
+        headers.add(new String[]{name, value});
+        return this;
+    }
+
+    @Override
+    public ServerResponse setContentLength(long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative content length: " + length);
+        }
+        return setHeader("Content-Length", String.valueOf(length));
+    }
+
+    @Override
+    public ServerResponse setChunkSize(int chunkSize) {
+        checkNotCommitted();
+        response.setChunkSize(chunkSize);
+        return this;
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return committed || response.isCommitted();
+    }
+
+    @Override
+    public OutputStream getBody() throws IOException {
+        commit();
+        return response;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        commit();
+        response.flush();
+    }
+
+    @Override
+    public WebSocket acceptWebSocket(String protocol) throws IOException {
+        if (!takeOverAllowed) {
+            throw new IllegalStateException("This connection cannot be upgraded to a WebSocket");
+        }
+        if (!request.isWebSocketUpgrade()) {
+            throw new IllegalStateException("Not a WebSocket upgrade request");
+        }
+        checkNotCommitted();
+        if (protocol != null && (protocol.isEmpty() || !isHeaderSafe(protocol))) {
+            throw new IllegalArgumentException("Invalid subprotocol: " + protocol);
+        }
+        committed = true;
+        HeaderWriter head = new HeaderWriter().status(101);
+        for (String[] header : headers) {
+            head.header(header[0], header[1]);
+        }
+        head.line(HeaderWriter.UPGRADE_WEBSOCKET)
+                .header("Sec-WebSocket-Accept", WebSocketConnection.acceptKey(request.getHeader("Sec-WebSocket-Key")));
+        if (protocol != null) {
+            head.header("Sec-WebSocket-Protocol", protocol);
+        }
+        response.takeOver(101, head.end());
+        WebSocketConnection webSocket = new WebSocketConnection(request, protocol);
+        takenOver = webSocket;
+        return webSocket;
+    }
+
+    @Override
+    public void acceptEventStream(String topic) throws IOException {
+        if (!takeOverAllowed) {
+            throw new IllegalStateException("This connection cannot carry an event stream");
+        }
+        checkNotCommitted();
+        committed = true;
+        HeaderWriter head = new HeaderWriter().status(200);
+        if (headers.stream().noneMatch(header -> header[0].equalsIgnoreCase("Server"))) {
+            head.server(serverName);
+        }
+        if (headers.stream().noneMatch(header -> header[0].equalsIgnoreCase("Date"))) {
+            head.date();
+        }
+        for (String[] header : headers) {
+            head.header(header[0], header[1]);
+        }
+        response.takeOver(200, head.line(HeaderWriter.EVENT_STREAM).end());
+        EventStreams.Topic subscribed = EventStreams.topic(topic);
+        EventStreamSubscriber subscriber = new EventStreamSubscriber(subscribed);
+        takenOver = subscriber;
+        subscribed.subscribe(subscriber, lastEventId());
+    }
+
+    private long lastEventId() {
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (lastEventId == null) return -1;
+        try {
+            return Math.max(-1, Long.parseLong(lastEventId.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the WebSocket or event stream the plugin accepted, or null if the request was answered
+     * normally
+     */
+    LongLivedConnection getTakenOver() {
+        return takenOver;
+    }
+
+    /**
+     * Ends the response if the plugin used this writer. A response the plugin wrote through the raw
+     * output stream is left alone. A head without a body that was never asked for gets an empty one.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!used) return;
+        if (!committed && !response.isCommitted()) {
+            if (headers.stream().noneMatch(header -> header[0].equalsIgnoreCase("Content-Length"))
+                    && status >= 200 && status != 204 && status != 304) {
+                headers.add(new String[]{"Content-Length", "0"});
+            }
+            commit();
+        }
+        response.close();
+    }
+
+    private void commit() throws IOException {
+        used = true;
+        if (committed) return;
+        if (response.isCommitted()) {
+            throw new IllegalStateException("Response already written through the client output stream");
+        }
+        committed = true;
+        HeaderWriter head = new HeaderWriter().status(status);
+        if (headers.stream().noneMatch(header -> header[0].equalsIgnoreCase("Server"))) {
+            head.server(serverName);
+        }
+        if (headers.stream().noneMatch(header -> header[0].equalsIgnoreCase("Date"))) {
+            head.date();
+        }
+        for (String[] header : headers) {
+            head.header(header[0], header[1]);
+        }
+        head.end().writeTo(response);
+    }
+
+    private void checkNotCommitted() {
+        used = true;
+        if (isCommitted()) {
+            throw new IllegalStateException("Response already committed");
+        }
+    }
+
+    private static boolean isHeaderSafe(String text) {
+        return text.indexOf('\r') < 0 && text.indexOf('\n') < 0;
+    }
+}
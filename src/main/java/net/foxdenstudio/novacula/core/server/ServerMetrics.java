@@ -0,0 +1,314 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters for a {@link NovaServer}, see {@link NovaServer#getMetrics()}.
+ */
+public class ServerMetrics {
+
+    /**
+     * The parts of a request that are timed: reading and parsing its head, producing the response
+     * (which includes reading the request body), and writing out what was still buffered once it
+     * was produced, plus all of it together.
+     */
+    public enum RequestPhase {
+        PARSE, DISPATCH, WRITE, TOTAL
+    }
+
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder[] timeouts = new LongAdder[ConnectionTimer.Phase.values().length];
+    private volatile WorkerPool workerPool;
+
+    ServerMetrics() {
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new LongAdder();
+        }
+    }
+
+    void setWorkerPool(WorkerPool workerPool) {
+        this.workerPool = workerPool;
+    }
+
+    void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    void connectionTimedOut(ConnectionTimer.Phase phase) {
+        timeouts[phase.ordinal()].increment();
+    }
+
+    /**
+     * @return number of connections or requests answered with 503 because the worker pool was full
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    /**
+     * @return number of connections or requests waiting for a free worker
+     */
+    public int getQueueDepth() {
+        WorkerPool pool = workerPool;
+        return pool == null ? 0 : pool.getQueueDepth();
+    }
+
+    /**
+     * @return number of workers currently handling a connection or request
+     */
+    public int getActiveWorkers() {
+        WorkerPool pool = workerPool;
+        return pool == null ? 0 : pool.getActiveWorkers();
+    }
+
+    /**
+     * @return number of static file requests answered from the hot-asset cache
+     */
+    public long getStaticCacheHits() {
+        StaticFileCache cache = StaticFileHandler.getCache();
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /**
+     * @return number of static file requests that had to go to the file system
+     */
+    public long getStaticCacheMisses() {
+        StaticFileCache cache = StaticFileHandler.getCache();
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    /**
+     * @return share of static file lookups answered from the hot-asset cache, between 0 and 1
+     */
+    public double getStaticCacheHitRatio() {
+        long hits = getStaticCacheHits();
+        long total = hits + getStaticCacheMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return number of files dropped from the hot-asset cache to stay within its byte budget
+     */
+    public long getStaticCacheEvictions() {
+        StaticFileCache cache = StaticFileHandler.getCache();
+        return cache == null ? 0 : cache.getEvictions();
+    }
+
+    /**
+     * @return bytes of file contents currently held by the hot-asset cache
+     */
+    public long getStaticCacheResidentBytes() {
+        StaticFileCache cache = StaticFileHandler.getCache();
+        return cache == null ? 0 : cache.getResidentBytes();
+    }
+
+    /**
+     * @return number of buffers taken from the I/O buffer pool
+     */
+    public long getBufferPoolAcquires() {
+        return BufferPool.getAcquires();
+    }
+
+    /**
+     * @return number of buffer requests the pool could not serve from released buffers, so memory
+     * had to be allocated
+     */
+    public long getBufferPoolMisses() {
+        return BufferPool.getMisses();
+    }
+
+    /**
+     * @return number of pooled buffers currently in use
+     */
+    public long getBufferPoolInUse() {
+        return BufferPool.getInUse();
+    }
+
+    /**
+     * @return bytes held by released buffers in the shared pool, ready for reuse
+     */
+    public long getBufferPoolIdleBytes() {
+        return BufferPool.getIdleBytes();
+    }
+
+    /**
+     * @return compressed size of all gzip and deflate encoded bodies divided by their original size,
+     * or 1 if nothing has been compressed yet
+     */
+    public double getCompressionRatio() {
+        long in = Compression.getBytesIn();
+        return in == 0 ? 1 : (double) Compression.getBytesOut() / in;
+    }
+
+    /**
+     * @return milliseconds spent compressing response bodies, summed over all threads
+     */
+    public long getCompressionTime() {
+        return Compression.getCompressionNanos() / 1_000_000;
+    }
+
+    /**
+     * @return number of encoded responses answered from the compressed variant cache
+     */
+    public long getCompressedVariantHits() {
+        CompressedVariantCache cache = Compression.getVariantCache();
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /**
+     * @return number of encoded responses that had to be compressed because no variant was cached
+     */
+    public long getCompressedVariantMisses() {
+        CompressedVariantCache cache = Compression.getVariantCache();
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    /**
+     * @return number of request bodies that were too large to keep in memory and went to a temporary file
+     */
+    public long getRequestBodySpills() {
+        return BodySpool.getSpills();
+    }
+
+    /**
+     * @return number of TLS handshakes that negotiated a new session
+     */
+    public long getTlsFullHandshakes() {
+        return TlsContext.getFullHandshakes();
+    }
+
+    /**
+     * @return number of TLS handshakes that resumed a session, from the session cache or a ticket
+     */
+    public long getTlsResumedHandshakes() {
+        return TlsContext.getResumedHandshakes();
+    }
+
+    /**
+     * @return number of TLS handshakes that failed, e.g. because client and server had no protocol
+     * version or cipher suite in common
+     */
+    public long getTlsHandshakeFailures() {
+        return TlsContext.getFailedHandshakes();
+    }
+
+    /**
+     * @return share of completed TLS handshakes that resumed a session, between 0 and 1
+     */
+    public double getTlsResumptionRatio() {
+        long resumed = getTlsResumedHandshakes();
+        long total = resumed + getTlsFullHandshakes();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    /**
+     * @param percentile    between 0 and 100, e.g. 99.9
+     * @param windowSeconds how far back to look, rounded up to whole slices of
+     *                      {@code novacula.latencySliceMillis} and at most all the slices kept
+     * @return nanoseconds the given share of the requests in the window took at most, 0 if there
+     * were none
+     */
+    public long getLatencyPercentile(RequestPhase phase, double percentile, int windowSeconds) {
+        return getLatencyPercentile(phase, 0, percentile, windowSeconds);
+    }
+
+    /**
+     * Like {@link #getLatencyPercentile(RequestPhase, double, int)}, for the requests answered with
+     * a status of the given class only, e.g. 5 for server errors.
+     */
+    public long getLatencyPercentile(RequestPhase phase, int statusClass, double percentile, int windowSeconds) {
+        return LatencyHistogram.percentile(RequestTiming.counts(phase, statusClass, latencyWindow(windowSeconds)), percentile);
+    }
+
+    /**
+     * @param statusClass 1 to 5 for the requests answered with a status of that class, 0 for all
+     * @return number of requests completed in the window, see {@link #getLatencyPercentile(RequestPhase, double, int)}
+     */
+    public long getCompletedRequests(int statusClass, int windowSeconds) {
+        long total = 0;
+        for (long count : RequestTiming.counts(RequestPhase.TOTAL, statusClass, latencyWindow(windowSeconds))) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static int latencyWindow(int windowSeconds) {
+        long slice = Math.max(1, StartupArgs.LATENCY_SLICE_MILLIS);
+        return (int) Math.min(Integer.MAX_VALUE, (windowSeconds * 1000L + slice - 1) / slice);
+    }
+
+    /**
+     * @return number of connections turned away with 429 because their client opened too many
+     */
+    public long getRateLimitedConnections() {
+        return RateLimiter.getLimitedConnections();
+    }
+
+    /**
+     * @return number of requests answered with 429 because their client sent too many
+     */
+    public long getRateLimitedRequests() {
+        return RateLimiter.getLimitedRequests();
+    }
+
+    /**
+     * @return number of client buckets the rate limits are currently keeping
+     */
+    public long getRateLimitedClients() {
+        return RateLimiter.getTrackedClients();
+    }
+
+    /**
+     * @return number of connections closed because the request head did not arrive in time
+     */
+    public long getHeaderReadTimeouts() {
+        return timeouts[ConnectionTimer.Phase.HEADER_READ.ordinal()].sum();
+    }
+
+    /**
+     * @return number of connections closed because the request body did not arrive in time
+     */
+    public long getBodyReadTimeouts() {
+        return timeouts[ConnectionTimer.Phase.BODY_READ.ordinal()].sum();
+    }
+
+    /**
+     * @return number of connections closed because the client stopped reading the response
+     */
+    public long getWriteTimeouts() {
+        return timeouts[ConnectionTimer.Phase.WRITE.ordinal()].sum();
+    }
+
+    /**
+     * @return number of idle keep-alive connections closed
+     */
+    public long getKeepAliveTimeouts() {
+        return timeouts[ConnectionTimer.Phase.KEEP_ALIVE.ordinal()].sum();
+    }
+}
@@ -0,0 +1,221 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Streams over a blocking {@link SocketChannel} for the blocking engine. Unlike the adaptors from
+ * {@link java.nio.channels.Channels} they do not share a lock between reading and writing, so a
+ * response can be written while another thread waits for the next pipelined request. Both go through
+ * pooled direct buffers, the input stream buffers reads like a {@link java.io.BufferedInputStream}.
+ * Closing a stream does not close the channel, which may outlive them when a WebSocket takes the
+ * connection over. On TLS connections they go through the connection's {@link TlsChannel}.
+ */
+final class SocketChannelStreams {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private SocketChannelStreams() {
+    }
+
+    static InputStream input(ReadableByteChannel channel) {
+        return new Input(channel);
+    }
+
+    static OutputStream output(GatheringByteChannel channel) {
+        return new Output(channel);
+    }
+
+    private static class Input extends InputStream {
+
+        private final ReadableByteChannel channel;
+        private ByteBuffer buffer;
+        private int mark = -1;
+
+        Input(ReadableByteChannel channel) {
+            this.channel = channel;
+            this.buffer = BufferPool.acquire(READ_BUFFER_SIZE);
+            this.buffer.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        /**
+         * Marks the current position. The mark stays valid for as long as the bytes read after it fit
+         * into the buffer, regardless of {@code readLimit}.
+         */
+        @Override
+        public void mark(int readLimit) {
+            if (buffer != null) {
+                mark = buffer.position();
+            }
+        }
+
+        @Override
+        public void reset() throws IOException {
+            if (buffer == null || mark < 0) {
+                throw new IOException("Resetting to invalid mark");
+            }
+            buffer.position(mark);
+        }
+
+        @Override
+        public void close() {
+            if (buffer != null) {
+                BufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+
+        /**
+         * Reads from the channel if everything buffered has been consumed, keeping the bytes after the
+         * mark.
+         *
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            if (buffer == null) {
+                throw new IOException("Stream closed");
+            }
+            if (buffer.hasRemaining()) return true;
+            int keep = mark >= 0 ? buffer.limit() - mark : 0;
+            if (keep == buffer.capacity()) {
+                keep = 0;
+                mark = -1;
+            }
+            if (keep > 0) {
+                buffer.position(mark);
+                buffer.compact();
+            } else {
+                buffer.clear();
+            }
+            if (mark >= 0) {
+                mark = 0;
+            }
+            int n = channel.read(buffer);
+            buffer.flip();
+            buffer.position(keep);
+            return n > 0;
+        }
+    }
+
+    private static class Output extends OutputStream implements ChannelOutput {
+
+        private final GatheringByteChannel channel;
+
+        Output(GatheringByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * Copies the bytes into a pooled direct buffer, which the channel would otherwise do with a
+         * temporary buffer of its own for every write.
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len <= 0) return;
+            ByteBuffer buffer = BufferPool.acquire(Math.min(len, BufferPool.MAX_SIZE));
+            try {
+                while (len > 0) {
+                    int n = Math.min(len, buffer.capacity());
+                    buffer.clear();
+                    buffer.put(b, off, n).flip();
+                    write(buffer);
+                    off += n;
+                    len -= n;
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers) throws IOException {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            long end = position + count;
+            while (position < end) {
+                long sent = channel instanceof TlsChannel
+                        ? ((TlsChannel) channel).transferFrom(file, position, end - position)
+                        : file.transferTo(position, end - position, channel);
+                if (sent <= 0 && position >= file.size()) {
+                    throw new IOException("File is shorter than expected");
+                }
+                position += sent;
+            }
+        }
+    }
+}
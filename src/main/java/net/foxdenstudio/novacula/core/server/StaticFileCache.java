@@ -0,0 +1,215 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the contents of small static files in direct buffers, together with the response headers
+ * for them, so repeated requests for the same asset are answered without opening or even looking at
+ * the file. Entries are evicted least recently used first once the cached contents exceed the byte
+ * budget, and a file is checked for changes at most once per check interval.
+ */
+class StaticFileCache {
+
+    private final long capacity;
+    private final long maxFileSize;
+    private final long checkInterval;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long residentBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    StaticFileCache(long capacity, long maxFileSize, long checkInterval) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, capacity);
+        this.checkInterval = checkInterval;
+    }
+
+    static final class Entry {
+        private final Path file;
+        private final long size;
+        private final long lastModified;
+        private final String etag;
+        private final byte[] head;
+        private final byte[] notModifiedHead;
+        private final ByteBuffer body;
+        private volatile long checkedAt;
+
+        private Entry(Path file, long size, long lastModified, String etag, byte[] head, byte[] notModifiedHead, ByteBuffer body) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.head = head;
+            this.notModifiedHead = notModifiedHead;
+            this.body = body;
+            this.checkedAt = TimingWheel.now();
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return the response headers after the status and Date lines, without the blank line
+         */
+        byte[] getHead() {
+            return head;
+        }
+
+        /**
+         * @return the headers of a 304 response after the status and Date lines
+         */
+        byte[] getNotModifiedHead() {
+            return notModifiedHead;
+        }
+
+        /**
+         * @return a read-only view of the file contents for one response
+         */
+        ByteBuffer getBody() {
+            return body.duplicate();
+        }
+    }
+
+    boolean isCacheable(long size) {
+        return size <= maxFileSize;
+    }
+
+    /**
+     * @return the cached entry, or null if there is none or the file changed since it was cached
+     */
+    Entry get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        long now = TimingWheel.now();
+        if (now - entry.checkedAt > checkInterval) {
+            if (!isUnchanged(entry)) {
+                remove(key, entry);
+                misses.increment();
+                return null;
+            }
+            entry.checkedAt = now;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Reads the first {@code size} bytes of the file into a new entry and caches it under the given key.
+     */
+    Entry put(String key, Path file, FileChannel channel, long size, long lastModified, String etag,
+              byte[] head, byte[] notModifiedHead) throws IOException {
+        ByteBuffer body = ByteBuffer.allocateDirect((int) size);
+        while (body.hasRemaining()) {
+            if (channel.read(body, body.position()) < 0) {
+                throw new IOException("File is shorter than expected");
+            }
+        }
+        body.flip();
+        Entry entry = new Entry(file, size, lastModified, etag, head, notModifiedHead, body.asReadOnlyBuffer());
+
+        synchronized (this) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                residentBytes -= previous.size;
+            }
+            residentBytes += size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (residentBytes > capacity && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                residentBytes -= evicted.size;
+                evictions.increment();
+            }
+        }
+        return entry;
+    }
+
+    private synchronized void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            residentBytes -= entry.size;
+        }
+    }
+
+    private static boolean isUnchanged(Entry entry) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(entry.file, BasicFileAttributes.class);
+            return attributes.isRegularFile() && attributes.size() == entry.size
+                    && attributes.lastModifiedTime().toMillis() == entry.lastModified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+}
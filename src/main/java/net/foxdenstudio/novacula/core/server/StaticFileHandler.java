@@ -0,0 +1,399 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+import net.foxdenstudio.novacula.core.utils.HttpValidators;
+import net.foxdenstudio.novacula.core.utils.MimeTypes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Serves files below {@link StartupArgs#SERVER_BASE_DIR} for requests no plugin answered. Small files
+ * are answered from the {@link StaticFileCache}; larger ones are handed to the connection as a file
+ * region, so they are sent without passing through the heap where the connection supports that.
+ * Conditional requests are checked against the file's entity tag and modification time before the
+ * file is opened, and range requests are answered with only the requested parts. Compressible files up
+ * to {@link StartupArgs#COMPRESSION_MAX_SIZE} are sent gzip or deflate encoded to clients that accept
+ * it, compressing each version of a file once; larger files are always sent as they are so they keep
+ * the zero-copy path.
+ */
+final class StaticFileHandler {
+
+    private static final String INDEX_FILE = "index.html";
+    private static final StaticFileCache CACHE = StartupArgs.STATIC_CACHE_SIZE > 0
+            ? new StaticFileCache(StartupArgs.STATIC_CACHE_SIZE, StartupArgs.STATIC_CACHE_MAX_FILE_SIZE, StartupArgs.STATIC_CACHE_CHECK_INTERVAL)
+            : null;
+
+    private StaticFileHandler() {
+    }
+
+    /**
+     * @return false if there is no file for the request, in which case nothing has been written
+     */
+    static boolean serve(HTTPHeaderParser request, HttpResponseStream response, String serverName) throws IOException {
+        if (!request.getMethod().equals("GET") && !request.getMethod().equals("HEAD")) {
+            return false;
+        }
+        response.disableCompression();
+        String target = stripQuery(request.getRequestTarget());
+        if (!target.startsWith("/") || decode(target) == null) {
+            return false;
+        }
+        // spellings of the same path, such as /a.css, /%61.css and /x/../a.css, share one entry
+        String key = RateLimiter.normalizePath(target);
+        StaticFileCache.Entry cached = CACHE == null ? null : CACHE.get(key);
+        if (cached != null) {
+            String encoding = selectEncoding(request, cached.getFile(), cached.getSize());
+            if (HttpValidators.isNotModified(request, cached.getETag(), cached.getLastModified())) {
+                writeHead(response, 304, encoding == null ? cached.getNotModifiedHead()
+                        : buildNotModifiedHead(HttpValidators.encodedETag(cached.getETag(), encoding), cached.getLastModified(), serverName), -1);
+            } else if (encoding != null) {
+                String variantETag = HttpValidators.encodedETag(cached.getETag(), encoding);
+                ByteBuffer variant = Compression.getVariant(cached.getFile().toString(), variantETag);
+                if (variant == null) {
+                    variant = encode(cached.getFile(), variantETag, encoding, cached.getBody());
+                }
+                writeEncoded(response, cached.getFile(), cached.getLastModified(), variantETag, encoding, variant, serverName);
+            } else if (!serveRanges(request, response, cached.getFile(), cached.getSize(), cached.getLastModified(),
+                    cached.getETag(), cached.getBody(), null, serverName)) {
+                writeHead(response, 200, cached.getHead(), cached.getSize());
+                response.write(cached.getBody());
+            }
+            return true;
+        }
+
+        Path file = resolve(target);
+        if (file == null) {
+            return false;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return false;
+        }
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = HttpValidators.fileETag(length, lastModified);
+        String encoding = selectEncoding(request, file, length);
+        String variantETag = encoding == null ? null : HttpValidators.encodedETag(etag, encoding);
+        if (HttpValidators.isNotModified(request, etag, lastModified)) {
+            writeHead(response, 304, buildNotModifiedHead(encoding == null ? etag : variantETag, lastModified, serverName), -1);
+            return true;
+        }
+        if (encoding != null) {
+            ByteBuffer variant = Compression.getVariant(file.toString(), variantETag);
+            if (variant != null) {
+                writeEncoded(response, file, lastModified, variantETag, encoding, variant, serverName);
+                return true;
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] head = buildHead(file, length, lastModified, etag, serverName);
+            ByteBuffer body = null;
+            if (CACHE != null && CACHE.isCacheable(length)) {
+                byte[] notModifiedHead = buildNotModifiedHead(etag, lastModified, serverName);
+                body = CACHE.put(key, file, channel, length, lastModified, etag, head, notModifiedHead).getBody();
+            }
+            if (encoding != null) {
+                ByteBuffer variant = encode(file, variantETag, encoding, body != null ? body : read(channel, length));
+                writeEncoded(response, file, lastModified, variantETag, encoding, variant, serverName);
+                return true;
+            }
+            if (serveRanges(request, response, file, length, lastModified, etag, body, channel, serverName)) {
+                return true;
+            }
+            writeHead(response, 200, head, length);
+            if (body != null) {
+                response.write(body);
+            } else {
+                response.transferFrom(channel, 0, length);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the content coding to send a file with, or null to send it as is
+     */
+    private static String selectEncoding(HTTPHeaderParser request, Path file, long length) {
+        if (length > StartupArgs.COMPRESSION_MAX_SIZE || request.getHeader("Range") != null) {
+            return null;
+        }
+        return Compression.select(request.getHeader("Accept-Encoding"),
+                MimeTypes.getMimeType(file.getFileName().toString()), length);
+    }
+
+    private static ByteBuffer encode(Path file, String variantETag, String encoding, ByteBuffer body) throws IOException {
+        ByteBuffer variant = Compression.compress(body, encoding);
+        Compression.putVariant(file.toString(), variantETag, variant);
+        return variant;
+    }
+
+    private static void writeEncoded(HttpResponseStream response, Path file, long lastModified, String variantETag,
+                                     String encoding, ByteBuffer variant, String serverName) throws IOException {
+        HeaderWriter head = new HeaderWriter()
+                .status(200)
+                .date()
+                .server(serverName)
+                .header("Content-Type", MimeTypes.getMimeType(file.getFileName().toString()))
+                .header("Content-Encoding", encoding)
+                .header("Content-Length", variant.remaining())
+                .line(HeaderWriter.VARY_ACCEPT_ENCODING)
+                .header("ETag", variantETag)
+                .header("Last-Modified", HTTPHeaderParser.formatDate(lastModified));
+        response.writeHead(200, head, variant.remaining());
+        response.write(variant.duplicate());
+    }
+
+    private static ByteBuffer read(FileChannel channel, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // read until the buffer is full or the file ends
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Answers a Range request with 206 Partial Content, or with 416 if none of the ranges lie within
+     * the file. The body comes from the cached contents if there are any, otherwise from the file.
+     *
+     * @return false if the request should get the whole file, because it has no usable Range header
+     * or its If-Range validator does not match
+     */
+    private static boolean serveRanges(HTTPHeaderParser request, HttpResponseStream response, Path file, long length,
+                                       long lastModified, String etag, ByteBuffer body, FileChannel channel,
+                                       String serverName) throws IOException {
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader == null || !request.getMethod().equals("GET")) {
+            return false;
+        }
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null && !HttpValidators.isRangeCurrent(ifRange, etag, lastModified)) {
+            return false;
+        }
+        List<ByteRange> ranges = ByteRange.parse(rangeHeader, length);
+        if (ranges == null) {
+            return false;
+        }
+
+        String contentType = MimeTypes.getMimeType(file.getFileName().toString());
+        int status = ranges.isEmpty() ? 416 : 206;
+        HeaderWriter head = new HeaderWriter()
+                .status(status)
+                .date()
+                .server(serverName)
+                .line(HeaderWriter.ACCEPT_RANGES);
+        if (Compression.isCompressible(contentType)) {
+            head.line(HeaderWriter.VARY_ACCEPT_ENCODING);
+        }
+        head.header("ETag", etag)
+                .header("Last-Modified", HTTPHeaderParser.formatDate(lastModified));
+
+        if (ranges.isEmpty()) {
+            head.header("Content-Range", "bytes */" + length)
+                    .header("Content-Length", 0);
+            response.writeHead(status, head, 0);
+            return true;
+        }
+
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            head.header("Content-Type", contentType)
+                    .header("Content-Range", "bytes " + range.start + "-" + range.end + "/" + length)
+                    .header("Content-Length", range.length());
+            response.writeHead(status, head, range.length());
+            writeRange(response, range, body, channel);
+            return true;
+        }
+
+        String boundary = "NOVACULA_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        byte[][] partHeads = new byte[ranges.size()][];
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        long contentLength = closing.length;
+        for (int i = 0; i < partHeads.length; i++) {
+            ByteRange range = ranges.get(i);
+            partHeads[i] = ("\r\n--" + boundary + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    "Content-Range: bytes " + range.start + "-" + range.end + "/" + length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            contentLength += partHeads[i].length + range.length();
+        }
+        head.header("Content-Type", "multipart/byteranges; boundary=" + boundary)
+                .header("Content-Length", contentLength);
+        response.writeHead(status, head, contentLength);
+        for (int i = 0; i < partHeads.length; i++) {
+            response.write(partHeads[i]);
+            writeRange(response, ranges.get(i), body, channel);
+        }
+        response.write(closing);
+        return true;
+    }
+
+    private static void writeRange(HttpResponseStream response, ByteRange range, ByteBuffer body, FileChannel channel) throws IOException {
+        if (body != null) {
+            body.limit((int) range.end + 1).position((int) range.start);
+            response.write(body.slice());
+            body.clear();
+        } else {
+            response.transferFrom(channel, range.start, range.length());
+        }
+    }
+
+    /**
+     * @return the hot-asset cache, or null if it is disabled
+     */
+    static StaticFileCache getCache() {
+        return CACHE;
+    }
+
+    /**
+     * Writes the status and Date lines followed by pre-encoded headers.
+     */
+    private static void writeHead(HttpResponseStream response, int status, byte[] headers, long contentLength) throws IOException {
+        HeaderWriter head = new HeaderWriter(headers.length + 96)
+                .status(status)
+                .date()
+                .line(headers);
+        response.writeHead(status, head, contentLength);
+    }
+
+    /**
+     * @return the headers following the status and Date lines, which only depend on the file
+     */
+    private static byte[] buildHead(Path file, long length, long lastModified, String etag, String serverName) {
+        String contentType = MimeTypes.getMimeType(file.getFileName().toString());
+        HeaderWriter head = new HeaderWriter()
+                .server(serverName)
+                .header("Content-Type", contentType)
+                .header("Content-Length", length)
+                .line(HeaderWriter.ACCEPT_RANGES);
+        if (Compression.isCompressible(contentType)) {
+            head.line(HeaderWriter.VARY_ACCEPT_ENCODING);
+        }
+        return head.header("ETag", etag)
+                .header("Last-Modified", HTTPHeaderParser.formatDate(lastModified))
+                .toByteArray();
+    }
+
+    /**
+     * @return the headers of a 304 response following the status and Date lines
+     */
+    private static byte[] buildNotModifiedHead(String etag, long lastModified, String serverName) {
+        return new HeaderWriter(128)
+                .server(serverName)
+                .header("ETag", etag)
+                .header("Last-Modified", HTTPHeaderParser.formatDate(lastModified))
+                .toByteArray();
+    }
+
+    private static String stripQuery(String target) {
+        int end = target.length();
+        int query = target.indexOf('?');
+        if (query >= 0) end = query;
+        int fragment = target.indexOf('#');
+        if (fragment >= 0 && fragment < end) end = fragment;
+        return target.substring(0, end);
+    }
+
+    /**
+     * Maps the path of a request target to a regular file inside the base directory. Targets that would leave
+     * the base directory, directly or through a symbolic link, resolve to nothing.
+     */
+    static Path resolve(String target) {
+        if (!target.startsWith("/")) {
+            return null;
+        }
+
+        String path = decode(target.substring(1));
+        if (path == null || path.indexOf('\0') >= 0 || path.indexOf('\\') >= 0) {
+            return null;
+        }
+        try {
+            Path base = Paths.get(StartupArgs.SERVER_BASE_DIR).toAbsolutePath().normalize();
+            Path file = base.resolve(path).normalize();
+            if (!file.startsWith(base)) {
+                return null;
+            }
+            if (Files.isDirectory(file)) {
+                file = file.resolve(INDEX_FILE);
+            }
+            if (!Files.isRegularFile(file)) {
+                return null;
+            }
+            file = file.toRealPath();
+            return file.startsWith(base.toRealPath()) ? file : null;
+        } catch (InvalidPathException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Percent-decodes a path as UTF-8. Unlike {@link java.net.URLDecoder} a '+' stays a '+'.
+     *
+     * @return null if the path contains a malformed escape
+     */
+    static String decode(String path) {
+        if (path.indexOf('%') < 0) {
+            return path;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c != '%') {
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+                continue;
+            }
+            if (i + 2 >= path.length()) {
+                return null;
+            }
+            int high = Character.digit(path.charAt(i + 1), 16);
+            int low = Character.digit(path.charAt(i + 2), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes.write(high << 4 | low);
+            i += 2;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
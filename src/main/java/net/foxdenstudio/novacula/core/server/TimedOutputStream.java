@@ -0,0 +1,118 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Arms a write deadline around every blocking write to the client, so a client that stops reading
+ * gets its connection closed instead of holding the writing thread forever.
+ */
+class TimedOutputStream extends FilterOutputStream implements ChannelOutput {
+
+    private static final long TRANSFER_SLICE = 1024 * 1024;
+
+    private final ConnectionTimer timer;
+    private final long timeoutMillis;
+
+    TimedOutputStream(OutputStream out, ConnectionTimer timer, long timeoutMillis) {
+        super(out);
+        this.timer = timer;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        timer.arm(ConnectionTimer.Phase.WRITE, timeoutMillis);
+        try {
+            out.write(b);
+        } finally {
+            timer.disarm();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        timer.arm(ConnectionTimer.Phase.WRITE, timeoutMillis);
+        try {
+            out.write(b, off, len);
+        } finally {
+            timer.disarm();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        timer.arm(ConnectionTimer.Phase.WRITE, timeoutMillis);
+        try {
+            ChannelOutput.write(out, buffer);
+        } finally {
+            timer.disarm();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers) throws IOException {
+        timer.arm(ConnectionTimer.Phase.WRITE, timeoutMillis);
+        try {
+            ChannelOutput.write(out, buffers);
+        } finally {
+            timer.disarm();
+        }
+    }
+
+    /**
+     * Sends the region in slices and re-arms the deadline for each, so the timeout bounds how long a
+     * client may stall rather than how long a large file takes to send.
+     */
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long slice = Math.min(TRANSFER_SLICE, end - position);
+            timer.arm(ConnectionTimer.Phase.WRITE, timeoutMillis);
+            try {
+                ChannelOutput.transfer(out, file, position, slice);
+            } finally {
+                timer.disarm();
+            }
+            position += slice;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        timer.arm(ConnectionTimer.Phase.WRITE, timeoutMillis);
+        try {
+            out.flush();
+        } finally {
+            timer.disarm();
+        }
+    }
+}
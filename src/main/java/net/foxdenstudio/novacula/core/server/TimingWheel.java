@@ -0,0 +1,180 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel tracking the deadlines of every {@link ConnectionTimer} with a single thread.
+ * <p>
+ * Timers are re-armed far more often than they fire, so the wheel checks deadlines lazily: a timer
+ * is only (re)inserted when its deadline moves earlier than the slot it already sits in. When a slot
+ * comes round, timers whose deadline was pushed back are moved to a later slot, disarmed timers are
+ * dropped and the rest expire.
+ */
+class TimingWheel implements Runnable {
+
+    private final ServerMetrics metrics;
+    private final long tickMillis;
+    private final int mask;
+    private final List<List<Entry>> buckets;
+    private final Queue<ConnectionTimer> incoming = new ConcurrentLinkedQueue<>();
+    private final long startTime = now();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long tick = 0;
+
+    TimingWheel(ServerMetrics metrics, long tickMillis, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.metrics = metrics;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.thread = new Thread(this, "Nova-TimingWheel");
+        this.thread.setDaemon(true);
+    }
+
+    static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    void schedule(ConnectionTimer timer) {
+        incoming.add(timer);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long nextTick = startTime + (tick + 1) * tickMillis;
+            long sleep = nextTick - now();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            tick++;
+            transferIncoming();
+            expireBucket();
+        }
+    }
+
+    private long tickFor(long deadline) {
+        long offset = deadline - startTime;
+        if (offset < 0 && deadline > startTime) {
+            // far enough out to overflow, which is as good as never
+            offset = Long.MAX_VALUE;
+        }
+        long target = offset / tickMillis + (offset % tickMillis > 0 ? 1 : 0);
+        return Math.max(target, tick + 1);
+    }
+
+    private void transferIncoming() {
+        ConnectionTimer timer;
+        while ((timer = incoming.poll()) != null) {
+            long deadline = timer.deadline;
+            if (deadline == Long.MAX_VALUE) continue;
+            long target = tickFor(deadline);
+            if (timer.entry != null && timer.entry.tick <= target) continue;
+            insert(timer, target);
+        }
+    }
+
+    private void insert(ConnectionTimer timer, long target) {
+        Entry entry = new Entry(timer, target);
+        timer.entry = entry;
+        timer.scheduledDeadline = target > (Long.MAX_VALUE - Math.max(0, startTime)) / tickMillis
+                ? Long.MAX_VALUE - 1 : target * tickMillis + startTime;
+        buckets.get((int) (target & mask)).add(entry);
+    }
+
+    private void expireBucket() {
+        List<Entry> bucket = buckets.get((int) (tick & mask));
+        if (bucket.isEmpty()) return;
+
+        List<Entry> due = new ArrayList<>();
+        int kept = 0;
+        for (Entry entry : bucket) {
+            if (entry.timer.entry != entry) continue;
+            if (entry.tick > tick) {
+                bucket.set(kept++, entry);
+            } else {
+                due.add(entry);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+
+        long now = now();
+        for (Entry entry : due) {
+            ConnectionTimer timer = entry.timer;
+            long deadline = timer.deadline;
+            // a disarmed timer falls through and is dropped
+            if (deadline != Long.MAX_VALUE && deadline > now) {
+                insert(timer, tickFor(deadline));
+                continue;
+            }
+            timer.entry = null;
+            timer.scheduledDeadline = Long.MAX_VALUE;
+            // re-read: an arm() racing with the line above may have skipped scheduling itself
+            long current = timer.deadline;
+            if (current == deadline && deadline != Long.MAX_VALUE) {
+                timer.expire();
+            } else if (current != Long.MAX_VALUE) {
+                insert(timer, tickFor(current));
+            }
+        }
+    }
+
+    static final class Entry {
+        private final ConnectionTimer timer;
+        private final long tick;
+
+        private Entry(ConnectionTimer timer, long tick) {
+            this.timer = timer;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A TLS connection over a {@link SocketChannel}, driven by an {@link SSLEngine}. Works with the socket
+ * in blocking and in non-blocking mode: in non-blocking mode reads and writes return 0 where they
+ * would have to wait and the handshake advances whenever the socket is readable. One thread may read
+ * while another writes, as the blocking engine does with pipelined requests.
+ * <p>
+ * Its buffers come from the {@link BufferPool} and go back as soon as they are empty, so an idle
+ * connection holds none. Bytes that were decrypted but did not fit into the caller's buffer stay
+ * here, see {@link #hasBufferedInput()}.
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer[] EMPTY = new ByteBuffer[0];
+
+    private final SocketChannel socket;
+    private final SSLEngine engine;
+    private final long acceptedAt = System.currentTimeMillis();
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private volatile boolean closed = false;
+    private volatile boolean handshakeDone = false;
+
+    // owned by the reading thread; both hold data between 0 and their position
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private boolean underflow = true;
+    private boolean inputDone = false;
+
+    // guarded by writeLock
+    private ByteBuffer netOut;
+    private volatile boolean outputPending = false;
+
+    TlsChannel(SocketChannel socket, SSLEngine engine) {
+        this.socket = socket;
+        this.engine = engine;
+    }
+
+    SocketChannel socket() {
+        return socket;
+    }
+
+    /**
+     * @return true if decrypted bytes or complete records are buffered, which a read returns without
+     * the socket becoming readable again
+     */
+    boolean hasBufferedInput() {
+        synchronized (readLock) {
+            return (appIn != null && appIn.position() > 0) || (netIn != null && netIn.position() > 0 && !underflow);
+        }
+    }
+
+    /**
+     * @return true if encrypted bytes are waiting for a non-blocking socket to take them, see {@link #flush()}
+     */
+    boolean hasPendingOutput() {
+        return outputPending;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            try {
+                return readLocked(dst);
+            } finally {
+                releaseIfEmpty();
+            }
+        }
+    }
+
+    private int readLocked(ByteBuffer dst) throws IOException {
+        if (appIn != null && appIn.position() > 0) {
+            return drainAppIn(dst);
+        }
+        if (inputDone) return -1;
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                continue;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (!flush()) return 0;
+                continue;
+            }
+
+            if (netIn == null) {
+                netIn = BufferPool.acquire(engine.getSession().getPacketBufferSize());
+            }
+            if (appIn == null) {
+                appIn = BufferPool.acquire(engine.getSession().getApplicationBufferSize());
+            }
+            if (underflow || netIn.position() == 0) {
+                if (!netIn.hasRemaining()) {
+                    netIn = grow(netIn);
+                }
+                int n = socket.read(netIn);
+                if (n < 0) {
+                    inputDone = true;
+                    return -1;
+                }
+                if (n == 0) return 0;
+                underflow = false;
+            }
+
+            SSLEngineResult result;
+            netIn.flip();
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } catch (SSLException e) {
+                failed();
+                throw e;
+            } finally {
+                netIn.compact();
+            }
+            checkFinished(result);
+            switch (result.getStatus()) {
+                case OK:
+                    if (appIn.position() > 0) {
+                        return drainAppIn(dst);
+                    }
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                        underflow = true;
+                    }
+                    break;
+                case BUFFER_UNDERFLOW:
+                    underflow = true;
+                    break;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn);
+                    break;
+                case CLOSED:
+                    // the client's close_notify, answered with ours if the socket takes it
+                    inputDone = true;
+                    flush();
+                    return appIn.position() > 0 ? drainAppIn(dst) : -1;
+            }
+        }
+    }
+
+    private int drainAppIn(ByteBuffer dst) {
+        appIn.flip();
+        int n = Math.min(dst.remaining(), appIn.remaining());
+        if (n == appIn.remaining()) {
+            dst.put(appIn);
+        } else {
+            ByteBuffer part = appIn.duplicate();
+            part.limit(part.position() + n);
+            dst.put(part);
+            appIn.position(part.position());
+        }
+        appIn.compact();
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts as much of the buffers as the socket takes. Several records are collected before they
+     * are written, so a large response goes out in as few system calls as without TLS. Bytes reported
+     * as written may still be waiting for a non-blocking socket, see {@link #flush()}.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (!flush()) return 0;
+            long consumed = 0;
+            try {
+                while (hasRemaining(srcs, offset, length)) {
+                    if (netOut == null) {
+                        netOut = BufferPool.acquire(BufferPool.MAX_SIZE);
+                    }
+                    if (netOut.remaining() < engine.getSession().getPacketBufferSize() && !flushNetOut()) break;
+                    if (netOut == null) continue;
+                    SSLEngineResult result;
+                    try {
+                        result = engine.wrap(srcs, offset, length, netOut);
+                    } catch (SSLException e) {
+                        failed();
+                        throw e;
+                    }
+                    checkFinished(result);
+                    consumed += result.bytesConsumed();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        if (consumed == 0) throw new IOException("TLS connection closed");
+                        break;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        if (!flushNetOut()) break;
+                    } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                        // still handshaking, nothing can be sent before the client's next flight
+                        break;
+                    }
+                }
+            } finally {
+                flushNetOut();
+            }
+            return consumed;
+        }
+    }
+
+    /**
+     * Writes out what an earlier write left behind, along with any handshake messages the engine has
+     * to send.
+     *
+     * @return false if a non-blocking socket did not take everything
+     */
+    boolean flush() throws IOException {
+        synchronized (writeLock) {
+            while (true) {
+                if (!flushNetOut()) return false;
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP && !engine.isOutboundDone()) {
+                    if (netOut == null) {
+                        netOut = BufferPool.acquire(BufferPool.MAX_SIZE);
+                    }
+                    try {
+                        checkFinished(engine.wrap(EMPTY, netOut));
+                    } catch (SSLException e) {
+                        failed();
+                        throw e;
+                    }
+                } else {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends part of a file. It has to pass through the engine, so it is read into a pooled buffer
+     * instead of being transferred by the kernel.
+     *
+     * @return the number of bytes sent, 0 if the file ends before {@code position}
+     */
+    long transferFrom(FileChannel file, long position, long count) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire((int) Math.min(count, BufferPool.MAX_SIZE));
+        try {
+            buffer.limit((int) Math.min(count, buffer.capacity()));
+            if (file.read(buffer, position) <= 0) return 0;
+            buffer.flip();
+            return write(buffer);
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && socket.isOpen();
+    }
+
+    /**
+     * Closes the connection, sending close_notify first if the socket is non-blocking. A blocking
+     * socket is closed right away, as the peer might not be reading any more.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        try {
+            if (!socket.isBlocking() && socket.isOpen()) {
+                synchronized (writeLock) {
+                    engine.closeOutbound();
+                    flush();
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            socket.close();
+            // closing the socket releases a thread blocked in it, which holds the locks
+            synchronized (writeLock) {
+                if (netOut != null) {
+                    BufferPool.release(netOut);
+                    netOut = null;
+                }
+            }
+            synchronized (readLock) {
+                if (netIn != null) {
+                    BufferPool.release(netIn);
+                    netIn = null;
+                }
+                if (appIn != null) {
+                    BufferPool.release(appIn);
+                    appIn = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if a non-blocking socket did not take everything
+     */
+    private boolean flushNetOut() throws IOException {
+        if (netOut == null) return true;
+        netOut.flip();
+        while (netOut.hasRemaining() && socket.write(netOut) > 0) {
+        }
+        netOut.compact();
+        if (netOut.position() > 0) {
+            outputPending = true;
+            return false;
+        }
+        BufferPool.release(netOut);
+        netOut = null;
+        outputPending = false;
+        return true;
+    }
+
+    private void checkFinished(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && !handshakeDone) {
+            handshakeDone = true;
+            TlsContext.handshakeFinished(engine.getSession(), acceptedAt);
+        }
+    }
+
+    /**
+     * Counts a failed handshake and tries to get the alert the engine produced to the client.
+     */
+    private void failed() {
+        if (handshakeDone) return;
+        TlsContext.handshakeFailed();
+        try {
+            flush();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void releaseIfEmpty() {
+        if (netIn != null && netIn.position() == 0) {
+            BufferPool.release(netIn);
+            netIn = null;
+            underflow = true;
+        }
+        if (appIn != null && appIn.position() == 0) {
+            BufferPool.release(appIn);
+            appIn = null;
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer grown = BufferPool.acquire(buffer.capacity() * 2);
+        buffer.flip();
+        grown.put(buffer);
+        BufferPool.release(buffer);
+        return grown;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) return true;
+        }
+        return false;
+    }
+}
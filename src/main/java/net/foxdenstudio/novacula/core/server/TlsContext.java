@@ -0,0 +1,147 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The key material and session cache shared by every TLS listener, loaded from the configured
+ * keystore. Sessions are kept in the server-side cache for resumption by session id and, on runtimes
+ * that support it, handed to clients as session tickets so they can resume without the cache.
+ */
+final class TlsContext {
+
+    private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+    private static final LongAdder fullHandshakes = new LongAdder();
+    private static final LongAdder resumedHandshakes = new LongAdder();
+    private static final LongAdder failedHandshakes = new LongAdder();
+
+    private final SSLContext context;
+    private final String[] protocols;
+
+    private TlsContext(SSLContext context, String[] protocols) {
+        this.context = context;
+        this.protocols = protocols;
+    }
+
+    static TlsContext load() throws IOException {
+        return load(StartupArgs.TLS_KEYSTORE, StartupArgs.TLS_KEYSTORE_PASSWORD, StartupArgs.TLS_KEYSTORE_TYPE);
+    }
+
+    static TlsContext load(String keyStorePath, String keyStorePassword, String keyStoreType) throws IOException {
+        // read once by the JSSE provider, so it has to be in place before the first SSLContext
+        if (System.getProperty(SESSION_TICKETS_PROPERTY) == null) {
+            System.setProperty(SESSION_TICKETS_PROPERTY, String.valueOf(StartupArgs.TLS_SESSION_TICKETS));
+        }
+        char[] password = keyStorePassword.toCharArray();
+        try (InputStream in = new FileInputStream(keyStorePath)) {
+            KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(StartupArgs.TLS_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(StartupArgs.TLS_SESSION_TIMEOUT);
+
+            List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getProtocols());
+            List<String> protocols = new ArrayList<>();
+            for (String protocol : StartupArgs.TLS_PROTOCOLS.split(",")) {
+                if (supported.contains(protocol.trim())) {
+                    protocols.add(protocol.trim());
+                }
+            }
+            if (protocols.isEmpty()) {
+                throw new IOException("None of the TLS protocols " + StartupArgs.TLS_PROTOCOLS + " is supported");
+            }
+            return new TlsContext(context, protocols.toArray(new String[0]));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not load keystore " + keyStorePath + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return an engine for one accepted connection. With HTTP/2 enabled it offers h2 through ALPN,
+     * and clients that take it send the HTTP/2 preface right after the handshake.
+     */
+    SSLEngine newEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(protocols);
+        parameters.setUseCipherSuitesOrder(true);
+        if (StartupArgs.HTTP2) {
+            parameters.setApplicationProtocols(new String[]{"h2", "http/1.1"});
+        }
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * Counts a completed handshake. A session that already existed when the connection was accepted
+     * can only have come from the cache or a ticket.
+     */
+    static void handshakeFinished(SSLSession session, long acceptedAt) {
+        if (session.getCreationTime() < acceptedAt) {
+            resumedHandshakes.increment();
+        } else {
+            fullHandshakes.increment();
+        }
+    }
+
+    static void handshakeFailed() {
+        failedHandshakes.increment();
+    }
+
+    static long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    static long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    static long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+}
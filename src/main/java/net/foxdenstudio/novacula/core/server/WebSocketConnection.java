@@ -0,0 +1,728 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.plugins.PluginSystem;
+import net.foxdenstudio.novacula.core.plugins.events.Event;
+import net.foxdenstudio.novacula.core.plugins.events.WebSocket;
+import net.foxdenstudio.novacula.core.plugins.events.WebSocketCloseEvent;
+import net.foxdenstudio.novacula.core.plugins.events.WebSocketMessageEvent;
+import net.foxdenstudio.novacula.core.plugins.events.WebSocketOpenEvent;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A WebSocket (RFC 6455) that took over an HTTP/1.1 connection after its upgrade request was
+ * accepted. Like an {@link NioConnection} it lives on an {@link NioEventLoop}, which does all reads
+ * and writes, so an open socket holds no thread and, while idle, no buffer. Frames are unmasked from a
+ * pooled read buffer straight into the message being assembled. Complete messages are handed to the
+ * plugins on a worker thread, one at a time per connection; reading pauses while too many are
+ * waiting. Outgoing frames are queued and written with gathering writes.
+ */
+class WebSocketConnection implements WebSocket, LongLivedConnection, ConnectionTracker.Drainable {
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+    private static final int CLOSE_NORMAL = 1000;
+    private static final int CLOSE_GOING_AWAY = 1001;
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+    private static final int CLOSE_NO_STATUS = 1005;
+    private static final int CLOSE_ABNORMAL = 1006;
+    private static final int CLOSE_INVALID_DATA = 1007;
+    private static final int CLOSE_TOO_BIG = 1009;
+    private static final int CLOSE_TRY_AGAIN_LATER = 1013;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final long WRITE_HIGH_WATERMARK = 256 * 1024;
+    private static final int MAX_PENDING_MESSAGES = 16;
+    private static final int MAX_GATHER = 16;
+    private static final int CLOSE_TIMEOUT = 5000;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final HTTPHeaderParser request;
+    private final String protocol;
+    private volatile Object attachment;
+
+    private NioEventLoop eventLoop;
+    private SocketChannel channel;
+    private TlsChannel tls;
+    private SelectionKey key;
+    private ConnectionTimer pingTimer;
+    private ConnectionTimer writeTimer;
+    private boolean started = false;
+    private volatile boolean closeSent = false;
+    private volatile boolean closed = false;
+
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private long pendingBytes = 0;
+    private boolean closeAfterWrite = false;
+
+    // frame parsing, owned by the event loop
+    private ByteBuffer readBuffer;
+    private long frameRemaining = -1;
+    private boolean frameFin;
+    private int maskKey;
+    private int maskOffset;
+    private int messageOpcode = -1;
+    private byte[] message;
+    private int messageLength;
+    private boolean readPaused = false;
+    private boolean inputDone = false;
+    private boolean awaitingPong = false;
+    private boolean closeReported = false;
+
+    private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingEvents = new AtomicInteger();
+    private final AtomicBoolean delivering = new AtomicBoolean();
+
+    WebSocketConnection(HTTPHeaderParser request, String protocol) {
+        this.request = request;
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return the Sec-WebSocket-Accept value answering the client's Sec-WebSocket-Key
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void start(NioEventLoop eventLoop, SocketChannel channel, TlsChannel tls, SelectionKey key, ByteBuffer buffered) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.tls = tls;
+        this.key = key;
+        this.pingTimer = new ConnectionTimer(eventLoop.getTimingWheel(), phase -> eventLoop.execute(this::onTimer));
+        this.writeTimer = new ConnectionTimer(eventLoop.getTimingWheel(), phase -> eventLoop.execute(this::close));
+        readBuffer = buffered;
+        if (readBuffer != null && readBuffer.position() == 0) {
+            BufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+        synchronized (this) {
+            started = true;
+        }
+        deliver(new WebSocketOpenEvent(this));
+        try {
+            key.attach(this);
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            close();
+            return;
+        }
+        if (closeSent) {
+            pingTimer.arm(ConnectionTimer.Phase.KEEP_ALIVE, CLOSE_TIMEOUT);
+        } else if (StartupArgs.WEBSOCKET_PING_INTERVAL > 0) {
+            pingTimer.arm(ConnectionTimer.Phase.KEEP_ALIVE, StartupArgs.WEBSOCKET_PING_INTERVAL);
+        }
+        eventLoop.getConnectionTracker().add(this);
+        flushWrites();
+        if (readBuffer != null && !closed) {
+            processFrames();
+        }
+    }
+
+    @Override
+    public HTTPHeaderParser getRequest() {
+        return request;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public void send(String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        enqueue(frame(OP_TEXT, data, 0, data.length));
+    }
+
+    @Override
+    public void send(byte[] data) throws IOException {
+        enqueue(frame(OP_BINARY, data, 0, data.length));
+    }
+
+    @Override
+    public void close(int code, String reason) {
+        if (code < 1000 || code > 4999 || code == 1004 || code == CLOSE_NO_STATUS || code == CLOSE_ABNORMAL || code == 1015) {
+            throw new IllegalArgumentException("Invalid close code: " + code);
+        }
+        if (reason.getBytes(StandardCharsets.UTF_8).length > 123) {
+            throw new IllegalArgumentException("Close reason longer than 123 bytes");
+        }
+        if (!queueClose(code, reason)) return;
+        boolean running;
+        synchronized (this) {
+            running = started;
+        }
+        if (running) {
+            eventLoop.execute(() -> {
+                if (closed) return;
+                pingTimer.arm(ConnectionTimer.Phase.KEEP_ALIVE, CLOSE_TIMEOUT);
+                flushWrites();
+            });
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closeSent && !closed;
+    }
+
+    @Override
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    @Override
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public void drain() {
+        if (!closeSent) {
+            close(CLOSE_GOING_AWAY, "Server shutting down");
+        }
+    }
+
+    @Override
+    public void abort() {
+        eventLoop.execute(this::close);
+    }
+
+    @Override
+    public void onReadable() throws IOException {
+        if (readBuffer == null) {
+            readBuffer = BufferPool.acquire(READ_BUFFER_SIZE);
+        }
+        if ((tls != null ? tls.read(readBuffer) : channel.read(readBuffer)) < 0) {
+            close();
+            return;
+        }
+        if (tls != null && tls.hasPendingOutput()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        awaitingPong = false;
+        processFrames();
+    }
+
+    @Override
+    public boolean hasBufferedInput() {
+        return tls != null && tls.hasBufferedInput();
+    }
+
+    @Override
+    public void onWritable() {
+        flushWrites();
+    }
+
+    /**
+     * Closes the TCP connection right away. Plugins that were not told about the end of the
+     * connection yet get a close event with 1006.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        if (pingTimer != null) {
+            pingTimer.disarm();
+            writeTimer.disarm();
+            eventLoop.getConnectionTracker().remove(this);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (readBuffer != null) {
+            BufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+        ByteBuffer entry;
+        while ((entry = writeQueue.poll()) != null) {
+            release(entry);
+        }
+        if (channel != null) {
+            try {
+                (tls != null ? tls : channel).close();
+            } catch (IOException ignored) {
+            }
+        }
+        report(CLOSE_ABNORMAL, "");
+    }
+
+    /**
+     * Parses the frames in the read buffer for as long as they are complete enough to make progress.
+     */
+    private void processFrames() {
+        readBuffer.flip();
+        try {
+            while (!readPaused && !inputDone && !closed && readFrame()) {
+            }
+        } catch (ProtocolError e) {
+            fail(e.code, e.getMessage());
+        }
+        if (readBuffer != null) {
+            readBuffer.compact();
+            if (readBuffer.position() == 0) {
+                BufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Reads a frame header, or as much of the current frame's payload as has arrived.
+     *
+     * @return whether the next frame can be looked at
+     */
+    private boolean readFrame() throws ProtocolError {
+        ByteBuffer in = readBuffer;
+        if (frameRemaining < 0) {
+            if (in.remaining() < 2) return false;
+            int start = in.position();
+            int b0 = in.get(start) & 0xFF;
+            int b1 = in.get(start + 1) & 0xFF;
+            if ((b1 & 0x80) == 0) {
+                throw new ProtocolError(CLOSE_PROTOCOL_ERROR, "Unmasked frame");
+            }
+            if ((b0 & 0x70) != 0) {
+                throw new ProtocolError(CLOSE_PROTOCOL_ERROR, "Reserved bits set");
+            }
+            int lengthBytes = (b1 & 0x7F) == 126 ? 2 : (b1 & 0x7F) == 127 ? 8 : 0;
+            if (in.remaining() < 2 + lengthBytes + 4) return false;
+            int opcode = b0 & 0x0F;
+            boolean fin = (b0 & 0x80) != 0;
+            in.position(start + 2);
+            long length = lengthBytes == 2 ? in.getShort() & 0xFFFF : lengthBytes == 8 ? in.getLong() : b1 & 0x7F;
+            if (length < 0) {
+                throw new ProtocolError(CLOSE_PROTOCOL_ERROR, "Invalid frame length");
+            }
+            maskKey = in.getInt();
+            maskOffset = 0;
+
+            if (opcode >= OP_CLOSE) {
+                if (opcode > OP_PONG || !fin || length > 125) {
+                    throw new ProtocolError(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+                }
+                if (in.remaining() < length) {
+                    in.position(start);
+                    return false;
+                }
+                byte[] payload = new byte[(int) length];
+                unmask(in, payload, 0, payload.length);
+                control(opcode, payload);
+                return true;
+            }
+            if (opcode == OP_CONTINUATION) {
+                if (messageOpcode < 0) {
+                    throw new ProtocolError(CLOSE_PROTOCOL_ERROR, "Unexpected continuation frame");
+                }
+            } else if (opcode == OP_TEXT || opcode == OP_BINARY) {
+                if (messageOpcode >= 0) {
+                    throw new ProtocolError(CLOSE_PROTOCOL_ERROR, "Expected a continuation frame");
+                }
+                messageOpcode = opcode;
+                messageLength = 0;
+            } else {
+                throw new ProtocolError(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+            if (messageLength + length > StartupArgs.WEBSOCKET_MAX_MESSAGE_SIZE) {
+                throw new ProtocolError(CLOSE_TOO_BIG, "Message too big");
+            }
+            frameFin = fin;
+            frameRemaining = length;
+        }
+
+        int count = (int) Math.min(frameRemaining, in.remaining());
+        ensureMessageCapacity(messageLength + count, (int) (messageLength + frameRemaining));
+        unmask(in, message, messageLength, count);
+        messageLength += count;
+        frameRemaining -= count;
+        if (frameRemaining > 0) return false;
+        frameRemaining = -1;
+        if (frameFin) {
+            messageComplete();
+        }
+        return true;
+    }
+
+    /**
+     * Copies masked payload bytes into {@code dst}, removing the mask eight bytes at a time where the
+     * payload is long enough.
+     */
+    private void unmask(ByteBuffer src, byte[] dst, int offset, int count) {
+        int end = offset + count;
+        while (offset < end && (maskOffset & 3) != 0) {
+            dst[offset++] = (byte) (src.get() ^ (maskKey >>> (24 - 8 * (maskOffset++ & 3))));
+        }
+        if (end - offset >= 8) {
+            long mask = (maskKey & 0xFFFFFFFFL) << 32 | (maskKey & 0xFFFFFFFFL);
+            ByteBuffer view = ByteBuffer.wrap(dst);
+            while (end - offset >= 8) {
+                view.putLong(offset, src.getLong() ^ mask);
+                offset += 8;
+            }
+        }
+        while (offset < end) {
+            dst[offset++] = (byte) (src.get() ^ (maskKey >>> (24 - 8 * (maskOffset++ & 3))));
+        }
+    }
+
+    /**
+     * Grows the message to hold {@code capacity} bytes as its payload arrives, rather than sizing it
+     * from the length a frame header merely declares, and never past {@code limit}, the end of the
+     * current frame.
+     */
+    private void ensureMessageCapacity(int capacity, int limit) {
+        if (message == null) {
+            message = new byte[Math.max(capacity, Math.min(256, limit))];
+        } else if (message.length < capacity) {
+            message = Arrays.copyOf(message, Math.max(capacity, Math.min(message.length * 2, limit)));
+        }
+    }
+
+    private void messageComplete() throws ProtocolError {
+        int opcode = messageOpcode;
+        byte[] data = message.length == messageLength ? message : Arrays.copyOf(message, messageLength);
+        messageOpcode = -1;
+        message = null;
+        messageLength = 0;
+        if (closeSent) return;
+        if (opcode == OP_TEXT) {
+            deliver(new WebSocketMessageEvent(this, decodeText(data, 0, data.length), null));
+        } else {
+            deliver(new WebSocketMessageEvent(this, null, data));
+        }
+        if (pendingEvents.get() >= MAX_PENDING_MESSAGES) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void control(int opcode, byte[] payload) throws ProtocolError {
+        if (opcode == OP_PING) {
+            if (!closeSent) {
+                writeControl(frame(OP_PONG, payload, 0, payload.length));
+            }
+            return;
+        }
+        if (opcode == OP_PONG) return;
+
+        int code = CLOSE_NO_STATUS;
+        String reason = "";
+        if (payload.length == 1) {
+            throw new ProtocolError(CLOSE_PROTOCOL_ERROR, "Invalid close frame");
+        }
+        if (payload.length >= 2) {
+            code = (payload[0] & 0xFF) << 8 | payload[1] & 0xFF;
+            if (code < 1000 || code > 4999 || code == 1004 || code == CLOSE_NO_STATUS || code == CLOSE_ABNORMAL || code == 1015) {
+                throw new ProtocolError(CLOSE_PROTOCOL_ERROR, "Invalid close code");
+            }
+            reason = decodeText(payload, 2, payload.length - 2);
+        }
+        inputDone = true;
+        queueClose(code == CLOSE_NO_STATUS ? CLOSE_NORMAL : code, null);
+        report(code, reason);
+        closeAfterWrite = true;
+        flushWrites();
+    }
+
+    /**
+     * Answers a protocol violation of the client with a close frame and ends the connection.
+     */
+    private void fail(int code, String reason) {
+        inputDone = true;
+        queueClose(code, reason);
+        report(code, reason);
+        closeAfterWrite = true;
+        flushWrites();
+    }
+
+    private void onTimer() {
+        if (closed) return;
+        if (closeSent || awaitingPong) {
+            close();
+            return;
+        }
+        awaitingPong = true;
+        writeControl(frame(OP_PING, EMPTY, 0, 0));
+        pingTimer.arm(ConnectionTimer.Phase.KEEP_ALIVE, StartupArgs.WEBSOCKET_PING_INTERVAL);
+    }
+
+    private static String decodeText(byte[] data, int offset, int length) throws ProtocolError {
+        try {
+            CharBuffer text = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(data, offset, length));
+            return text.toString();
+        } catch (CharacterCodingException e) {
+            throw new ProtocolError(CLOSE_INVALID_DATA, "Invalid UTF-8");
+        }
+    }
+
+    /**
+     * Queues an event for the plugins. Events of one connection are delivered in order by a single
+     * worker at a time.
+     */
+    private void deliver(Event event) {
+        events.add(event);
+        pendingEvents.incrementAndGet();
+        scheduleDelivery();
+    }
+
+    private void scheduleDelivery() {
+        if (!delivering.compareAndSet(false, true)) return;
+        if (!eventLoop.getWorkerPool().tryExecute(this::deliverEvents)) {
+            delivering.set(false);
+            eventLoop.execute(() -> fail(CLOSE_TRY_AGAIN_LATER, "Server overloaded"));
+        }
+    }
+
+    private void deliverEvents() {
+        Event event;
+        while ((event = events.poll()) != null) {
+            try {
+                PluginSystem.callEventAndWait(event);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (pendingEvents.decrementAndGet() == MAX_PENDING_MESSAGES / 2) {
+                eventLoop.execute(this::resumeReading);
+            }
+        }
+        delivering.set(false);
+        if (!events.isEmpty()) {
+            scheduleDelivery();
+        }
+    }
+
+    private void resumeReading() {
+        if (!readPaused || closed) return;
+        readPaused = false;
+        try {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            close();
+            return;
+        }
+        if (readBuffer != null) {
+            processFrames();
+        }
+    }
+
+    /**
+     * Tells the plugins the connection has ended, unless they already know.
+     */
+    private void report(int code, String reason) {
+        if (closeReported || eventLoop == null) return;
+        closeReported = true;
+        deliver(new WebSocketCloseEvent(this, code, reason));
+    }
+
+    /**
+     * Queues a close frame unless one has been sent already.
+     *
+     * @param reason the reason to send, or null to send the code alone
+     * @return false if a close frame was sent before
+     */
+    private boolean queueClose(int code, String reason) {
+        byte[] text = reason != null ? reason.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        byte[] payload = new byte[2 + Math.min(text.length, 123)];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, payload.length - 2);
+        ByteBuffer frame = frame(OP_CLOSE, payload, 0, payload.length);
+        synchronized (this) {
+            if (closeSent || closed) {
+                release(frame);
+                return false;
+            }
+            closeSent = true;
+            pendingBytes += frame.remaining();
+        }
+        writeQueue.add(frame);
+        return true;
+    }
+
+    /**
+     * Queues a message frame. Blocks the caller while too much data is already waiting to be written,
+     * so a slow client cannot make the server buffer unboundedly.
+     */
+    private void enqueue(ByteBuffer frame) throws IOException {
+        boolean running;
+        synchronized (this) {
+            while (started && pendingBytes > WRITE_HIGH_WATERMARK && !closed && !closeSent) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    release(frame);
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed || closeSent) {
+                release(frame);
+                throw new IOException("WebSocket closed");
+            }
+            pendingBytes += frame.remaining();
+            writeQueue.add(frame);
+            running = started;
+        }
+        if (running) {
+            eventLoop.execute(this::flushWrites);
+        }
+    }
+
+    /**
+     * Queues a control frame from the event loop itself, which must never wait for the
+     * high-watermark as it is the thread that drains the queue.
+     */
+    private void writeControl(ByteBuffer frame) {
+        synchronized (this) {
+            if (closed) {
+                release(frame);
+                return;
+            }
+            pendingBytes += frame.remaining();
+            writeQueue.add(frame);
+        }
+        flushWrites();
+    }
+
+    private void flushWrites() {
+        if (closed) return;
+        try {
+            while (!writeQueue.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : writeQueue) {
+                    if (count == MAX_GATHER) break;
+                    gather[count++] = buffer;
+                }
+                long written = tls != null ? tls.write(gather, 0, count) : channel.write(gather, 0, count);
+                int done = 0;
+                while (done < count && !gather[done].hasRemaining()) {
+                    release(writeQueue.poll());
+                    done++;
+                }
+                Arrays.fill(gather, null);
+                if (written > 0) {
+                    synchronized (this) {
+                        pendingBytes -= written;
+                        notifyAll();
+                    }
+                }
+                if (done < count) {
+                    if (written > 0 || writeTimer.getPhase() == null) {
+                        writeTimer.arm(ConnectionTimer.Phase.WRITE, StartupArgs.WRITE_TIMEOUT);
+                    }
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (tls != null && !tls.flush()) {
+                writeTimer.arm(ConnectionTimer.Phase.WRITE, StartupArgs.WRITE_TIMEOUT);
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeTimer.disarm();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterWrite) {
+                close();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close();
+        }
+    }
+
+    /**
+     * Encodes an unmasked frame. Frames up to {@link BufferPool#MAX_SIZE} are built in a pooled
+     * buffer, larger ones on the heap.
+     */
+    private static ByteBuffer frame(int opcode, byte[] payload, int offset, int length) {
+        int size = (length < 126 ? 2 : length < 65536 ? 4 : 10) + length;
+        ByteBuffer frame = size <= BufferPool.MAX_SIZE ? BufferPool.acquire(size) : ByteBuffer.allocate(size);
+        frame.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length < 65536) {
+            frame.put((byte) 126).putShort((short) length);
+        } else {
+            frame.put((byte) 127).putLong(length);
+        }
+        frame.put(payload, offset, length).flip();
+        return frame;
+    }
+
+    private static void release(ByteBuffer frame) {
+        if (frame.isDirect()) {
+            BufferPool.release(frame);
+        }
+    }
+
+    /**
+     * A violation of the protocol by the client, answered with a close frame carrying {@link #code}.
+     */
+    private static class ProtocolError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        ProtocolError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import net.foxdenstudio.novacula.core.utils.NovaThreads;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of worker threads that run connection and request handling. Work that does not fit
+ * into the pool or its queue is refused instead of queued, so the caller can shed the load early.
+ * <p>
+ * When virtual threads are available every task gets its own virtual thread instead, and only the
+ * number of tasks running at once is bounded.
+ */
+class WorkerPool {
+
+    static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Retry-After: 1\r\n" +
+            "Connection: close\r\n" +
+            "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor helperExecutor;
+    private final ThreadFactory virtualThreadFactory;
+    private final Semaphore virtualPermits;
+    private final int maxVirtualWorkers;
+    private final ServerMetrics metrics;
+    private volatile boolean shutdown = false;
+
+    WorkerPool(int threads, int queueSize, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), new WorkerThreadFactory("Nova-Worker-"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.helperExecutor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new WorkerThreadFactory("Nova-Helper-"), (task, executor) -> task.run());
+        this.virtualThreadFactory = null;
+        this.virtualPermits = null;
+        this.maxVirtualWorkers = 0;
+    }
+
+    WorkerPool(ThreadFactory virtualThreadFactory, int maxWorkers, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.executor = null;
+        this.helperExecutor = null;
+        this.virtualThreadFactory = virtualThreadFactory;
+        this.virtualPermits = new Semaphore(maxWorkers);
+        this.maxVirtualWorkers = maxWorkers;
+    }
+
+    static WorkerPool create(ServerMetrics metrics) {
+        if (NovaThreads.useVirtualThreads()) {
+            return new WorkerPool(NovaThreads.virtualThreadFactory(), StartupArgs.MAX_VIRTUAL_WORKERS, metrics);
+        }
+        return new WorkerPool(StartupArgs.WORKER_THREADS, StartupArgs.WORKER_QUEUE_SIZE, metrics);
+    }
+
+    boolean isVirtual() {
+        return executor == null;
+    }
+
+    /**
+     * Runs the task on a worker thread if there is room for it.
+     *
+     * @return false if the pool and its queue are full and the task was dropped
+     */
+    boolean tryExecute(Runnable task) {
+        if (isVirtual()) {
+            if (shutdown || !virtualPermits.tryAcquire()) {
+                metrics.connectionRejected();
+                return false;
+            }
+            virtualThreadFactory.newThread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    virtualPermits.release();
+                }
+            }).start();
+            return true;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            metrics.connectionRejected();
+            return false;
+        }
+    }
+
+    /**
+     * Runs extra work on behalf of a task that already holds a worker, such as a pipelined request.
+     * This never queues: if no helper thread is free the task runs on the calling thread, so a worker
+     * cannot end up waiting on work stuck behind other waiting workers.
+     */
+    void executeOrRun(Runnable task) {
+        if (!isVirtual()) {
+            helperExecutor.execute(task);
+        } else if (virtualPermits.tryAcquire()) {
+            virtualThreadFactory.newThread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    virtualPermits.release();
+                }
+            }).start();
+        } else {
+            task.run();
+        }
+    }
+
+    int getQueueDepth() {
+        return isVirtual() ? 0 : executor.getQueue().size();
+    }
+
+    int getActiveWorkers() {
+        return isVirtual() ? maxVirtualWorkers - virtualPermits.availablePermits() : executor.getActiveCount();
+    }
+
+    void shutdown() {
+        shutdown = true;
+        if (!isVirtual()) {
+            executor.shutdown();
+            helperExecutor.shutdown();
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final String prefix;
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, prefix + count.incrementAndGet());
+        }
+    }
+}
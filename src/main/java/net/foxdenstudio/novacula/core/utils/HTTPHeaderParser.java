@@ -24,16 +24,19 @@
 
 package net.foxdenstudio.novacula.core.utils;
 
-import java.io.BufferedReader;
+import net.foxdenstudio.novacula.core.StartupArgs;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URLDecoder;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
 import java.util.Hashtable;
 import java.util.Locale;
-import java.util.TimeZone;
 
 /**
  * Created by d4rkfly3r (Joshua F.) on 12/23/15.
@@ -76,6 +79,7 @@ public class HTTPHeaderParser {
             {"415", "Unsupported Media Type"},
             {"416", "Requested Range Not Satisfiable"},
             {"417", "Expectation Failed"},
+            {"431", "Request Header Fields Too Large"},
             {"500", "Internal Server Error"},
             {"501", "Not Implemented"},
             {"502", "Bad Gateway"},
@@ -84,15 +88,38 @@ public class HTTPHeaderParser {
             {"505", "HTTP Version Not Supported"}
     };
 
-    private final BufferedReader reader;
-    private String method, url;
+    private static final String[] REPLY_LOOKUP = new String[600];
+
+    static {
+        for (String[] reply : HttpReplies) {
+            int code = Integer.parseInt(reply[0]);
+            REPLY_LOOKUP[code] = code + " " + reply[1];
+        }
+    }
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private final InputStream in;
+    private int headBytes = 0;
+    private boolean headTooLarge = false;
+    private String method, url, target;
     private Hashtable<String, String> headers, params;
     private final int[] ver;
+    private final StringBuilder line = new StringBuilder(128);
+    private long contentLength = -1;
+    private boolean chunked = false;
+    private boolean expectContinue = false;
 
+    /**
+     * The request head is read byte by byte and nothing past it is consumed, so a connection that
+     * carries several requests should pass the same buffered stream to each parser.
+     */
     public HTTPHeaderParser(InputStream is) {
-        reader = new BufferedReader(new InputStreamReader(is));
+        in = is;
         method = "";
         url = "";
+        target = "";
         headers = new Hashtable<>();
         params = new Hashtable<>();
         ver = new int[2];
@@ -103,8 +130,13 @@ public class HTTPHeaderParser {
         int ret, idx, i;
 
         ret = 200; // default is OK now
-        initial = reader.readLine();
-        if (initial == null || initial.length() == 0) return 0;
+        initial = readLine();
+        // RFC 7230 3.5: empty lines in front of the request line are ignored
+        while (initial != null && initial.isEmpty()) {
+            initial = readLine();
+        }
+        if (headTooLarge) return 431;
+        if (initial == null) return 0;
         if (Character.isWhitespace(initial.charAt(0))) {
             // starting whitespace, return bad request
             return 400;
@@ -114,6 +146,7 @@ public class HTTPHeaderParser {
         if (cmd.length != 3) {
             return 400;
         }
+        target = cmd[1];
 
         if (cmd[2].indexOf("HTTP/") == 0 && cmd[2].indexOf('.') > 5) {
             temp = cmd[2].substring(5).split("\\.");
@@ -125,7 +158,8 @@ public class HTTPHeaderParser {
             }
         } else ret = 400;
 
-        if (cmd[0].equals("GET") || cmd[0].equals("HEAD")) {
+        if (cmd[0].equals("GET") || cmd[0].equals("HEAD") || cmd[0].equals("POST") || cmd[0].equals("PUT")
+                || cmd[0].equals("DELETE") || cmd[0].equals("PATCH") || cmd[0].equals("OPTIONS")) {
             method = cmd[0];
 
             idx = cmd[1].indexOf('?');
@@ -150,13 +184,9 @@ public class HTTPHeaderParser {
             }
             parseHeaders();
             if (headers == null) ret = 400;
-        } else if (cmd[0].equals("POST")) {
-            ret = 501; // not implemented
+            else if (ret == 200) ret = parseBodyFraming();
         } else if (ver[0] == 1 && ver[1] >= 1) {
-            if (cmd[0].equals("OPTIONS") ||
-                    cmd[0].equals("PUT") ||
-                    cmd[0].equals("DELETE") ||
-                    cmd[0].equals("TRACE") ||
+            if (cmd[0].equals("TRACE") ||
                     cmd[0].equals("CONNECT")) {
                 ret = 501; // not implemented
             }
@@ -168,6 +198,9 @@ public class HTTPHeaderParser {
         if (ver[0] == 1 && ver[1] >= 1 && getHeader("Host") == null) {
             ret = 400;
         }
+        if (headTooLarge) {
+            ret = 431;
+        }
 
         return ret;
     }
@@ -177,17 +210,80 @@ public class HTTPHeaderParser {
         int idx;
 
         // that fscking rfc822 allows multiple lines, we don't care now
-        line = reader.readLine();
-        while (!line.equals("")) {
+        line = readLine();
+        while (line != null && !line.equals("")) {
             idx = line.indexOf(':');
             if (idx < 0) {
                 headers = null;
                 break;
             } else {
-                headers.put(line.substring(0, idx).toLowerCase(), line.substring(idx + 1).trim());
+                String name = line.substring(0, idx).toLowerCase();
+                String value = line.substring(idx + 1).trim();
+                String previous = headers.get(name);
+                if (previous != null && (name.equals("content-length") || name.equals("transfer-encoding"))) {
+                    // keep every value of the framing headers so conflicting ones are caught
+                    value = previous + ", " + value;
+                }
+                headers.put(name, value);
             }
-            line = reader.readLine();
+            line = readLine();
         }
+        if (line == null) headers = null;
+    }
+
+    /**
+     * Works out how the request body is delimited and whether the server accepts it.
+     *
+     * @return 200, or the status to reject the request with
+     */
+    private int parseBodyFraming() {
+        String transferEncoding = getHeader("Transfer-Encoding");
+        String length = getHeader("Content-Length");
+        if (transferEncoding != null) {
+            // a message with both is a classic request smuggling vector, refuse it outright
+            if (length != null || compareVersion(1, 1) > 0) return 400;
+            if (!transferEncoding.equalsIgnoreCase("chunked")) return 501;
+            chunked = true;
+        } else if (length != null) {
+            for (String value : length.split(",")) {
+                value = value.trim();
+                if (value.isEmpty() || value.length() > 18) return 400;
+                for (int i = 0; i < value.length(); i++) {
+                    if (value.charAt(i) < '0' || value.charAt(i) > '9') return 400;
+                }
+                long parsed = Long.parseLong(value);
+                if (contentLength >= 0 && contentLength != parsed) return 400;
+                contentLength = parsed;
+            }
+        }
+        if (contentLength > StartupArgs.MAX_REQUEST_BODY_SIZE) return 413;
+
+        String expect = getHeader("Expect");
+        if (expect != null && compareVersion(1, 1) <= 0) {
+            if (!expect.equalsIgnoreCase("100-continue")) return 417;
+            expectContinue = hasBody();
+        }
+        return 200;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = this.line;
+        line.setLength(0);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (++headBytes > StartupArgs.MAX_REQUEST_HEADER_SIZE) {
+                // the rest of the head stays unread, the connection is closed after the 431
+                headTooLarge = true;
+                return null;
+            }
+            if (b == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') line.setLength(len - 1);
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
     }
 
     public String getMethod() {
@@ -208,6 +304,14 @@ public class HTTPHeaderParser {
         return url;
     }
 
+    /**
+     * @return the request target exactly as the client sent it, still percent-encoded and including
+     * the query string
+     */
+    public String getRequestTarget() {
+        return target;
+    }
+
     public String getParam(String key) {
         return params.get(key);
     }
@@ -216,6 +320,82 @@ public class HTTPHeaderParser {
         return params;
     }
 
+    /**
+     * @return whether the client asked for the connection to stay open after this request, following
+     * the HTTP/1.1 default of persistent connections and the HTTP/1.0 opt-in "Connection: keep-alive"
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                token = token.trim();
+                if (token.equalsIgnoreCase("close")) return false;
+                if (token.equalsIgnoreCase("keep-alive")) return true;
+            }
+        }
+        return compareVersion(1, 1) <= 0;
+    }
+
+    /**
+     * @return whether a body follows the head of this request
+     */
+    public boolean hasBody() {
+        return chunked || contentLength > 0;
+    }
+
+    /**
+     * @return the Content-Length the client declared, or -1 if it sent none or the body is chunked
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @return whether the client waits for a 100 Continue before it sends the body
+     */
+    public boolean expectsContinue() {
+        return expectContinue;
+    }
+
+    /**
+     * @return whether this is a well-formed request to open a WebSocket (RFC 6455, section 4.1)
+     */
+    public boolean isWebSocketUpgrade() {
+        if (!"GET".equals(method) || compareVersion(1, 1) > 0 || hasBody()) return false;
+        String upgrade = getHeader("Upgrade");
+        String connection = getHeader("Connection");
+        String key = getHeader("Sec-WebSocket-Key");
+        if (upgrade == null || connection == null || key == null || !"13".equals(getHeader("Sec-WebSocket-Version"))) {
+            return false;
+        }
+        if (!containsToken(upgrade, "websocket") || !containsToken(connection, "upgrade")) return false;
+        try {
+            return Base64.getDecoder().decode(key.trim()).length == 16;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the client asks for a stream of server-sent events, as browsers do for an
+     * EventSource
+     */
+    public boolean isEventStreamRequest() {
+        String accept = getHeader("Accept");
+        return "GET".equals(method) && accept != null && accept.toLowerCase(Locale.ROOT).contains("text/event-stream");
+    }
+
+    private static boolean containsToken(String header, String token) {
+        for (String part : header.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) return true;
+        }
+        return false;
+    }
+
     public String getVersion() {
         return ver[0] + "." + ver[1];
     }
@@ -228,30 +408,36 @@ public class HTTPHeaderParser {
         else return 0;
     }
 
+    /**
+     * @return the status code followed by its reason phrase, such as {@code 404 Not Found}, or null
+     * for codes this server does not know
+     */
     public static String getHttpReply(int codevalue) {
-        String key, ret;
-        int i;
-
-        ret = null;
-        key = "" + codevalue;
-        for (i = 0; i < HttpReplies.length; i++) {
-            if (HttpReplies[i][0].equals(key)) {
-                ret = codevalue + " " + HttpReplies[i][1];
-                break;
-            }
-        }
-
-        return ret;
+        return codevalue >= 0 && codevalue < REPLY_LOOKUP.length ? REPLY_LOOKUP[codevalue] : null;
     }
 
+    /**
+     * @return the Date header for the current second, see {@link HttpDateTicker}
+     */
     public static String getDateHeader() {
-        SimpleDateFormat format;
-        String ret;
+        return HttpDateTicker.getDateHeader();
+    }
 
-        format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss", Locale.US);
-        format.setTimeZone(TimeZone.getTimeZone("GMT"));
-        ret = "Date: " + format.format(new Date()) + " GMT";
+    /**
+     * @return the time in the fixed-length date format HTTP uses for Date, Last-Modified and Expires
+     */
+    public static String formatDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
 
-        return ret;
+    /**
+     * @return the time in milliseconds, or -1 if the value is not a valid HTTP date
+     */
+    public static long parseDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
     }
 }
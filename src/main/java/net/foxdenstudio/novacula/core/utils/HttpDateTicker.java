@@ -0,0 +1,90 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The current Date header, formatted once per second by a background ticker instead of for every
+ * response. HTTP dates only have second precision, so every response within the same second shares
+ * the same value.
+ */
+public final class HttpDateTicker {
+
+    private static volatile Tick current = new Tick(System.currentTimeMillis());
+
+    static {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Nova-Date-Ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long now = System.currentTimeMillis();
+        ticker.scheduleAtFixedRate(() -> current = new Tick(System.currentTimeMillis()),
+                1000 - now % 1000, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    private HttpDateTicker() {
+    }
+
+    /**
+     * @return the Date header line without line terminator, such as
+     * {@code Date: Sun, 06 Nov 1994 08:49:37 GMT}
+     */
+    public static String getDateHeader() {
+        return current.header;
+    }
+
+    /**
+     * Copies the Date header line including its CRLF into {@code dest}.
+     *
+     * @return the number of bytes copied
+     */
+    public static int copyDateLine(byte[] dest, int offset) {
+        byte[] line = current.line;
+        System.arraycopy(line, 0, dest, offset, line.length);
+        return line.length;
+    }
+
+    /**
+     * @return the length of the Date header line including its CRLF, which is the same for every date
+     */
+    public static int getDateLineLength() {
+        return current.line.length;
+    }
+
+    private static final class Tick {
+        private final String header;
+        private final byte[] line;
+
+        Tick(long millis) {
+            this.header = "Date: " + HTTPHeaderParser.formatDate(millis);
+            this.line = (header + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+}
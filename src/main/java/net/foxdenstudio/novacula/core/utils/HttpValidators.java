@@ -0,0 +1,153 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Entity tags and the evaluation of conditional request headers (If-None-Match, If-Modified-Since and
+ * If-Range). Plugins can use these to answer with 304 Not Modified before producing a body, see
+ * {@link net.foxdenstudio.novacula.core.plugins.events.ServerRequestEvent#checkNotModified(String, long)}.
+ */
+public class HttpValidators {
+
+    private static final String[] CODING_SUFFIXES = {"-gzip\"", "-deflate\""};
+
+    /**
+     * @return a strong entity tag for a file, derived from its size and modification time
+     */
+    public static String fileETag(long size, long lastModified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * @return the entity tag of a content-coded representation, such as {@code "abc-gzip"} for
+     * {@code "abc"}; a weak tag stays weak
+     */
+    public static String encodedETag(String etag, String contentCoding) {
+        int quote = etag.lastIndexOf('"');
+        if (quote <= 0) return etag;
+        return etag.substring(0, quote) + "-" + contentCoding + etag.substring(quote);
+    }
+
+    /**
+     * Decides whether a GET or HEAD request can be answered with 304 Not Modified. If-None-Match takes
+     * precedence over If-Modified-Since, as HTTP requires.
+     *
+     * @param etag         the current entity tag including quotes, or null if there is none
+     * @param lastModified the current modification time in milliseconds, or 0 if unknown
+     */
+    public static boolean isNotModified(HTTPHeaderParser request, String etag, long lastModified) {
+        if (!request.getMethod().equals("GET") && !request.getMethod().equals("HEAD")) {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return etag != null && matches(ifNoneMatch, etag);
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null && lastModified > 0) {
+            long since = HTTPHeaderParser.parseDate(ifModifiedSince);
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates an If-Range header. Only a strong entity tag or the exact Last-Modified date match.
+     *
+     * @return true if the range request should be honoured
+     */
+    public static boolean isRangeCurrent(String ifRange, String etag, long lastModified) {
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag) && !etag.startsWith("W/");
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        long date = HTTPHeaderParser.parseDate(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * Checks an If-None-Match list against an entity tag using the weak comparison. Tags of
+     * content-coded representations (see {@link #encodedETag(String, String)}) match the tag they
+     * were derived from, as all codings of a resource are equivalent for caching.
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        String opaque = stripCoding(stripWeak(etag));
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || stripCoding(stripWeak(candidate)).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the complete 304 response for the given validators
+     */
+    public static byte[] notModifiedResponse(String etag, long lastModified, String serverName) {
+        byte[] statusAndDate = ("HTTP/1.1 " + HTTPHeaderParser.getHttpReply(304) + "\r\n" +
+                HTTPHeaderParser.getDateHeader() + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] headers = notModifiedHeaders(etag, lastModified, serverName);
+        byte[] response = Arrays.copyOf(statusAndDate, statusAndDate.length + headers.length);
+        System.arraycopy(headers, 0, response, statusAndDate.length, headers.length);
+        return response;
+    }
+
+    /**
+     * @return the headers of a 304 response that follow the status and Date lines, including the
+     * blank line, for callers that cache them
+     */
+    public static byte[] notModifiedHeaders(String etag, long lastModified, String serverName) {
+        StringBuilder head = new StringBuilder(128);
+        head.append("Server: ").append(serverName).append("\r\n");
+        if (etag != null) {
+            head.append("ETag: ").append(etag).append("\r\n");
+        }
+        if (lastModified > 0) {
+            head.append("Last-Modified: ").append(HTTPHeaderParser.formatDate(lastModified)).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static String stripCoding(String etag) {
+        for (String suffix : CODING_SUFFIXES) {
+            if (etag.endsWith(suffix)) {
+                return etag.substring(0, etag.length() - suffix.length()) + "\"";
+            }
+        }
+        return etag;
+    }
+}
@@ -0,0 +1,94 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.utils;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps file extensions to the MIME types sent as Content-Type. Plugins can register further types
+ * with {@link #register(String, String)}.
+ */
+public class MimeTypes {
+
+    public static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    private static final Map<String, String> TYPES = new ConcurrentHashMap<>();
+
+    static {
+        register("html", "text/html; charset=UTF-8");
+        register("htm", "text/html; charset=UTF-8");
+        register("css", "text/css; charset=UTF-8");
+        register("js", "application/javascript; charset=UTF-8");
+        register("mjs", "application/javascript; charset=UTF-8");
+        register("json", "application/json");
+        register("map", "application/json");
+        register("xml", "application/xml");
+        register("txt", "text/plain; charset=UTF-8");
+        register("csv", "text/csv; charset=UTF-8");
+        register("md", "text/markdown; charset=UTF-8");
+        register("png", "image/png");
+        register("jpg", "image/jpeg");
+        register("jpeg", "image/jpeg");
+        register("gif", "image/gif");
+        register("bmp", "image/bmp");
+        register("webp", "image/webp");
+        register("svg", "image/svg+xml");
+        register("ico", "image/x-icon");
+        register("woff", "font/woff");
+        register("woff2", "font/woff2");
+        register("ttf", "font/ttf");
+        register("otf", "font/otf");
+        register("mp3", "audio/mpeg");
+        register("ogg", "audio/ogg");
+        register("wav", "audio/wav");
+        register("mp4", "video/mp4");
+        register("webm", "video/webm");
+        register("pdf", "application/pdf");
+        register("zip", "application/zip");
+        register("gz", "application/gzip");
+        register("tar", "application/x-tar");
+        register("wasm", "application/wasm");
+    }
+
+    /**
+     * @param extension file extension without the leading dot, matched case-insensitively
+     */
+    public static void register(String extension, String mimeType) {
+        TYPES.put(extension.toLowerCase(Locale.ROOT), mimeType);
+    }
+
+    /**
+     * @return the MIME type for the file name's extension, or {@link #DEFAULT_MIME_TYPE} if it is unknown
+     */
+    public static String getMimeType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot == fileName.length() - 1) {
+            return DEFAULT_MIME_TYPE;
+        }
+        return TYPES.getOrDefault(fileName.substring(dot + 1).toLowerCase(Locale.ROOT), DEFAULT_MIME_TYPE);
+    }
+}
@@ -0,0 +1,403 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads a multipart body, such as a multipart/form-data upload, one part at a time while it streams
+ * in. The boundary is searched with Boyer-Moore-Horspool over a fixed-size buffer, so neither the body
+ * nor any single part is ever held in memory as a whole; file parts can be written straight to disk
+ * with {@link Part#transferTo(Path)}.
+ * <p>
+ * Each part can only be read until {@link #nextPart()} is called again, which skips whatever is left
+ * of it.
+ */
+public final class MultipartReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PART_HEADER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final int[] shift = new int[256];
+    private final long maxPartSize;
+    private final int maxParts;
+    private final byte[] buffer;
+    private int start = 0;
+    private int end = 0;
+    private boolean eof = false;
+
+    // where the next delimiter starts, or -1 if it has not been found yet; positions before
+    // scannedTo are known not to start one
+    private int delimiterAt = -1;
+    private int scannedTo = 0;
+
+    private boolean partDone = false;
+    private long partSize = 0;
+    private int parts = 0;
+    private boolean finished = false;
+    private Part current;
+
+    /**
+     * @param in          the body, positioned at its start
+     * @param boundary    the boundary from the Content-Type, see {@link #getBoundary(String)}
+     * @param maxPartSize the largest part body accepted, in bytes
+     * @param maxParts    the most parts accepted
+     */
+    public MultipartReader(InputStream in, String boundary, long maxPartSize, int maxParts) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.maxPartSize = maxPartSize;
+        this.maxParts = maxParts;
+        this.buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 4)];
+
+        int last = delimiter.length - 1;
+        for (int i = 0; i < shift.length; i++) {
+            shift[i] = delimiter.length;
+        }
+        for (int i = 0; i < last; i++) {
+            shift[delimiter[i] & 0xFF] = last - i;
+        }
+
+        // the first delimiter may come without a line break in front of it, pretend there is one so
+        // the preamble can be skipped like a part
+        buffer[end++] = '\r';
+        buffer[end++] = '\n';
+    }
+
+    /**
+     * @return the boundary parameter of a multipart Content-Type, or null if the type is not multipart
+     * or has no valid boundary
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.trim().toLowerCase(Locale.ROOT).startsWith("multipart/")) {
+            return null;
+        }
+        String boundary = parseParameters(contentType).get("boundary");
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+            return null;
+        }
+        return boundary;
+    }
+
+    /**
+     * Moves on to the next part, skipping the rest of the current one.
+     *
+     * @return the next part, or null after the last one
+     */
+    public Part nextPart() throws IOException {
+        if (finished) return null;
+        byte[] scratch = new byte[4096];
+        while (readPart(scratch, 0, scratch.length) >= 0) {
+            // skip the rest of the previous part, or the preamble
+        }
+        current = null;
+
+        if (!ensure(2)) {
+            throw new IOException("Multipart body ended after a boundary");
+        }
+        if (buffer[start] == '-' && buffer[start + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        // transport padding may follow the boundary before the line break
+        String padding = readLine(MAX_PART_HEADER_SIZE);
+        if (!padding.trim().isEmpty()) {
+            throw new IOException("Malformed multipart boundary line");
+        }
+        if (++parts > maxParts) {
+            throw new IOException("Too many multipart parts, at most " + maxParts + " are accepted");
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        int headerBytes = 0;
+        String line;
+        while (!(line = readLine(MAX_PART_HEADER_SIZE - headerBytes)).isEmpty()) {
+            headerBytes += line.length() + 2;
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Malformed multipart part header");
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        partDone = false;
+        partSize = 0;
+        current = new Part(headers);
+        return current;
+    }
+
+    /**
+     * Closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        in.close();
+    }
+
+    private int readPart(byte[] b, int off, int len) throws IOException {
+        if (partDone) return -1;
+        while (true) {
+            int found = locateDelimiter();
+            int available = (found >= 0 ? found : end - delimiter.length + 1) - start;
+            if (available > 0) {
+                int count = Math.min(len, available);
+                partSize += count;
+                if (partSize > maxPartSize) {
+                    throw new IOException("Multipart part larger than " + maxPartSize + " bytes");
+                }
+                System.arraycopy(buffer, start, b, off, count);
+                start += count;
+                return count;
+            }
+            if (found == start) {
+                start += delimiter.length;
+                delimiterAt = -1;
+                scannedTo = start;
+                partDone = true;
+                return -1;
+            }
+            if (eof) {
+                throw new IOException("Multipart body ended inside a part");
+            }
+            fill();
+        }
+    }
+
+    private int locateDelimiter() {
+        if (delimiterAt >= 0) return delimiterAt;
+        int last = delimiter.length - 1;
+        int i = Math.max(scannedTo, start);
+        while (i + last < end) {
+            int j = last;
+            while (buffer[i + j] == delimiter[j]) {
+                if (j == 0) {
+                    delimiterAt = i;
+                    return i;
+                }
+                j--;
+            }
+            i += shift[buffer[i + last] & 0xFF];
+        }
+        scannedTo = Math.max(start, end - last);
+        return -1;
+    }
+
+    /**
+     * Reads more of the body into the buffer, moving the unread bytes to its front first.
+     */
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scannedTo = Math.max(0, scannedTo - start);
+            if (delimiterAt >= 0) {
+                delimiterAt -= start;
+            }
+            start = 0;
+        }
+        int count = in.read(buffer, end, buffer.length - end);
+        if (count < 0) {
+            eof = true;
+        } else {
+            end += count;
+        }
+    }
+
+    private boolean ensure(int count) throws IOException {
+        while (end - start < count && !eof) {
+            fill();
+        }
+        return end - start >= count;
+    }
+
+    private String readLine(int maxLength) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (!ensure(1)) {
+                throw new IOException("Multipart body ended inside a part header");
+            }
+            byte b = buffer[start++];
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+                scannedTo = start;
+                return line.toString();
+            }
+            if (line.length() >= maxLength) {
+                throw new IOException("Multipart part header too large");
+            }
+            line.append((char) (b & 0xFF));
+        }
+    }
+
+    /**
+     * Splits the {@code ; name=value} parameters of a header such as Content-Type or
+     * Content-Disposition, with quoted values unescaped. Names are lower-cased.
+     */
+    static Map<String, String> parseParameters(String header) {
+        Map<String, String> parameters = new HashMap<>();
+        int i = header.indexOf(';');
+        while (i >= 0 && i < header.length()) {
+            i++;
+            int equals = header.indexOf('=', i);
+            int semicolon = header.indexOf(';', i);
+            if (equals < 0 || (semicolon >= 0 && semicolon < equals)) {
+                i = semicolon;
+                continue;
+            }
+            String name = header.substring(i, equals).trim().toLowerCase(Locale.ROOT);
+            i = equals + 1;
+            while (i < header.length() && header.charAt(i) == ' ') i++;
+            StringBuilder value = new StringBuilder();
+            if (i < header.length() && header.charAt(i) == '"') {
+                for (i++; i < header.length() && header.charAt(i) != '"'; i++) {
+                    char c = header.charAt(i);
+                    if (c == '\\' && i + 1 < header.length()) c = header.charAt(++i);
+                    value.append(c);
+                }
+                i = header.indexOf(';', i);
+            } else {
+                int stop = header.indexOf(';', i);
+                value.append(header.substring(i, stop < 0 ? header.length() : stop).trim());
+                i = stop;
+            }
+            parameters.put(name, value.toString());
+        }
+        return parameters;
+    }
+
+    /**
+     * One part of the body. Its content is read through {@link #getInputStream()} and is only
+     * available until the reader moves on to the next part.
+     */
+    public final class Part {
+
+        private final Map<String, String> headers;
+        private final Map<String, String> disposition;
+        private final InputStream content = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (current != Part.this) return -1;
+                if (len == 0) return 0;
+                return readPart(b, off, len);
+            }
+        };
+
+        private Part(Map<String, String> headers) {
+            this.headers = headers;
+            String contentDisposition = headers.get("content-disposition");
+            this.disposition = contentDisposition == null ? new HashMap<>() : parseParameters(contentDisposition);
+        }
+
+        /**
+         * @return the value of a header of this part, such as Content-Type, or null
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * @return the form field name from the Content-Disposition, or null
+         */
+        public String getName() {
+            return disposition.get("name");
+        }
+
+        /**
+         * @return the file name the client sent, or null if the part is not a file; this comes from the
+         * client and must not be used as a path as it is
+         */
+        public String getFilename() {
+            return disposition.get("filename");
+        }
+
+        public String getContentType() {
+            String contentType = headers.get("content-type");
+            return contentType != null ? contentType : "text/plain";
+        }
+
+        public boolean isFile() {
+            return getFilename() != null;
+        }
+
+        public InputStream getInputStream() {
+            return content;
+        }
+
+        /**
+         * Writes the rest of the part to a file, streaming it straight to disk.
+         *
+         * @return the number of bytes written
+         */
+        public long transferTo(Path file) throws IOException {
+            long written = 0;
+            byte[] chunk = new byte[8192];
+            try (OutputStream out = Files.newOutputStream(file)) {
+                int count;
+                while ((count = content.read(chunk, 0, chunk.length)) >= 0) {
+                    out.write(chunk, 0, count);
+                    written += count;
+                }
+            }
+            return written;
+        }
+
+        /**
+         * Reads the rest of the part as UTF-8 text, for ordinary form fields.
+         *
+         * @param maxLength the most bytes accepted, larger parts fail with an IOException
+         */
+        public String readString(int maxLength) throws IOException {
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1024];
+            int count;
+            while ((count = content.read(chunk, 0, chunk.length)) >= 0) {
+                if (text.size() + count > maxLength) {
+                    throw new IOException("Multipart field " + getName() + " longer than " + maxLength + " bytes");
+                }
+                text.write(chunk, 0, count);
+            }
+            return new String(text.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
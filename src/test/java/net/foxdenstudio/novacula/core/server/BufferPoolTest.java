@@ -0,0 +1,63 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void newSlabsStayWithinPoolSize() {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        try {
+            // fill the shared pool up to its limit with small buffers
+            for (int i = 0; i < StartupArgs.BUFFER_POOL_SIZE / BufferPool.MIN_SIZE + 64; i++) {
+                buffers.add(BufferPool.acquire(BufferPool.MIN_SIZE));
+            }
+            for (ByteBuffer buffer : buffers) {
+                BufferPool.release(buffer);
+            }
+            buffers.clear();
+            assertTrue(BufferPool.getIdleBytes() <= StartupArgs.BUFFER_POOL_SIZE);
+
+            // large buffers now have to come from new slabs
+            for (int i = 0; i < 64; i++) {
+                buffers.add(BufferPool.acquire(BufferPool.MAX_SIZE));
+                assertTrue(BufferPool.getIdleBytes() <= StartupArgs.BUFFER_POOL_SIZE);
+            }
+        } finally {
+            for (ByteBuffer buffer : buffers) {
+                BufferPool.release(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.plugins.events.ServerResponse;
+import net.foxdenstudio.novacula.core.utils.HTTPHeaderParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Counts the channel writes, one syscall each on a real socket, that typical responses of the
+ * blocking engine take, once with the plain socket stream and once with the
+ * {@link GatheringOutputStream} the connections write through. The channel accepts everything it is
+ * given in one call, like a socket with room in its send buffer, so the counts are the least number
+ * of syscalls each stack can manage.
+ * <p>
+ * Run it with the main and test classes on the classpath:
+ * <pre>
+ * java -cp build/classes/main:build/classes/test net.foxdenstudio.novacula.core.server.GatheringWriteBenchmark
+ * </pre>
+ * {@code -Dbench.responses} (default 100000) sets how many responses each case writes.
+ */
+public class GatheringWriteBenchmark {
+
+    private static final int RESPONSES = Integer.getInteger("bench.responses", 100000);
+    private static final String REQUEST = "GET /benchmark HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+    private interface Handler {
+        void handle(ServerResponse response, HttpResponseStream stream) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        byte[] page = filled(2048);
+        byte[] piece = filled(100);
+        byte[] download = filled(64 * 1024);
+
+        run("fixed length, 2KB in one write", (response, stream) -> {
+            response.setHeader("Content-Type", "text/html").setContentLength(page.length).getBody().write(page);
+        });
+        run("fixed length, 64KB in one write", (response, stream) -> {
+            response.setHeader("Content-Type", "application/octet-stream").setContentLength(download.length).getBody().write(download);
+        });
+        run("fixed length, 40 writes of 100B", (response, stream) -> {
+            OutputStream body = response.setHeader("Content-Type", "text/html").setContentLength(40 * piece.length).getBody();
+            for (int i = 0; i < 40; i++) {
+                body.write(piece);
+            }
+        });
+        run("chunked, 40 writes of 100B", (response, stream) -> {
+            OutputStream body = response.setHeader("Content-Type", "text/html").setChunkSize(1024).getBody();
+            for (int i = 0; i < 40; i++) {
+                body.write(piece);
+            }
+        });
+        run("404 error page", (response, stream) -> ClientConnectionThread.QuickAccess.Error404(stream, "Nova"));
+    }
+
+    private static void run(String name, Handler handler) throws IOException {
+        Result direct = measure(handler, false);
+        Result gathering = measure(handler, true);
+        if (direct.bytes != gathering.bytes) {
+            throw new IllegalStateException(name + ": " + direct.bytes + " bytes written directly but "
+                    + gathering.bytes + " gathered");
+        }
+        System.out.println(String.format("%-34s %5d bytes  direct %5.1f writes %6dns  gathering %5.1f writes %6dns",
+                name, direct.bytes / RESPONSES, direct.writesPerResponse(), direct.nanosPerResponse(),
+                gathering.writesPerResponse(), gathering.nanosPerResponse()));
+    }
+
+    /**
+     * Writes the responses once to warm up and once more to count.
+     */
+    private static Result measure(Handler handler, boolean gathering) throws IOException {
+        HTTPHeaderParser request = new HTTPHeaderParser(new ByteArrayInputStream(REQUEST.getBytes(StandardCharsets.ISO_8859_1)));
+        request.parseRequest();
+        CountingChannel channel = new CountingChannel();
+        OutputStream socket = SocketChannelStreams.output(channel);
+        OutputStream out = gathering ? new GatheringOutputStream(socket) : socket;
+
+        Result result = new Result();
+        for (int round = 0; round < 2; round++) {
+            channel.writes = 0;
+            channel.bytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < RESPONSES; i++) {
+                HttpResponseStream stream = new HttpResponseStream(out, request, true, request.compareVersion(1, 1) <= 0, false);
+                ResponseWriter writer = new ResponseWriter(stream, request, "Nova", false);
+                handler.handle(writer, stream);
+                writer.close();
+                stream.close();
+                out.flush();
+            }
+            result.nanos = System.nanoTime() - start;
+        }
+        result.writes = channel.writes;
+        result.bytes = channel.bytes;
+        return result;
+    }
+
+    private static byte[] filled(int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) 'x');
+        return bytes;
+    }
+
+    private static class Result {
+        long writes;
+        long bytes;
+        long nanos;
+
+        double writesPerResponse() {
+            return (double) writes / RESPONSES;
+        }
+
+        long nanosPerResponse() {
+            return nanos / RESPONSES;
+        }
+    }
+
+    /**
+     * Discards everything written to it and counts the calls.
+     */
+    private static class CountingChannel implements GatheringByteChannel {
+        long writes;
+        long bytes;
+
+        @Override
+        public int write(ByteBuffer src) {
+            writes++;
+            int n = src.remaining();
+            src.position(src.limit());
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
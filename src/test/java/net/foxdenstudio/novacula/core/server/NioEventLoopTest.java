@@ -0,0 +1,117 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.utils.NovaLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class NioEventLoopTest {
+
+    private NioEventLoop loop;
+    private ServerSocketChannel server;
+
+    @Before
+    public void setUp() throws IOException {
+        loop = new NioEventLoop(new NovaLogger(), null, null, null, "Test-EventLoop");
+        loop.start();
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        loop.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void failingHandlerIsClosedAndLoopKeepsRunning() throws Exception {
+        try (SocketChannel failingClient = SocketChannel.open(server.getLocalAddress());
+             SocketChannel healthyClient = SocketChannel.open(server.getLocalAddress())) {
+            TestConnection failing = new TestConnection(true);
+            TestConnection healthy = new TestConnection(false);
+            loop.register(server.accept(), null, failing, null);
+            loop.register(server.accept(), null, healthy, null);
+
+            failingClient.write(ByteBuffer.wrap(new byte[]{1}));
+            assertTrue(failing.closed.await(5, TimeUnit.SECONDS));
+
+            healthyClient.write(ByteBuffer.wrap(new byte[]{2}));
+            assertTrue(healthy.read.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static class TestConnection implements LongLivedConnection {
+        private final boolean fail;
+        private final CountDownLatch read = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private SocketChannel channel;
+
+        TestConnection(boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void start(NioEventLoop eventLoop, SocketChannel channel, TlsChannel tls, SelectionKey key, ByteBuffer buffered) {
+            this.channel = channel;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        @Override
+        public void onReadable() throws IOException {
+            if (fail) {
+                throw new IllegalStateException("handler failure");
+            }
+            if (channel.read(ByteBuffer.allocate(16)) > 0) {
+                read.countDown();
+            }
+        }
+
+        @Override
+        public void onWritable() {
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
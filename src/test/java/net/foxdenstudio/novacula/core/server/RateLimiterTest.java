@@ -0,0 +1,74 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void routePathsAreNormalized() {
+        assertEquals("/login", RateLimiter.normalizePath("/login"));
+        assertEquals("/login", RateLimiter.normalizePath("/%6cogin"));
+        assertEquals("/login", RateLimiter.normalizePath("/%6Cogin?user=x"));
+        assertEquals("/login", RateLimiter.normalizePath("/./login"));
+        assertEquals("/login", RateLimiter.normalizePath("//login"));
+        assertEquals("/login", RateLimiter.normalizePath("/static/../login"));
+        assertEquals("/login", RateLimiter.normalizePath("/../../login"));
+        assertEquals("/login", RateLimiter.normalizePath("/%2e/login"));
+        assertEquals("/login", RateLimiter.normalizePath("http://example.com/login"));
+    }
+
+    @Test
+    public void directoriesKeepTheirTrailingSlash() {
+        assertEquals("/", RateLimiter.normalizePath("/"));
+        assertEquals("/", RateLimiter.normalizePath("/.."));
+        assertEquals("/api/", RateLimiter.normalizePath("/api/"));
+        assertEquals("/api/", RateLimiter.normalizePath("/api/v1/.."));
+        assertEquals("/api/", RateLimiter.normalizePath("/api/."));
+        assertEquals("/api", RateLimiter.normalizePath("/api"));
+    }
+
+    @Test
+    public void routesMatchWholeSegments() {
+        assertTrue(RateLimiter.matchesRoute("/login", "/login"));
+        assertTrue(RateLimiter.matchesRoute("/login/", "/login"));
+        assertTrue(RateLimiter.matchesRoute("/login/reset", "/login"));
+        assertFalse(RateLimiter.matchesRoute("/loginhelp", "/login"));
+        assertFalse(RateLimiter.matchesRoute("/login-assets/app.js", "/login"));
+        assertFalse(RateLimiter.matchesRoute("/log", "/login"));
+
+        assertTrue(RateLimiter.matchesRoute("/api/", "/api/"));
+        assertTrue(RateLimiter.matchesRoute("/api/v1/users", "/api/"));
+        assertFalse(RateLimiter.matchesRoute("/api", "/api/"));
+        assertFalse(RateLimiter.matchesRoute("/apis/", "/api/"));
+
+        assertTrue(RateLimiter.matchesRoute("/anything", "/"));
+    }
+}
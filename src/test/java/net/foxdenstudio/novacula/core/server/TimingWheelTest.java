@@ -0,0 +1,77 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private TimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimingWheel(new ServerMetrics(), 10, 4);
+        wheel.start();
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void disarmedTimerIsDroppedAndCanBeArmedAgain() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        ConnectionTimer timer = new ConnectionTimer(wheel, phase -> fired.countDown());
+        timer.arm(ConnectionTimer.Phase.WRITE, 20);
+        timer.disarm();
+
+        // several rounds of the wheel, so the slot the timer sat in has come due
+        assertFalse(fired.await(200, TimeUnit.MILLISECONDS));
+
+        timer.arm(ConnectionTimer.Phase.KEEP_ALIVE, 100);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void distantDeadlineDoesNotOverflow() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        ConnectionTimer timer = new ConnectionTimer(wheel, phase -> fired.countDown());
+        timer.arm(ConnectionTimer.Phase.HEADER_READ, Long.MAX_VALUE);
+
+        assertFalse(fired.await(100, TimeUnit.MILLISECONDS));
+
+        timer.arm(ConnectionTimer.Phase.HEADER_READ, 50);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+}
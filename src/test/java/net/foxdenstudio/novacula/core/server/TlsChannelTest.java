@@ -0,0 +1,183 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TlsChannelTest {
+
+    private static final String PASSWORD = "changeit";
+
+    private static File keyStore;
+    private static TlsContext tlsContext;
+    private static SSLContext clientContext;
+    private static ServerSocketChannel server;
+    private static Thread acceptor;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        keyStore = generateKeyStore();
+        tlsContext = TlsContext.load(keyStore.getPath(), PASSWORD, "PKCS12");
+
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            trusted.load(in, PASSWORD.toCharArray());
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trusted);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        acceptor = new Thread(TlsChannelTest::serve, "TlsChannelTest-Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        server.close();
+        Files.deleteIfExists(keyStore.toPath());
+    }
+
+    /**
+     * A self-signed certificate for localhost, made with the keytool of the JDK running the test.
+     */
+    private static File generateKeyStore() throws IOException, InterruptedException {
+        File file = File.createTempFile("novacula-test", ".p12");
+        Files.delete(file.toPath());
+        File keytool = new File(System.getProperty("java.home"), "bin" + File.separator + "keytool");
+        Process process = new ProcessBuilder(keytool.exists() ? keytool.getPath() : "keytool",
+                "-genkeypair", "-alias", "novacula", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+                "-dname", "CN=localhost", "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        byte[] output = new byte[8192];
+        int length = 0;
+        int n;
+        try (InputStream in = process.getInputStream()) {
+            while ((n = in.read(output, length, output.length - length)) > 0) {
+                length += n;
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + new String(output, 0, length, StandardCharsets.ISO_8859_1));
+        }
+        return file;
+    }
+
+    /**
+     * Answers every line a client sends with the line in upper case, over a blocking TlsChannel.
+     */
+    private static void serve() {
+        while (server.isOpen()) {
+            SocketChannel socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try (TlsChannel tls = new TlsChannel(socket, tlsContext.newEngine())) {
+                ByteBuffer in = ByteBuffer.allocate(1024);
+                while (tls.read(in) >= 0) {
+                    if (in.position() > 0 && in.get(in.position() - 1) == '\n') {
+                        byte[] line = new String(in.array(), 0, in.position(), StandardCharsets.ISO_8859_1)
+                                .toUpperCase().getBytes(StandardCharsets.ISO_8859_1);
+                        tls.write(ByteBuffer.wrap(line));
+                        in.clear();
+                    }
+                }
+            } catch (IOException ignored) {
+                // the client went away
+            }
+        }
+    }
+
+    private static String exchange(String protocol, String line) throws IOException {
+        InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+        try (SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", address.getPort())) {
+            socket.setEnabledProtocols(new String[]{protocol});
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write((line + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            String answer = in.readLine();
+            assertEquals(protocol, socket.getSession().getProtocol());
+            return answer;
+        }
+    }
+
+    private static void assertHandshakeAndResumption(String protocol) throws Exception {
+        long full = TlsContext.getFullHandshakes();
+        long resumed = TlsContext.getResumedHandshakes();
+
+        assertEquals("HELLO", exchange(protocol, "hello"));
+        assertEquals(full + 1, TlsContext.getFullHandshakes());
+
+        // resumption is told apart by the session being older than the connection, in milliseconds
+        Thread.sleep(10);
+        assertEquals("AGAIN", exchange(protocol, "again"));
+        assertEquals(resumed + 1, TlsContext.getResumedHandshakes());
+        assertEquals(full + 1, TlsContext.getFullHandshakes());
+    }
+
+    @Test
+    public void handshakeAndResumptionWithTls12() throws Exception {
+        assertHandshakeAndResumption("TLSv1.2");
+    }
+
+    @Test
+    public void handshakeAndResumptionWithTls13() throws Exception {
+        assertTrue(Arrays.asList(clientContext.getSupportedSSLParameters().getProtocols()).contains("TLSv1.3"));
+        assertHandshakeAndResumption("TLSv1.3");
+    }
+}
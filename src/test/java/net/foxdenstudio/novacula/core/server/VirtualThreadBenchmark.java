@@ -0,0 +1,265 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.server;
+
+import net.foxdenstudio.novacula.core.plugins.EventHandler;
+import net.foxdenstudio.novacula.core.plugins.NovaPlugin;
+import net.foxdenstudio.novacula.core.plugins.PluginSystem;
+import net.foxdenstudio.novacula.core.plugins.events.ServerRequestEvent;
+import net.foxdenstudio.novacula.core.utils.NovaLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opens a burst of concurrent connections against a handler that blocks for a while, once with
+ * request handling on virtual threads and once on the platform worker pool, and prints how many
+ * requests were served, how many were shed with 503 and how long the burst took.
+ * <p>
+ * Each mode runs in its own JVM because the server reads its settings from {@code StartupArgs}
+ * once. Run it on JDK 21 or newer with the main and test classes on the classpath:
+ * <pre>
+ * java -cp build/classes/main:build/classes/test net.foxdenstudio.novacula.core.server.VirtualThreadBenchmark
+ * </pre>
+ * {@code -Dbench.connections} (default 10000), {@code -Dbench.sleep} (milliseconds the handler
+ * blocks, default 1000) and {@code -Dbench.port} (default 18004) change the load, and any
+ * {@code -Dnovacula.*} property is passed on to both runs.
+ */
+public class VirtualThreadBenchmark {
+
+    private static final int CONNECTIONS = Integer.getInteger("bench.connections", 10000);
+    private static final int SLEEP = Integer.getInteger("bench.sleep", 1000);
+    private static final int PORT = Integer.getInteger("bench.port", 18004);
+    private static final long TIMEOUT = 120000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            serve(args[0]);
+            return;
+        }
+        for (String mode : new String[]{"virtual", "platform"}) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+                String name = property.getKey().toString();
+                if (name.startsWith("novacula.") || name.startsWith("bench.")) {
+                    command.add("-D" + name + "=" + property.getValue());
+                }
+            }
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                    VirtualThreadBenchmark.class.getName(), mode));
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String[] peakThreads = {"?"};
+            Thread output = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("PEAK ")) {
+                            peakThreads[0] = line.substring(5);
+                        }
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            output.start();
+
+            awaitListening(process);
+            Result result = burst();
+            process.getOutputStream().close();
+            output.join();
+            process.waitFor();
+            System.out.println(String.format("%-8s %d connections, handler %dms: %d x 200, %d x 503, %d reset, %d failed in %.2fs"
+                            + " (p50 %dms, p99 %dms, server peak threads %s)", mode, CONNECTIONS, SLEEP, result.served,
+                    result.shed, result.reset, result.failed, result.elapsed / 1e9, result.percentile(50), result.percentile(99),
+                    peakThreads[0]));
+        }
+    }
+
+    /**
+     * Runs the server side in its own JVM, so the client and server connections do not share one
+     * file descriptor limit. The server stops once its standard input is closed.
+     */
+    private static void serve(String mode) throws Exception {
+        System.setProperty("novacula.virtualThreads", String.valueOf("virtual".equals(mode)));
+        System.setProperty("novacula.listen", "127.0.0.1:" + PORT);
+        if (System.getProperty("novacula.acceptBacklog") == null) {
+            System.setProperty("novacula.acceptBacklog", "4096");
+        }
+
+        NovaLogger logger = new NovaLogger();
+        new PluginSystem(logger);
+        NovaServer server = new NovaServer(logger);
+        new Thread(server::start, "Benchmark-Server").start();
+        while (System.in.read() >= 0) {
+            // wait for the benchmark to finish
+        }
+        server.stop();
+        System.out.println("PEAK " + ManagementFactory.getThreadMXBean().getPeakThreadCount());
+        System.exit(0);
+    }
+
+    private static void awaitListening(Process server) throws InterruptedException {
+        while (server.isAlive()) {
+            try {
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT)).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(10);
+            }
+        }
+        throw new IllegalStateException("The server exited with " + server.exitValue());
+    }
+
+    /**
+     * Opens every connection at once from a single selector thread, so the client side does not
+     * need a thread per connection itself.
+     */
+    private static Result burst() throws IOException {
+        byte[] request = ("GET /benchmark HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        Result result = new Result();
+        long start = System.nanoTime();
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                Client client = new Client(ByteBuffer.wrap(request), System.nanoTime());
+                channel.connect(new InetSocketAddress("127.0.0.1", PORT));
+                channel.register(selector, SelectionKey.OP_CONNECT, client);
+            }
+            ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+            int open = CONNECTIONS;
+            while (open > 0 && System.nanoTime() - start < TIMEOUT * 1000000L) {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            channel.finishConnect();
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            channel.write(client.request);
+                            if (!client.request.hasRemaining()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            readBuffer.clear();
+                            int read = channel.read(readBuffer);
+                            if (client.status.length() < 12 && read > 0) {
+                                client.status.append(new String(readBuffer.array(), 0, Math.min(read, 12), StandardCharsets.ISO_8859_1));
+                            }
+                            if (read < 0) {
+                                result.complete(client);
+                                channel.close();
+                                open--;
+                            }
+                        }
+                    } catch (IOException e) {
+                        result.reset++;
+                        channel.close();
+                        open--;
+                    }
+                }
+            }
+            result.failed += open;
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        }
+        result.elapsed = System.nanoTime() - start;
+        return result;
+    }
+
+    private static class Client {
+        final ByteBuffer request;
+        final long start;
+        final StringBuilder status = new StringBuilder();
+
+        Client(ByteBuffer request, long start) {
+            this.request = request;
+            this.start = start;
+        }
+    }
+
+    private static class Result {
+        final long[] latencies = new long[CONNECTIONS];
+        int served;
+        int shed;
+        int reset;
+        int failed;
+        long elapsed;
+
+        void complete(Client client) {
+            String status = client.status.length() >= 12 ? client.status.substring(9, 12) : "";
+            if (status.equals("200")) {
+                latencies[served++] = System.nanoTime() - client.start;
+            } else if (status.equals("503")) {
+                shed++;
+            } else {
+                failed++;
+            }
+        }
+
+        long percentile(int percentile) {
+            if (served == 0) return 0;
+            long[] sorted = Arrays.copyOf(latencies, served);
+            Arrays.sort(sorted);
+            return sorted[Math.min(served - 1, served * percentile / 100)] / 1000000;
+        }
+    }
+
+    @NovaPlugin(name = "Benchmark", uniqueID = "benchmark")
+    public static class SleepPlugin {
+
+        @EventHandler
+        public void onRequest(ServerRequestEvent event) throws IOException, InterruptedException {
+            if (!event.getHttpHeaderParser().getRequestURL().equals("/benchmark")) return;
+            Thread.sleep(SLEEP);
+            byte[] body = "ok".getBytes(StandardCharsets.ISO_8859_1);
+            event.getResponse().setContentLength(body.length).getBody().write(body);
+        }
+    }
+}
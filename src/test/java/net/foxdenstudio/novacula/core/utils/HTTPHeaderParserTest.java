@@ -0,0 +1,75 @@
+/**************************************************************************************************
+ * The MIT License (MIT)                                                                          *
+ * *
+ * Copyright (c) 2015. FoxDenStudio                                                               *
+ * *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy                   *
+ * of this software and associated documentation files (the "Software"), to deal                  *
+ * in the Software without restriction, including without limitation the rights                   *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell                      *
+ * copies of the Software, and to permit persons to whom the Software is                          *
+ * furnished to do so, subject to the following conditions:                                       *
+ * *
+ * The above copyright notice and this permission notice shall be included in all                 *
+ * copies or substantial portions of the Software.                                                *
+ * *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR                     *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,                       *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE                    *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER                         *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,                  *
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE                  *
+ * SOFTWARE.                                                                                      *
+ **************************************************************************************************/
+
+package net.foxdenstudio.novacula.core.utils;
+
+import net.foxdenstudio.novacula.core.StartupArgs;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class HTTPHeaderParserTest {
+
+    private static HTTPHeaderParser parse(String head) throws IOException {
+        HTTPHeaderParser parser = new HTTPHeaderParser(new ByteArrayInputStream(head.getBytes(StandardCharsets.ISO_8859_1)));
+        parser.parseRequest();
+        return parser;
+    }
+
+    private static int status(String head) throws IOException {
+        return new HTTPHeaderParser(new ByteArrayInputStream(head.getBytes(StandardCharsets.ISO_8859_1))).parseRequest();
+    }
+
+    @Test
+    public void leadingEmptyLinesAreSkipped() throws IOException {
+        assertEquals(200, status("\r\nGET /index.html HTTP/1.1\r\nHost: x\r\n\r\n"));
+        assertEquals(200, status("\r\n\r\nGET /index.html HTTP/1.1\r\nHost: x\r\n\r\n"));
+        assertEquals("/index.html", parse("\r\nGET /index.html HTTP/1.1\r\nHost: x\r\n\r\n").getRequestURL());
+    }
+
+    @Test
+    public void endOfStreamIsNoRequest() throws IOException {
+        assertEquals(0, status(""));
+        assertEquals(0, status("\r\n"));
+    }
+
+    @Test
+    public void oversizedHeadIsRejected() throws IOException {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\nHost: x\r\n");
+        while (head.length() <= StartupArgs.MAX_REQUEST_HEADER_SIZE) {
+            head.append("X-Filler: ").append("abcdefghijklmnopqrstuvwxyz").append("\r\n");
+        }
+        assertEquals(431, status(head.append("\r\n").toString()));
+
+        StringBuilder target = new StringBuilder("GET /");
+        while (target.length() <= StartupArgs.MAX_REQUEST_HEADER_SIZE) {
+            target.append('a');
+        }
+        assertEquals(431, status(target.append(" HTTP/1.1\r\nHost: x\r\n\r\n").toString()));
+    }
+}